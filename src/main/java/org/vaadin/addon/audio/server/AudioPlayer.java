@@ -6,23 +6,28 @@ import com.vaadin.flow.component.polymertemplate.PolymerTemplate;
 import com.vaadin.flow.server.StreamRegistration;
 import com.vaadin.flow.server.StreamResource;
 import com.vaadin.flow.server.StreamResourceRegistry;
-import com.vaadin.flow.server.VaadinSession;
 import com.vaadin.flow.templatemodel.TemplateModel;
 import elemental.json.Json;
-import elemental.json.JsonArray;
 import elemental.json.JsonObject;
 import org.vaadin.addon.audio.server.state.PlaybackState;
+import org.vaadin.addon.audio.server.state.PositionReporting;
 import org.vaadin.addon.audio.server.state.StateChangeCallback;
 import org.vaadin.addon.audio.server.state.VolumeChangeCallback;
 import org.vaadin.addon.audio.server.util.StringFormatter;
 import org.vaadin.addon.audio.shared.ChunkDescriptor;
-import org.vaadin.addon.audio.shared.SharedEffect;
 import org.vaadin.addon.audio.shared.util.Log;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
 
 // This is the server-side UI component that provides public API for AudioPlayer
 @SuppressWarnings("serial")
@@ -31,25 +36,49 @@ import java.util.List;
 public class AudioPlayer extends PolymerTemplate<TemplateModel> {
 
     private Stream stream = null;
-    private PlaybackState playbackState = PlaybackState.STOPPED;
+    private boolean streamRetained = false;
+    private volatile ChunkPrefetcher prefetcher = null;
+    private volatile VariantSelector variantSelector = null;
+    private volatile PlaybackState playbackState = PlaybackState.STOPPED;
+    // Playback position at the last report or change, when it was taken, and
+    // how fast it has advanced since; guarded by this
     private int currentPosition = 0;
+    private long positionNanos = System.nanoTime();
+    private double positionRate = 0;
+    // Position last passed to the listeners
+    private int notifiedPosition = 0;
+    private PositionReporting positionReporting = PositionReporting.INTERVAL;
+    private int positionDriftTolerance = 250;
+    // Position ticks while playing with adaptive reporting
+    private ScheduledFuture<?> positionTicks = null;
     private double volume = 1;
+    private volatile double playbackSpeed = 1;
     private double[] channelVolumes = new double[0];
-    private List<StreamRegistration> chunkRegistrations = new ArrayList<>();
+    // Serves every chunk of the stream in this player's session
+    private StreamRegistration chunkRegistration = null;
 
     // TODO: use a proper event system
-    private List<StateChangeCallback> stateCallbacks = new ArrayList<>();
+    private List<StateChangeCallback> stateCallbacks = new CopyOnWriteArrayList<>();
     private List<VolumeChangeCallback> volumeCallbacks = new ArrayList<>();
 
     public int chunkTimeMillis;
 
     public int numChunksPreload;
 
+    // Chunks encoded ahead of the playhead, negative to follow numChunksPreload
+    private int numChunksPrefetch = -1;
+
     public int duration;
 
     public int reportPositionRepeatTime = 500;
 
-    public final List<SharedEffect> effects = new ArrayList<SharedEffect>();
+    // Effects by id, in the order they were added
+    private final Map<String, Effect> effects = new LinkedHashMap<>();
+    // Parameter version of each effect last sent to the client
+    private final Map<String, Long> sentEffectVersions = new HashMap<>();
+    // Ids of the effects added, updated or removed since the last update
+    private final Set<String> pendingEffects = new LinkedHashSet<>();
+    private boolean effectUpdateScheduled = false;
 
     /**
      * Create new AudioPlayer
@@ -83,19 +112,19 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
 
     @ClientCallable
     public void reportPlaybackPosition(int position_millis) {
-        Log.message(this,"received position report: " + position_millis);
-        if (position_millis != currentPosition) {
-            currentPosition = position_millis;
-            for (StateChangeCallback cb : stateCallbacks) {
-                cb.playbackPositionChanged(position_millis);
-            }
-        }
+        Log.debug(this, "received position report: " + position_millis);
+        setCurrentPosition(position_millis);
+        prefetchChunks();
+        notifyPosition(position_millis);
     }
 
     @ClientCallable
     public void reportPlaybackStarted() {
         Log.message(this, "received playback state change to PLAYING");
         playbackState = PlaybackState.PLAYING;
+        setCurrentPosition(getPosition());
+        updatePositionTicks();
+        prefetchChunks();
         for (StateChangeCallback cb : stateCallbacks) {
             cb.playbackStateChanged(playbackState);
         }
@@ -104,7 +133,10 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
     @ClientCallable
     public void reportPlaybackPaused() {
         Log.message(this, "received playback state change to PAUSED");
+        int position = getPosition();
         playbackState = PlaybackState.PAUSED;
+        setCurrentPosition(position);
+        updatePositionTicks();
         for (StateChangeCallback cb : stateCallbacks) {
             cb.playbackStateChanged(playbackState);
         }
@@ -113,12 +145,72 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
     @ClientCallable
     public void reportPlaybackStopped() {
         Log.message(this, "received playback state change to STOPPED");
+        int position = getPosition();
         playbackState = PlaybackState.STOPPED;
+        setCurrentPosition(position);
+        updatePositionTicks();
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
         for (StateChangeCallback cb : stateCallbacks) {
             cb.playbackStateChanged(playbackState);
         }
     }
 
+    /**
+     * Take a position as the one playing now, from which later positions
+     * are extrapolated while playing
+     */
+    private synchronized void setCurrentPosition(int millis) {
+        currentPosition = millis;
+        positionNanos = System.nanoTime();
+        positionRate = playbackState == PlaybackState.PLAYING ? playbackSpeed : 0;
+    }
+
+    private void notifyPosition(int position) {
+        if (position != notifiedPosition) {
+            notifiedPosition = position;
+            for (StateChangeCallback cb : stateCallbacks) {
+                cb.playbackPositionChanged(position);
+            }
+        }
+    }
+
+    /**
+     * Start or stop the position ticks, which run while playing with
+     * adaptive reporting
+     */
+    private void updatePositionTicks() {
+        boolean tick = positionReporting == PositionReporting.ADAPTIVE && playbackState == PlaybackState.PLAYING
+                && getUI().isPresent();
+        if (tick && positionTicks == null) {
+            getUI().ifPresent(ui -> positionTicks = PositionTicker.schedule(() -> tickPosition(ui),
+                    reportPositionRepeatTime));
+        } else if (!tick && positionTicks != null) {
+            positionTicks.cancel(false);
+            positionTicks = null;
+        }
+    }
+
+    /**
+     * Prefetch and update the listeners from the extrapolated position. Runs
+     * on the ticker thread; listeners are called with the session locked.
+     */
+    private void tickPosition(UI ui) {
+        prefetchChunks();
+        if (!stateCallbacks.isEmpty()) {
+            try {
+                ui.access(() -> {
+                    if (playbackState == PlaybackState.PLAYING) {
+                        notifyPosition(getPosition());
+                    }
+                });
+            } catch (UIDetachedException e) {
+                // Ticks are stopped on detach
+            }
+        }
+    }
+
     @ClientCallable
     public void reportVolumeChange(double volume, double[] channelVolumes) {
         Log.message(this, "volume change reported from client");
@@ -142,31 +234,33 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
         return stream;
     }
 
+    /**
+     * Sets the Stream that supplies audio data to this AudioPlayer. Streams
+     * obtained from the {@link StreamRegistry} are kept registered while this
+     * player is attached.
+     * 
+     * @param stream
+     *            Stream to use
+     * @return the stream
+     */
     public Stream setStream(Stream stream) {
         unregisterStreamChunks();
+        releaseStream();
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
 
         this.stream = stream;
+        prefetcher = new ChunkPrefetcher(stream);
+        variantSelector = new VariantSelector(stream);
+        variantSelector.setPlaybackSpeed(playbackSpeed);
 
+        if (getUI().isPresent()) {
+            retainStream();
+        }
         registerStreamChunks();
+        updateChunkTable();
 
-        // TODO: prettify this verbose JSON serialization
-        JsonArray chunksJson = Json.createArray();
-        List<ChunkDescriptor> chunks = stream.getChunks();
-        for (int i = 0; i < chunks.size(); i++) {
-            ChunkDescriptor chunk = chunks.get(i);
-            JsonObject chunkDescriptor = Json.createObject();
-            chunkDescriptor.put("id", chunk.getId());
-            chunkDescriptor.put("startTimeOffset", chunk.getStartTimeOffset());
-            chunkDescriptor.put("endTimeOffset", chunk.getEndTimeOffset());
-            chunkDescriptor.put("leadInDuration", chunk.getLeadInDuration());
-            chunkDescriptor.put("leadOutDuration", chunk.getLeadOutDuration());
-            chunkDescriptor.put("overlapTime", chunk.getOverlapTime());
-            chunkDescriptor.put("startSampleOffset", chunk.getStartSampleOffset());
-            chunkDescriptor.put("endSampleOffset", chunk.getEndSampleOffset());
-            chunkDescriptor.put("url", chunk.getUrl().toASCIIString());
-            chunksJson.set(i, chunkDescriptor);
-        }
-        getElement().setPropertyJson("chunks", chunksJson);
         duration = stream.getDuration();
         getElement().setProperty("duration", duration);
         chunkTimeMillis = stream.getChunkLength();
@@ -174,52 +268,83 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
         return stream;
     }
 
-    private void unregisterStreamChunks() {
-        for (int i = 0; i < chunkRegistrations.size(); i++) {
-            chunkRegistrations.get(i).unregister();
+    private void updateChunkTable() {
+        String url = chunkRegistration.getResourceUri().toASCIIString() + "?" + ChunkResourceWriter.CHUNK_PARAMETER
+                + "=" + ChunkTable.ID_PLACEHOLDER;
+        getElement().setPropertyJson("chunkTable", ChunkTable.toJson(stream, url));
+    }
+
+    private void retainStream() {
+        if (!streamRetained && stream != null && stream.getRegistryKey() != null) {
+            StreamRegistry.getInstance().retain(stream);
+            streamRetained = true;
         }
+    }
 
-        chunkRegistrations.clear();
+    private void releaseStream() {
+        if (streamRetained) {
+            StreamRegistry.getInstance().release(stream);
+            streamRetained = false;
+        }
+    }
+
+    private void unregisterStreamChunks() {
+        if (chunkRegistration != null) {
+            chunkRegistration.unregister();
+            chunkRegistration = null;
+        }
     }
 
+    /**
+     * Register a single resource serving every chunk of the stream, selected
+     * by a query parameter
+     */
     private void registerStreamChunks() {
         if (this.stream == null) {
             return;
         }
 
-        List<ChunkDescriptor> chunks = this.stream.getChunks();
-        for (int i = 0; i < chunks.size(); i++) {
-            registerChunkResource(chunks.get(i));
-        }
+        StreamResource resource = new StreamResource("audio", new ChunkResourceWriter(stream, variantSelector));
+        StreamResourceRegistry registry = UI.getCurrent().getSession().getResourceRegistry();
+        chunkRegistration = registry.registerResource(resource);
     }
 
     @Override
     protected void onAttach(AttachEvent attachEvent) {
-        if (this.stream != null && this.chunkRegistrations.isEmpty()) {
+        retainStream();
+        updatePositionTicks();
+        if (!effects.isEmpty()) {
+            // The client starts without effects
+            sentEffectVersions.clear();
+            pendingEffects.addAll(effects.keySet());
+            effectUpdateScheduled = false;
+            scheduleEffectUpdate();
+        }
+        if (this.stream != null && this.chunkRegistration == null) {
             registerStreamChunks();
+            // Resources were registered again under new URLs
+            updateChunkTable();
         }
     }
 
     @Override
     protected void onDetach(DetachEvent detachEvent) {
         unregisterStreamChunks();
+        releaseStream();
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+        if (positionTicks != null) {
+            positionTicks.cancel(false);
+            positionTicks = null;
+        }
     }
 
-    private void registerChunkResource(ChunkDescriptor chunk) {
-        StreamResource resource = new StreamResource("audio",
-                (OutputStream outputStream, VaadinSession session) -> stream.getChunkData(chunk, bytes -> {
-                    try {
-                        outputStream.write(bytes);
-                        outputStream.flush();
-                        outputStream.close();
-                    } catch (IOException e) {
-                        Log.message(this, "could not register audio chunk with id: " + chunk.getId());
-                    }
-                }));
-        StreamResourceRegistry registry = UI.getCurrent().getSession().getResourceRegistry();
-        StreamRegistration registration = registry.registerResource(resource);
-        chunkRegistrations.add(registration);
-        chunk.setUrl(registration.getResourceUri());
+    private void prefetchChunks() {
+        if (prefetcher != null) {
+            prefetcher.prefetch(getPosition(), playbackSpeed, getNumberChunksToPrefetch(),
+                    variantSelector.getVariant());
+        }
     }
 
     /**
@@ -232,21 +357,29 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
     }
 
     /**
-     * Gets current audio players time position.
+     * Gets current audio players time position. While playing, this is
+     * extrapolated from the last position reported by the client and the
+     * playback speed.
      * 
      * @return int milliseconds
      */
-    public int getPosition() {
-        return currentPosition;
+    public synchronized int getPosition() {
+        if (positionRate == 0) {
+            return currentPosition;
+        }
+        long elapsedMillis = (System.nanoTime() - positionNanos) / 1000000;
+        long position = currentPosition + Math.round(elapsedMillis * positionRate);
+        return (int) Math.min(position, stream != null ? stream.getDuration() : position);
     }
 
     public void setPosition(int millis) {
-        if (millis == currentPosition) {
+        if (millis == getPosition()) {
             // Avoid setting the same position again loopback
             return;
         }
 
-        currentPosition = millis;
+        setCurrentPosition(millis);
+        prefetchChunks();
         getElement().callFunction("setPlaybackPosition", millis);
         Log.message(AudioPlayer.this, "set playback position: " + millis);
     }
@@ -355,10 +488,63 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
      *            speed ratio
      */
     public void setPlaybackSpeed(double playbackSpeed) {
+        int position = getPosition();
+        this.playbackSpeed = playbackSpeed;
+        // Extrapolate at the new speed from here on
+        setCurrentPosition(position);
+        variantSelector.setPlaybackSpeed(playbackSpeed);
         getElement().callFunction("setPlaybackSpeed", playbackSpeed);
         Log.message(AudioPlayer.this, "setting playback speed to " + playbackSpeed);
     }
 
+    /**
+     * Gets the speed at which the audio is played.
+     * 
+     * @return speed ratio
+     */
+    public double getPlaybackSpeed() {
+        return playbackSpeed;
+    }
+
+    /**
+     * Sets how the client reports the playback position. With
+     * {@link PositionReporting#ADAPTIVE}, the client only calls the server on
+     * playback state changes and when its position drifts from the
+     * extrapolated one by more than the drift tolerance. Position listeners
+     * are then updated every {@code reportPositionRepeatTime} milliseconds
+     * from a shared server-side scheduler, with the session locked; their UI
+     * changes reach the client with the next response or push.
+     * 
+     * @param positionReporting
+     *            reporting mode, {@link PositionReporting#INTERVAL} by default
+     */
+    public void setPositionReporting(PositionReporting positionReporting) {
+        this.positionReporting = positionReporting;
+        getElement().setProperty("positionReporting", positionReporting.name());
+        updatePositionTicks();
+    }
+
+    public PositionReporting getPositionReporting() {
+        return positionReporting;
+    }
+
+    /**
+     * Sets how far the client's playback position may drift from the
+     * extrapolated position before the client reports it, with adaptive
+     * position reporting.
+     * 
+     * @param millis
+     *            drift tolerance in milliseconds, 250 by default
+     */
+    public void setPositionDriftTolerance(int millis) {
+        this.positionDriftTolerance = millis;
+        getElement().setProperty("positionDriftTolerance", millis);
+    }
+
+    public int getPositionDriftTolerance() {
+        return positionDriftTolerance;
+    }
+
     /**
      * Sets the spread of total gain (volume) between the left and right channels.
      * -1 is to only play left channel.
@@ -377,7 +563,8 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
      * @param numChunksPreload
      */
     public void setNumberChunksToPreload(int numChunksPreload) {
-        numChunksPreload = numChunksPreload;
+        this.numChunksPreload = numChunksPreload;
+        getElement().setProperty("numChunksPreload", numChunksPreload);
     }
 
     /**
@@ -389,6 +576,52 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
         return numChunksPreload;
     }
 
+    /**
+     * Sets the number of audio chunks the server encodes ahead of the current
+     * playback position, so that they are ready when the client requests
+     * them. Faster playback speeds prefetch proportionally more chunks.
+     * 
+     * @param numChunksPrefetch
+     *            number of chunks, 0 to disable, or a negative value to
+     *            follow {@link #getNumberChunksToPreload()} (the default)
+     */
+    public void setNumberChunksToPrefetch(int numChunksPrefetch) {
+        this.numChunksPrefetch = numChunksPrefetch;
+    }
+
+    /**
+     * Gets the number of audio chunks the server encodes ahead of the current
+     * playback position. Unless set, this is the number of chunks to preload,
+     * but at least the next chunk.
+     * 
+     * @return number of chunks
+     */
+    public int getNumberChunksToPrefetch() {
+        return numChunksPrefetch >= 0 ? numChunksPrefetch : Math.max(1, numChunksPreload);
+    }
+
+    /**
+     * Gets the variant of the stream currently sent to this player's client.
+     * With several variants, the player picks the one the client's measured
+     * download speed can sustain, switching between chunks.
+     * 
+     * @return variant index, 0 being the lowest quality
+     * @see Stream#setVariants(Encoder...)
+     */
+    public int getStreamVariant() {
+        return variantSelector.getVariant();
+    }
+
+    /**
+     * Gets the download speed to this player's client, as measured while
+     * sending it audio chunks.
+     * 
+     * @return bytes per second, or -1 if not yet measured
+     */
+    public double getMeasuredThroughput() {
+        return variantSelector.getThroughput();
+    }
+
     protected ChunkDescriptor getChunkDescriptor(int chunkId) {
         // TODO: return chunk descriptor
         return null;
@@ -417,44 +650,101 @@ public class AudioPlayer extends PolymerTemplate<TemplateModel> {
     // =========================================================================
 
     /**
-     * Add effect immediately to the audio player.
+     * Add an effect to the audio player. Adding an effect again updates it.
      * 
      * @param effect
      *            Effect to add
      */
     public void addEffect(Effect effect) {
-        // TODO: update effect if it already exists
-        effects.add(effect.getSharedEffectObject());
+        if (effects.put(effect.getID(), effect) == null) {
+            Log.message(AudioPlayer.this, "adding effect: " + effect.getName());
+        }
+        pendingEffects.add(effect.getID());
+        scheduleEffectUpdate();
     }
 
     /**
-     * Removes effect immediately from audio player.
+     * Removes effect from the audio player.
      * 
      * @param effect
      *            Effect to remove
      */
     public void removeEffect(Effect effect) {
-        // TODO: optimize removing effects so we don't have to loop
-        for (SharedEffect e : effects) {
-            if (effect.getID().equals(e.getID())) {
-                Log.message(AudioPlayer.this, "removing effect: " + e.getName().name());
-                effects.remove(e);
-            }
+        if (effects.remove(effect.getID()) != null) {
+            Log.message(AudioPlayer.this, "removing effect: " + effect.getName());
+            pendingEffects.add(effect.getID());
+            scheduleEffectUpdate();
         }
     }
 
     /**
-     * Updates properties of the effect and passes the changes to the client side.
+     * Passes the changed parameters of an effect to the client side. Changes
+     * made during one server round trip are sent together, before the
+     * response, so this can be called on every change of e.g. a slider.
      * 
      * @param effect
      *            Effect to update
      */
     public void updateEffect(Effect effect) {
-        for (SharedEffect e : effects) {
-            if (effect.getID().equals(e.getID())) {
-                Log.message(AudioPlayer.this, "updating effect: " + e.getName().name());
-                e.setProperties(effect.getSharedEffectObject().getProperties());
+        if (effects.containsKey(effect.getID())) {
+            pendingEffects.add(effect.getID());
+            scheduleEffectUpdate();
+        }
+    }
+
+    /**
+     * Gets the effects of the audio player.
+     * 
+     * @return effects in the order they were added
+     */
+    public Collection<Effect> getEffects() {
+        return Collections.unmodifiableCollection(effects.values());
+    }
+
+    private void scheduleEffectUpdate() {
+        if (effectUpdateScheduled) {
+            return;
+        }
+        // Detached players send every effect when attached
+        getUI().ifPresent(ui -> {
+            effectUpdateScheduled = true;
+            ui.beforeClientResponse(this, context -> sendEffectUpdates());
+        });
+    }
+
+    /**
+     * Send the parameters changed since the last update of each pending
+     * effect in one call, keyed by effect id. New effects also carry their
+     * name, and removed effects are sent as null.
+     */
+    private void sendEffectUpdates() {
+        effectUpdateScheduled = false;
+        JsonObject updates = Json.createObject();
+        boolean changed = false;
+        for (String id : pendingEffects) {
+            Effect effect = effects.get(id);
+            if (effect == null) {
+                if (sentEffectVersions.remove(id) != null) {
+                    updates.put(id, Json.createNull());
+                    changed = true;
+                }
+                continue;
             }
+            Long sent = sentEffectVersions.get(id);
+            if (sent != null && sent == effect.getVersion()) {
+                continue;
+            }
+            JsonObject parameters = Json.createObject();
+            if (sent == null && effect.getName() != null) {
+                parameters.put("name", effect.getName().name());
+            }
+            sentEffectVersions.put(id, effect.writeParameters(parameters, sent == null ? 0 : sent));
+            updates.put(id, parameters);
+            changed = true;
+        }
+        pendingEffects.clear();
+        if (changed) {
+            getElement().executeJs("this.updateEffects($0)", updates);
         }
     }
 
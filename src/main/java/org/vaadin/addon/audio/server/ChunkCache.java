@@ -0,0 +1,399 @@
+package org.vaadin.addon.audio.server;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Byte-size bounded LRU cache of encoded chunk data.
+ *
+ * A single shared instance, returned by {@link #getShared()}, is used by all
+ * {@link Stream}s unless another cache is set with
+ * {@link Stream#setChunkCache(ChunkCache)}. Entries are keyed by the identity
+ * of the source PCM data, the encoder settings and the chunk's sample range,
+ * so players in different sessions that play the same recording share the
+ * encoded chunks.
+ *
+ * The shared cache holds {@code audioplayer.cache.maxBytes} bytes (64 MiB by
+ * default) using the storage mode given by {@code audioplayer.cache.storage}
+ * (HEAP, SOFT or OFF_HEAP).
+ */
+public class ChunkCache {
+
+    public static final String MAX_BYTES_PROPERTY = "audioplayer.cache.maxBytes";
+    public static final String STORAGE_PROPERTY = "audioplayer.cache.storage";
+
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * How cached bytes are held in memory.
+     */
+    public enum Storage {
+        /** Plain byte arrays on the heap */
+        HEAP,
+        /** Byte arrays behind soft references, released under memory pressure */
+        SOFT,
+        /** Direct buffers outside the heap, copied out on each hit */
+        OFF_HEAP
+    }
+
+    /**
+     * Cache key identifying one encoded chunk.
+     */
+    public static final class Key {
+        private final String sourceId;
+        private final String encoderKey;
+        private final int startSampleOffset;
+        private final int endSampleOffset;
+
+        public Key(String sourceId, String encoderKey, int startSampleOffset, int endSampleOffset) {
+            this.sourceId = sourceId;
+            this.encoderKey = encoderKey;
+            this.startSampleOffset = startSampleOffset;
+            this.endSampleOffset = endSampleOffset;
+        }
+
+        public String getSourceId() {
+            return sourceId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return startSampleOffset == k.startSampleOffset && endSampleOffset == k.endSampleOffset
+                    && sourceId.equals(k.sourceId) && encoderKey.equals(k.encoderKey);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = sourceId.hashCode();
+            h = 31 * h + encoderKey.hashCode();
+            h = 31 * h + startSampleOffset;
+            h = 31 * h + endSampleOffset;
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + encoderKey + " " + startSampleOffset + "-" + endSampleOffset + " of " + sourceId + "]";
+        }
+    }
+
+    private static final class SoftEntry extends SoftReference<byte[]> {
+        final Key key;
+
+        SoftEntry(Key key, byte[] bytes, ReferenceQueue<byte[]> queue) {
+            super(bytes, queue);
+            this.key = key;
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final int size;
+
+        Entry(Object value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static ChunkCache shared = null;
+
+    private final long maxBytes;
+    private final Storage storage;
+
+    // Guarded by this
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    private final ReferenceQueue<byte[]> clearedEntries = new ReferenceQueue<>();
+    private final ConcurrentMap<Key, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBytes
+     *            maximum total size of cached chunk data in bytes
+     * @param storage
+     *            how to hold the cached bytes
+     */
+    public ChunkCache(long maxBytes, Storage storage) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.storage = storage;
+    }
+
+    /**
+     * Get the process-wide cache, creating it from the system properties on
+     * first use.
+     *
+     * @return shared cache instance
+     */
+    public static synchronized ChunkCache getShared() {
+        if (shared == null) {
+            long max = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+            Storage storage = Storage.valueOf(System.getProperty(STORAGE_PROPERTY, Storage.HEAP.name()));
+            shared = new ChunkCache(max, storage);
+        }
+        return shared;
+    }
+
+    /**
+     * Replace the process-wide cache. Streams pick up the new instance on
+     * their next chunk request.
+     *
+     * @param cache
+     *            new shared cache
+     */
+    public static synchronized void setShared(ChunkCache cache) {
+        shared = cache;
+    }
+
+    /**
+     * Get cached bytes for a chunk, or load them. Concurrent requests for a
+     * chunk that is being loaded share the same load.
+     *
+     * @param key
+     *            chunk key
+     * @param loader
+     *            starts loading the chunk if it is neither cached nor loading
+     * @return future completed with the chunk bytes
+     */
+    public CompletableFuture<byte[]> get(final Key key, Supplier<CompletableFuture<byte[]>> loader) {
+        byte[] cached = get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<byte[]> pending = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, pending);
+        if (existing != null) {
+            hits.incrementAndGet();
+            return existing;
+        }
+        misses.incrementAndGet();
+
+        final CompletableFuture<byte[]> load;
+        try {
+            load = loader.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, pending);
+            pending.completeExceptionally(e);
+            return pending;
+        }
+        load.whenComplete((bytes, error) -> {
+            if (error == null) {
+                put(key, bytes);
+            }
+            inFlight.remove(key, pending);
+            if (error != null) {
+                pending.completeExceptionally(error);
+            } else {
+                pending.complete(bytes);
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Get cached bytes for a chunk without loading it.
+     *
+     * @param key
+     *            chunk key
+     * @return cached bytes, or null on a miss
+     */
+    public byte[] get(Key key) {
+        byte[] bytes = null;
+        synchronized (this) {
+            purgeCleared();
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                bytes = read(entry);
+                if (bytes == null) {
+                    // Soft reference was cleared but not yet enqueued
+                    remove(key);
+                }
+            }
+        }
+        if (bytes != null) {
+            hits.incrementAndGet();
+        }
+        return bytes;
+    }
+
+    /**
+     * Store bytes for a chunk, evicting least recently used chunks as needed.
+     * Chunks larger than the cache capacity are not stored.
+     *
+     * @param key
+     *            chunk key
+     * @param bytes
+     *            encoded chunk data
+     */
+    public synchronized void put(Key key, byte[] bytes) {
+        if (bytes == null || bytes.length > maxBytes) {
+            return;
+        }
+        purgeCleared();
+        remove(key);
+        entries.put(key, new Entry(store(key, bytes), bytes.length));
+        size += bytes.length;
+
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.size;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove all chunks of a source from the cache.
+     *
+     * @param sourceId
+     *            source identity as returned by {@link Stream#getSourceId()}
+     */
+    public synchronized void invalidate(String sourceId) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().sourceId.equals(sourceId)) {
+                it.remove();
+                size -= e.getValue().size;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a chunk is cached, without counting a hit or changing
+     * its eviction order.
+     *
+     * @param key
+     *            chunk key
+     * @return true if the chunk is cached
+     */
+    public synchronized boolean contains(Key key) {
+        purgeCleared();
+        return entries.containsKey(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get the number of bytes currently held in the cache
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of requests served without encoding
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests that had to encode the chunk
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of chunks dropped to stay within the size bound
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[ChunkCache " + storage + " size: " + getSize() + "/" + maxBytes + " bytes, entries: "
+                + getEntryCount() + ", hits: " + getHitCount() + ", misses: " + getMissCount() + ", evictions: "
+                + getEvictionCount() + "]";
+    }
+
+    private Object store(Key key, byte[] bytes) {
+        switch (storage) {
+        case SOFT:
+            return new SoftEntry(key, bytes, clearedEntries);
+        case OFF_HEAP:
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes);
+            return direct;
+        default:
+            return bytes;
+        }
+    }
+
+    private static byte[] read(Entry entry) {
+        if (entry.value instanceof SoftEntry) {
+            return ((SoftEntry) entry.value).get();
+        }
+        if (entry.value instanceof ByteBuffer) {
+            ByteBuffer direct = ((ByteBuffer) entry.value).duplicate();
+            byte[] bytes = new byte[entry.size];
+            direct.position(0);
+            direct.get(bytes);
+            return bytes;
+        }
+        return (byte[]) entry.value;
+    }
+
+    private void remove(Key key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            size -= old.size;
+        }
+    }
+
+    private void purgeCleared() {
+        SoftEntry cleared;
+        while ((cleared = (SoftEntry) clearedEntries.poll()) != null) {
+            Entry current = entries.get(cleared.key);
+            if (current != null && current.value == cleared) {
+                remove(cleared.key);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.shared.ChunkDescriptor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup table over the chunks of a {@link Stream}. Chunk boundaries are
+ * kept in primitive arrays, so lookups by time or sample offset are binary
+ * searches that cost the same for any stream length.
+ *
+ * Chunks must be ordered by start time and sample offset.
+ */
+final class ChunkIndex {
+
+    private final int[] startTimes;
+    private final int[] endTimes;
+    private final int[] startSamples;
+    private final int[] endSamples;
+
+    // null when every chunk id equals its index
+    private final Map<Integer, Integer> indexById;
+
+    ChunkIndex(List<ChunkDescriptor> chunks) {
+        int count = chunks.size();
+        startTimes = new int[count];
+        endTimes = new int[count];
+        startSamples = new int[count];
+        endSamples = new int[count];
+
+        boolean idIsIndex = true;
+        for (int i = 0; i < count; i++) {
+            ChunkDescriptor chunk = chunks.get(i);
+            startTimes[i] = chunk.getStartTimeOffset();
+            endTimes[i] = chunk.getEndTimeOffset();
+            startSamples[i] = chunk.getStartSampleOffset();
+            endSamples[i] = chunk.getEndSampleOffset();
+            idIsIndex &= chunk.getId() == i;
+        }
+
+        if (idIsIndex) {
+            indexById = null;
+        } else {
+            indexById = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                indexById.put(chunks.get(i).getId(), i);
+            }
+        }
+    }
+
+    int size() {
+        return startTimes.length;
+    }
+
+    /**
+     * Get the index of the chunk playing at a time. The end of the last chunk
+     * belongs to the last chunk.
+     *
+     * @param positionMillis
+     *            time in milliseconds
+     * @return chunk index, or -1 if the time is outside the stream
+     */
+    int indexOfTime(int positionMillis) {
+        int last = size() - 1;
+        int i = floor(startTimes, positionMillis);
+        if (i < 0) {
+            return -1;
+        }
+        if (positionMillis < endTimes[i] || (i == last && positionMillis == endTimes[i])) {
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the index of the chunk whose playback range contains a sample
+     * offset. Where chunks overlap, this is the later chunk.
+     *
+     * @param sampleOffset
+     *            sample offset
+     * @return chunk index, or -1 if the offset is outside the stream
+     */
+    int indexOfSample(int sampleOffset) {
+        int i = floor(startSamples, sampleOffset);
+        if (i < 0 || sampleOffset >= endSamples[i]) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Get the index of a chunk by its id
+     *
+     * @param chunkId
+     *            chunk id
+     * @return chunk index, or -1 if there is no such chunk
+     */
+    int indexOfId(int chunkId) {
+        if (indexById == null) {
+            return chunkId >= 0 && chunkId < size() ? chunkId : -1;
+        }
+        Integer index = indexById.get(chunkId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Find the last index whose value is at most key
+     */
+    private static int floor(int[] values, int key) {
+        int i = Arrays.binarySearch(values, key);
+        if (i < 0) {
+            return -i - 2;
+        }
+        // Skip to the last of equal values, e.g. empty chunks
+        while (i + 1 < values.length && values[i + 1] == key) {
+            i++;
+        }
+        return i;
+    }
+
+}
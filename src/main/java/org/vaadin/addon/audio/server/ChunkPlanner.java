@@ -0,0 +1,45 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.shared.ChunkDescriptor;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Strategy that splits the PCM data of a {@link Stream} into chunks. The
+ * planners package provides fixed length chunks, chunks growing from a short
+ * first chunk, and boundaries aligned to silence.
+ */
+public interface ChunkPlanner {
+
+    /**
+     * Plan the chunks of a stream. Chunks must cover the whole stream, be
+     * ordered by time and have consecutive ids starting from 0. Consecutive
+     * chunks may overlap in samples: the overlap is described by the lead-out
+     * duration, and the end time of a chunk is the start time of the next.
+     * 
+     * @param pcmBuffer
+     *            PCM data of the stream; read through a duplicate
+     * @param format
+     *            format of the PCM data
+     * @param sampleCount
+     *            number of samples in the stream
+     * @return chunk descriptors
+     */
+    List<ChunkDescriptor> planChunks(ByteBuffer pcmBuffer, PCMFormat format, int sampleCount);
+
+    /**
+     * Plan the chunks of a stream reading a PCM source. The default
+     * implementation reads the whole source.
+     * 
+     * @param source
+     *            PCM source of the stream
+     * @return chunk descriptors
+     */
+    default List<ChunkDescriptor> planChunks(PcmSource source) {
+        int sampleCount = source.getSampleCount();
+        return planChunks(source.read(0, sampleCount), source.getFormat(), sampleCount);
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.shared.ChunkDescriptor;
+import org.vaadin.addon.audio.shared.util.Log;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes the chunks ahead of a player's playhead into the {@link ChunkCache}
+ * before the client requests them.
+ *
+ * Prefetches run on the {@link EncodingExecutor#getWarmingPool() warming
+ * pool}. When the playhead jumps outside the prefetched range, or the player
+ * switches to another variant of the stream, the prefetches still queued are
+ * dropped before they encode anything.
+ */
+final class ChunkPrefetcher {
+
+    private final Stream stream;
+
+    // Incremented on seek; queued prefetches of older generations are skipped
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // Range of chunk indices prefetched in the current generation, guarded by
+    // this
+    private int currentChunk = -1;
+    private int lastPrefetched = -1;
+    private int currentVariant = -1;
+
+    ChunkPrefetcher(Stream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Prefetch the chunks following a playback position.
+     *
+     * @param positionMillis
+     *            playback position in milliseconds
+     * @param playbackSpeed
+     *            playback speed ratio; faster playback prefetches further
+     * @param chunkCount
+     *            number of chunks to keep ahead of the playhead at normal
+     *            speed
+     * @param variant
+     *            stream variant to prefetch
+     */
+    synchronized void prefetch(int positionMillis, double playbackSpeed, int chunkCount, int variant) {
+        if (stream.getChunkCache() == null || chunkCount <= 0) {
+            return;
+        }
+
+        List<ChunkDescriptor> chunks = stream.getChunks();
+        ChunkDescriptor current = stream.findChunk(Math.min(Math.max(0, positionMillis), stream.getDuration()));
+        if (current == null) {
+            return;
+        }
+        int index = stream.getChunkIndex(current);
+        if (index < currentChunk || index > lastPrefetched || variant != currentVariant) {
+            // Seek or variant switch, the pending prefetches are no longer needed
+            cancel();
+            lastPrefetched = index;
+        }
+        currentChunk = index;
+        currentVariant = variant;
+
+        int ahead = (int) Math.ceil(chunkCount * Math.max(1, playbackSpeed));
+        int last = Math.min(chunks.size() - 1, index + ahead);
+        for (int i = lastPrefetched + 1; i <= last; i++) {
+            schedule(chunks.get(i), variant);
+        }
+        lastPrefetched = Math.max(lastPrefetched, last);
+    }
+
+    /**
+     * Drop the prefetches that haven't started yet
+     */
+    synchronized void cancel() {
+        generation.incrementAndGet();
+        currentChunk = -1;
+        lastPrefetched = -1;
+        currentVariant = -1;
+    }
+
+    private void schedule(final ChunkDescriptor chunk, final int variant) {
+        if (stream.isChunkReady(chunk, variant)) {
+            return;
+        }
+        final int scheduledGeneration = generation.get();
+        try {
+            EncodingExecutor.getWarmingPool().execute(() -> {
+                if (generation.get() != scheduledGeneration) {
+                    return;
+                }
+                stream.loadChunk(chunk, variant).whenComplete((bytes, error) -> {
+                    if (error != null) {
+                        Log.warning(ChunkPrefetcher.class, "could not prefetch chunk " + chunk.getId());
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // The chunk is encoded when the client requests it
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package org.vaadin.addon.audio.server;
+
+import com.vaadin.flow.server.StreamResourceWriter;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinResponse;
+import com.vaadin.flow.server.VaadinSession;
+import org.vaadin.addon.audio.shared.ChunkDescriptor;
+import org.vaadin.addon.audio.shared.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves every chunk of a {@link Stream} from a single stream resource. The
+ * chunk is selected with the {@code chunk} query parameter, e.g.
+ * {@code <resource url>?chunk=12}.
+ *
+ * Single byte ranges requested with a {@code Range} header are answered with
+ * {@code 206 Partial Content}, or {@code 416 Range Not Satisfiable} when the
+ * range lies outside the chunk. Other requests get the whole chunk.
+ *
+ * When compression is enabled on the stream, clients that accept the
+ * {@code deflate} content coding get the compressed chunk, and ranges refer
+ * to the compressed bytes.
+ *
+ * If the stream has several encoder variants, each chunk is sent in the
+ * variant chosen by the player's {@link VariantSelector}, which learns from
+ * the time taken to write the chunks. Range requests for a chunk get the
+ * variant the chunk was last sent in, so resumed downloads stay consistent.
+ */
+@SuppressWarnings("serial")
+final class ChunkResourceWriter implements StreamResourceWriter {
+
+    static final String CHUNK_PARAMETER = "chunk";
+
+    private static final int SC_PARTIAL_CONTENT = 206;
+    private static final int SC_NOT_FOUND = 404;
+    private static final int SC_RANGE_NOT_SATISFIABLE = 416;
+
+    // Chunks whose variant is remembered for range requests
+    private static final int REMEMBERED_CHUNKS = 32;
+
+    private final Stream stream;
+    private final VariantSelector selector;
+    // Variant each recently sent chunk was sent in, by chunk id
+    private final Map<Integer, Integer> sentVariants = Collections
+            .synchronizedMap(new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                    return size() > REMEMBERED_CHUNKS;
+                }
+            });
+
+    ChunkResourceWriter(Stream stream, VariantSelector selector) {
+        this.stream = stream;
+        this.selector = selector;
+    }
+
+    @Override
+    public void accept(OutputStream out, VaadinSession session) throws IOException {
+        VaadinRequest request = VaadinRequest.getCurrent();
+        VaadinResponse response = VaadinResponse.getCurrent();
+
+        ChunkDescriptor chunk = findChunk(request.getParameter(CHUNK_PARAMETER));
+        if (chunk == null) {
+            response.setStatus(SC_NOT_FOUND);
+            return;
+        }
+
+        String rangeHeader = request.getHeader("Range");
+        Integer sentVariant = rangeHeader != null ? sentVariants.get(chunk.getId()) : null;
+        int variant = sentVariant != null ? sentVariant : selector.selectVariant();
+        sentVariants.put(chunk.getId(), variant);
+
+        try {
+            boolean compress = false;
+            if (stream.isCompressionEnabled()) {
+                compress = acceptsDeflate(request.getHeader("Accept-Encoding"));
+                response.setHeader("Vary", "Accept-Encoding");
+            }
+
+            byte[] bytes = null;
+            long length = compress ? -1 : stream.getEncodedLength(chunk, variant);
+            if (length < 0) {
+                bytes = stream.getChunkBytes(chunk, compress, variant);
+                length = bytes.length;
+            }
+            if (compress) {
+                response.setHeader("Content-Encoding", "deflate");
+            }
+            response.setHeader("Accept-Ranges", "bytes");
+
+            long[] range = parseRange(rangeHeader, length);
+            // Encoding is done, only the transfer to the client is timed
+            long start = System.nanoTime();
+            long written = 0;
+            if (range == null) {
+                response.setContentLength((int) length);
+                write(chunk, bytes, out, variant);
+                written = length;
+            } else if (range.length == 0) {
+                response.setStatus(SC_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + length);
+            } else {
+                long first = range[0];
+                long last = range[1];
+                response.setStatus(SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+                response.setContentLength((int) (last - first + 1));
+                if (bytes != null) {
+                    out.write(bytes, (int) first, (int) (last - first + 1));
+                } else {
+                    write(chunk, null, new RangeOutputStream(out, first, last), variant);
+                }
+                written = last - first + 1;
+            }
+            out.flush();
+            selector.addTransfer(written, System.nanoTime() - start);
+        } catch (IOException e) {
+            Log.error(this, "could not write audio chunk with id: " + chunk.getId());
+            throw e;
+        }
+    }
+
+    private void write(ChunkDescriptor chunk, byte[] bytes, OutputStream out, int variant) throws IOException {
+        if (bytes != null) {
+            out.write(bytes);
+        } else {
+            stream.writeChunkData(chunk, out, variant);
+        }
+    }
+
+    private ChunkDescriptor findChunk(String id) {
+        if (id == null) {
+            return null;
+        }
+        try {
+            return stream.getChunkById(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tell whether an Accept-Encoding header allows the deflate content
+     * coding
+     *
+     * @param header
+     *            Accept-Encoding header value, may be null
+     * @return true if deflate is acceptable
+     */
+    static boolean acceptsDeflate(String header) {
+        if (header == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String coding : header.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2).trim()) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (name.equals("deflate")) {
+                return !refused;
+            }
+            if (name.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Parse a Range header holding a single byte range.
+     *
+     * @param header
+     *            Range header value, may be null
+     * @param length
+     *            length of the representation
+     * @return first and last byte of the range, an empty array if the range
+     *         can't be satisfied, or null to ignore the header and send the
+     *         whole chunk
+     */
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            // Absent, another unit, or multiple ranges
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            if (start.isEmpty()) {
+                // Suffix range, the last n bytes
+                long suffix = Long.parseLong(end);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(start);
+                last = length - 1;
+                if (!end.isEmpty()) {
+                    long requestedLast = Long.parseLong(end);
+                    if (requestedLast < first) {
+                        // Syntactically invalid range
+                        return null;
+                    }
+                    last = Math.min(requestedLast, last);
+                }
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first >= length) {
+                return new long[0];
+            }
+            return new long[] { first, last };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Passes on only the bytes of a range of what is written to it
+     */
+    private static final class RangeOutputStream extends FilterOutputStream {
+
+        private final long first;
+        private final long last;
+        private long position = 0;
+
+        RangeOutputStream(OutputStream out, long first, long last) {
+            super(out);
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (position >= first && position <= last) {
+                out.write(b);
+            }
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long from = Math.max(position, first);
+            long to = Math.min(position + len - 1, last);
+            if (from <= to) {
+                out.write(b, off + (int) (from - position), (int) (to - from + 1));
+            }
+            position += len;
+        }
+
+        @Override
+        public void close() {
+            // The response stream is closed by the caller
+        }
+    }
+
+}
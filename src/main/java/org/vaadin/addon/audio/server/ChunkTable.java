@@ -0,0 +1,139 @@
+package org.vaadin.addon.audio.server;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import org.vaadin.addon.audio.shared.ChunkDescriptor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact JSON form of the chunk table of a {@link Stream}, expanded on demand
+ * by the client side {@code VaadinAudioPlayer.ChunkTable}.
+ *
+ * Only the chunk count, the most common chunk length and overlap in samples,
+ * and a chunk URL template are sent. A regular chunk is derived from the chunk
+ * before it: it starts where the previous chunk's playback ends, plays for the
+ * common length and runs on by the overlap, and its id is its index. Chunks
+ * that don't follow from this, such as the last one, are listed in full.
+ *
+ * The table also names the filter the client must reverse on chunk data, if
+ * the stream uses one.
+ */
+final class ChunkTable {
+
+    /** Placeholder for the chunk id in the URL template */
+    static final String ID_PLACEHOLDER = "{id}";
+
+    private ChunkTable() {
+    }
+
+    /**
+     * Build the compact chunk table of a stream.
+     *
+     * @param stream
+     *            stream to describe
+     * @param urlTemplate
+     *            chunk URL, with {@link #ID_PLACEHOLDER} in place of the
+     *            chunk id
+     * @return table JSON
+     */
+    static JsonObject toJson(Stream stream, String urlTemplate) {
+        List<ChunkDescriptor> chunks = stream.getChunks();
+        int sampleRate = stream.getInputFormat().getSampleRate();
+        int sampleCount = stream.getSampleCount();
+        int chunkSamples = mostCommonChunkSamples(chunks);
+        int overlapSamples = mostCommonOverlapSamples(chunks);
+        int overlapTime = chunks.isEmpty() ? 0 : chunks.get(0).getOverlapTime();
+
+        JsonArray irregular = Json.createArray();
+        int start = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            ChunkDescriptor chunk = chunks.get(i);
+            int to = Math.min(start + chunkSamples, sampleCount);
+            int end = Math.min(to + overlapSamples, sampleCount);
+            int endTime = toMillis(to, sampleRate);
+            boolean regular = chunk.getId() == i
+                    && chunk.getStartSampleOffset() == start
+                    && chunk.getEndSampleOffset() == end
+                    && chunk.getStartTimeOffset() == toMillis(start, sampleRate)
+                    && chunk.getEndTimeOffset() == endTime
+                    && chunk.getLeadInDuration() == 0
+                    && chunk.getLeadOutDuration() == toMillis(end, sampleRate) - endTime
+                    && chunk.getOverlapTime() == overlapTime;
+            if (!regular) {
+                irregular.set(irregular.length(), toJson(i, chunk));
+            }
+            // The next chunk starts where this one stops playing
+            start = chunk.getEndSampleOffset() - overlapSamples;
+        }
+
+        JsonObject table = Json.createObject();
+        table.put("count", chunks.size());
+        table.put("url", urlTemplate);
+        table.put("sampleRate", sampleRate);
+        table.put("sampleCount", sampleCount);
+        table.put("chunkSamples", chunkSamples);
+        table.put("overlapSamples", overlapSamples);
+        table.put("overlapTime", overlapTime);
+        table.put("irregular", irregular);
+        if (stream.isPredictionFilterEnabled()) {
+            table.put("filter", "prediction");
+        }
+        return table;
+    }
+
+    private static JsonArray toJson(int index, ChunkDescriptor chunk) {
+        JsonArray entry = Json.createArray();
+        entry.set(0, index);
+        entry.set(1, chunk.getId());
+        entry.set(2, chunk.getStartTimeOffset());
+        entry.set(3, chunk.getEndTimeOffset());
+        entry.set(4, chunk.getLeadInDuration());
+        entry.set(5, chunk.getLeadOutDuration());
+        entry.set(6, chunk.getOverlapTime());
+        entry.set(7, chunk.getStartSampleOffset());
+        entry.set(8, chunk.getEndSampleOffset());
+        return entry;
+    }
+
+    private static int mostCommonChunkSamples(List<ChunkDescriptor> chunks) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i + 1 < chunks.size(); i++) {
+            counts.merge(chunks.get(i + 1).getStartSampleOffset() - chunks.get(i).getStartSampleOffset(), 1,
+                    Integer::sum);
+        }
+        if (counts.isEmpty()) {
+            return chunks.isEmpty() ? 0 : chunks.get(0).getEndSampleOffset() - chunks.get(0).getStartSampleOffset();
+        }
+        return mostCommon(counts);
+    }
+
+    private static int mostCommonOverlapSamples(List<ChunkDescriptor> chunks) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i + 1 < chunks.size(); i++) {
+            counts.merge(chunks.get(i).getEndSampleOffset() - chunks.get(i + 1).getStartSampleOffset(), 1,
+                    Integer::sum);
+        }
+        return counts.isEmpty() ? 0 : Math.max(0, mostCommon(counts));
+    }
+
+    private static int mostCommon(Map<Integer, Integer> counts) {
+        int value = 0;
+        int count = -1;
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            if (e.getValue() > count) {
+                value = e.getKey();
+                count = e.getValue();
+            }
+        }
+        return value;
+    }
+
+    private static int toMillis(int samples, int sampleRate) {
+        return (int) ((long) samples * 1000 / sampleRate);
+    }
+
+}
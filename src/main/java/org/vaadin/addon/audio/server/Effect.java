@@ -1,21 +1,153 @@
 package org.vaadin.addon.audio.server;
 
+import elemental.json.JsonObject;
+import org.vaadin.addon.audio.shared.PCMFormat;
 import org.vaadin.addon.audio.shared.SharedEffect;
+import org.vaadin.addon.audio.shared.SharedEffect.EffectName;
+import org.vaadin.addon.audio.shared.SharedEffectProperty;
+import org.vaadin.addon.audio.shared.SharedEffectProperty.PropertyName;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
+/**
+ * Audio effect with numeric parameters. Every change of a parameter is
+ * stamped with a new version of the effect, so that each {@link AudioPlayer}
+ * sends its client only the parameters changed since its last update.
+ */
 public abstract class Effect {
 
+    private static final PropertyName[] PROPERTIES = PropertyName.values();
+
     private UUID id;
+    private final EffectName name;
+
+    // Value and version of each parameter, by property ordinal; a version
+    // of 0 marks a parameter the effect doesn't have
+    private final double[] values = new double[PROPERTIES.length];
+    private final long[] versions = new long[PROPERTIES.length];
+    private long version = 0;
 
     public Effect() {
+        this(null);
+    }
+
+    /**
+     * @param name
+     *            name of the effect on the client
+     */
+    protected Effect(EffectName name) {
         id = UUID.randomUUID();
+        this.name = name;
     }
 
     public String getID() {
         return id.toString();
     }
 
-    public abstract SharedEffect getSharedEffectObject();
+    /**
+     * Get the name of the effect on the client
+     *
+     * @return effect name, or null for effects not known to the client
+     */
+    public EffectName getName() {
+        return name;
+    }
+
+    /**
+     * Get the version of the parameters, incremented by every change
+     *
+     * @return parameter version, 0 if the effect has no parameters
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Set a parameter. Setting the current value doesn't count as a change.
+     *
+     * @param property
+     *            parameter to set
+     * @param value
+     *            new value
+     */
+    protected synchronized void setParameter(PropertyName property, double value) {
+        int i = property.ordinal();
+        if (versions[i] == 0 || Double.compare(values[i], value) != 0) {
+            values[i] = value;
+            versions[i] = ++version;
+        }
+    }
+
+    /**
+     * Get a parameter
+     *
+     * @param property
+     *            parameter to get
+     * @return the value, 0 if the parameter was never set
+     */
+    protected synchronized double getParameter(PropertyName property) {
+        return values[property.ordinal()];
+    }
+
+    /**
+     * Write the parameters changed after a version as numbers, keyed by
+     * their property names
+     *
+     * @param target
+     *            object to write the parameters to
+     * @param sinceVersion
+     *            version last written, 0 to write every parameter
+     * @return the version written
+     */
+    public synchronized long writeParameters(JsonObject target, long sinceVersion) {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (versions[i] > sinceVersion) {
+                target.put(PROPERTIES[i].name(), values[i]);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Get the parameters in the string form of the shared effect model.
+     * Prefer {@link #writeParameters(JsonObject, long)}, which writes only
+     * the changed parameters and doesn't format them.
+     *
+     * @return shared effect holding every parameter
+     */
+    public synchronized SharedEffect getSharedEffectObject() {
+        SharedEffect shared = new SharedEffect(getID(), name);
+        List<SharedEffectProperty> props = new ArrayList<SharedEffectProperty>();
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (versions[i] != 0) {
+                props.add(new SharedEffectProperty(PROPERTIES[i], formatParameter(PROPERTIES[i], values[i])));
+            }
+        }
+        shared.setProperties(props);
+        return shared;
+    }
+
+    /**
+     * Format a parameter for the shared effect model
+     */
+    protected String formatParameter(PropertyName property, double value) {
+        return Double.toString(value);
+    }
+
+    /**
+     * Create a processor rendering this effect on the server with its current
+     * parameters, for {@link Stream#setEffects(Effect...)}. Later changes to
+     * the parameters don't affect the processor.
+     *
+     * @param format
+     *            format of the PCM data to process
+     * @return processor, or null if the effect leaves the audio unchanged or
+     *         is only rendered by the client
+     */
+    public EffectProcessor createProcessor(PCMFormat format) {
+        return null;
+    }
 
 }
@@ -0,0 +1,55 @@
+package org.vaadin.addon.audio.server;
+
+/**
+ * Server side rendering of an {@link Effect}, applied to the PCM data of a
+ * stream before it is encoded. Processors work in place on blocks of float
+ * samples in the range [-1, 1], and keep their state, such as filter memory,
+ * from one block to the next.
+ *
+ * A processor is used by one thread at a time and doesn't allocate while
+ * processing; {@link #copy()} creates the processors of other threads.
+ */
+public interface EffectProcessor {
+
+    /**
+     * Get a key identifying the effect and its parameters. Chunks processed
+     * by equal keys are shared through the {@link ChunkCache}.
+     *
+     * @return processor key
+     */
+    String getKey();
+
+    /**
+     * Get the number of samples to process before the first sample whose
+     * output is used, for the state to reach what it would be had the
+     * processor started at the beginning of the stream
+     *
+     * @return number of samples, 0 for stateless processors
+     */
+    int getSettlingTime();
+
+    /**
+     * Return to the initial state, as if no samples had been processed
+     */
+    void reset();
+
+    /**
+     * Process a block of samples in place
+     *
+     * @param samples
+     *            one array per channel
+     * @param length
+     *            number of samples in the block
+     * @param position
+     *            index of the block's first sample in the stream
+     */
+    void process(float[][] samples, int length, long position);
+
+    /**
+     * Create a processor with the same parameters, in the initial state
+     *
+     * @return new processor
+     */
+    EffectProcessor copy();
+
+}
@@ -1,35 +1,76 @@
 package org.vaadin.addon.audio.server;
 
+import org.vaadin.addon.audio.server.sources.BufferPcmSource;
 import org.vaadin.addon.audio.shared.PCMFormat;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
 /**
  * Abstract base class for media encoders.
  * Encoders take in PCM data and output another form of encoded audio data.
  * Encoders are used to provide chunks of encoded audio from the server to the client.
+ * 
+ * Chunks are encoded on the shared {@link EncodingExecutor}, so encode may be
+ * called concurrently and must not modify the input buffer's position or limit.
  */
 public abstract class Encoder {
 
-    private ByteBuffer inputBuffer;
-    private PCMFormat inputFormat;
+    private PcmSource input;
 
     public Encoder() {
         // ?
     }
 
     protected void setInput(ByteBuffer pcmBytes, PCMFormat inputFormat) {
-        this.inputBuffer = pcmBytes;
-        this.inputFormat = inputFormat;
+        setInput(new BufferPcmSource(pcmBytes, inputFormat));
+    }
+
+    /**
+     * Set the source of the PCM data to encode
+     * 
+     * @param source
+     *            PCM source of the stream
+     */
+    protected void setInput(PcmSource source) {
+        this.input = source;
+    }
+
+    /**
+     * Get the source of the PCM data to encode
+     * 
+     * @return the PCM source
+     */
+    protected PcmSource getInput() {
+        return input;
     }
 
     /**
      * Get access to the raw input data buffer
      * 
-     * @return a ByteBuffer reference
+     * @return a ByteBuffer reference, or null if the input isn't held in a
+     *         PCM buffer; use {@link #getInputSlice(int, int)} to read any
+     *         input
      */
     protected ByteBuffer getInputBuffer() {
-        return inputBuffer;
+        return input instanceof BufferPcmSource ? ((BufferPcmSource) input).getBuffer() : null;
+    }
+
+    /**
+     * Get the PCM bytes of a sample range, clipped to the end of the input.
+     * For PCM buffers this is a view sharing the input data without copying
+     * it; other sources decode the range. Reading it does not affect the
+     * input or other views.
+     * 
+     * @param from_offset
+     *            first sample of the range
+     * @param length
+     *            number of samples in the range
+     * @return a buffer positioned at the first byte of the range
+     */
+    protected ByteBuffer getInputSlice(int from_offset, int length) {
+        return input.read(from_offset, length);
     }
 
     /**
@@ -38,7 +79,19 @@ public abstract class Encoder {
      * @return a PCMFormat reference
      */
     protected PCMFormat getInputFormat() {
-        return inputFormat;
+        return input == null ? null : input.getFormat();
+    }
+
+    /**
+     * Get a key identifying the encoder type and every setting that affects
+     * its output. Chunks encoded by encoders with equal keys from the same
+     * source are shared through the {@link ChunkCache}, so subclasses with
+     * output settings must include them in the key.
+     * 
+     * @return cache key for this encoder's output
+     */
+    public String getCacheKey() {
+        return getClass().getName();
     }
 
     /**
@@ -53,4 +106,50 @@ public abstract class Encoder {
      */
     public abstract byte[] encode(int from_offset, int length);
 
+    /**
+     * Encode a number of samples from the input buffer directly into an
+     * output stream. The default implementation writes the array returned by
+     * {@link #encode(int, int)}; encoders that can produce their output
+     * without building it in memory override this and
+     * {@link #isStreaming()}.
+     * 
+     * @param from_offset
+     *            sample offset to encode from
+     * @param length
+     *            number of samples to encode
+     * @param out
+     *            stream to write the encoded data to
+     * @throws IOException
+     *             if writing to the stream fails
+     */
+    public void encodeTo(int from_offset, int length, OutputStream out) throws IOException {
+        out.write(encode(from_offset, length));
+    }
+
+    /**
+     * Get the number of bytes {@link #encodeTo(int, int, OutputStream)} writes
+     * for a range of samples, if it is known without encoding them.
+     * 
+     * @param from_offset
+     *            sample offset to encode from
+     * @param length
+     *            number of samples to encode
+     * @return encoded length in bytes, or -1 if unknown
+     */
+    public long getEncodedLength(int from_offset, int length) {
+        return -1;
+    }
+
+    /**
+     * Tells whether {@link #encodeTo(int, int, OutputStream)} writes its
+     * output without intermediate buffers. Streaming encoders are cheap enough
+     * to run on the request thread, so their chunks bypass the encoder pool
+     * and the {@link ChunkCache}.
+     * 
+     * @return true if this encoder streams its output
+     */
+    public boolean isStreaming() {
+        return false;
+    }
+
 }
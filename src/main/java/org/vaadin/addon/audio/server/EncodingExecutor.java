@@ -0,0 +1,202 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.shared.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared, bounded executor that performs chunk encoding for every
+ * {@link Stream} in the JVM.
+ *
+ * The number of worker threads and the length of the pending request queue
+ * default to the number of available processors and 64 requests per worker.
+ * They can be changed with the system properties
+ * {@code audioplayer.encoder.threads} and {@code audioplayer.encoder.queue},
+ * or at runtime through {@link #configure(int, int, ThreadFactory)}. Setting
+ * {@code audioplayer.encoder.virtual=true} runs the workers on virtual threads
+ * when the JVM supports them.
+ *
+ * When the queue is full, the submitting thread encodes the chunk itself.
+ * This throttles request threads instead of letting the backlog grow without
+ * limit.
+ *
+ * Chunks warmed ahead of time by {@link Stream#warm()} are encoded on a
+ * separate fork-join pool, so that warming never delays chunk requests. It is
+ * the common pool unless {@code audioplayer.warm.parallelism} is set.
+ */
+public final class EncodingExecutor {
+
+    public static final String THREADS_PROPERTY = "audioplayer.encoder.threads";
+    public static final String QUEUE_PROPERTY = "audioplayer.encoder.queue";
+    public static final String VIRTUAL_PROPERTY = "audioplayer.encoder.virtual";
+    public static final String WARM_PARALLELISM_PROPERTY = "audioplayer.warm.parallelism";
+
+    private static final int QUEUE_LENGTH_PER_THREAD = 64;
+
+    private static ExecutorService executor = null;
+    private static ExecutorService warmingPool = null;
+
+    private EncodingExecutor() {
+    }
+
+    /**
+     * Get the shared executor, creating it from the system properties on
+     * first use.
+     *
+     * @return executor used for chunk encoding
+     */
+    public static synchronized ExecutorService get() {
+        if (executor == null) {
+            int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            int queue = Integer.getInteger(QUEUE_PROPERTY, threads * QUEUE_LENGTH_PER_THREAD);
+            ThreadFactory factory = Boolean.getBoolean(VIRTUAL_PROPERTY) ? virtualThreadFactory() : null;
+            executor = create(threads, queue, factory);
+        }
+        return executor;
+    }
+
+    /**
+     * Replace the shared executor with a new bounded pool. Chunks already
+     * queued on the previous pool are still encoded before it terminates.
+     *
+     * @param threads
+     *            number of worker threads
+     * @param queueSize
+     *            number of pending requests before callers start encoding on
+     *            their own thread
+     * @param threadFactory
+     *            factory for worker threads, or null for daemon platform
+     *            threads. Use {@link #virtualThreadFactory()} for virtual
+     *            threads.
+     */
+    public static synchronized void configure(int threads, int queueSize, ThreadFactory threadFactory) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be positive");
+        }
+        setExecutor(create(threads, queueSize, threadFactory));
+    }
+
+    /**
+     * Replace the shared executor with one supplied by the application. The
+     * previous executor is shut down.
+     *
+     * @param executorService
+     *            executor to use for chunk encoding
+     */
+    public static synchronized void setExecutor(ExecutorService executorService) {
+        if (executorService == null) {
+            throw new IllegalArgumentException("executorService must not be null");
+        }
+        if (executor != null && executor != executorService) {
+            executor.shutdown();
+        }
+        executor = executorService;
+    }
+
+    /**
+     * Get the pool used to warm chunks in the background, creating it from
+     * the system properties on first use.
+     *
+     * @return executor used for chunk warming
+     */
+    public static synchronized ExecutorService getWarmingPool() {
+        if (warmingPool == null) {
+            Integer parallelism = Integer.getInteger(WARM_PARALLELISM_PROPERTY);
+            warmingPool = parallelism != null ? new ForkJoinPool(parallelism) : ForkJoinPool.commonPool();
+        }
+        return warmingPool;
+    }
+
+    /**
+     * Replace the pool used to warm chunks. The previous pool is shut down,
+     * unless it is the common pool.
+     *
+     * @param pool
+     *            executor to use for chunk warming
+     */
+    public static synchronized void setWarmingPool(ExecutorService pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool must not be null");
+        }
+        if (warmingPool != null && warmingPool != pool) {
+            warmingPool.shutdown();
+        }
+        warmingPool = pool;
+    }
+
+    /**
+     * Shut down the shared executor and warming pool. New ones are created on
+     * the next call to {@link #get()} or {@link #getWarmingPool()}.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (warmingPool != null) {
+            warmingPool.shutdown();
+            warmingPool = null;
+        }
+    }
+
+    /**
+     * Get a factory producing virtual threads, if the running JVM supports
+     * them.
+     *
+     * @return virtual thread factory, or null when not supported
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "audio-encoder-", 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.<EncodingExecutor>warning(EncodingExecutor.class, "virtual threads are not supported, using platform threads");
+            return null;
+        }
+    }
+
+    private static ExecutorService create(int threads, int queueSize, ThreadFactory threadFactory) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                threadFactory != null ? threadFactory : new DaemonThreadFactory(), new CallerEncodes());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "audio-encoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Runs the task on the submitting thread when the queue is full, but
+     * unlike {@link ThreadPoolExecutor.CallerRunsPolicy} never drops a task
+     * silently after shutdown.
+     */
+    private static class CallerEncodes implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("encoder pool has been shut down");
+            }
+            r.run();
+        }
+    }
+
+}
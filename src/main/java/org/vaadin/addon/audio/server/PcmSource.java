@@ -0,0 +1,56 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Supplier of the PCM samples of a {@link Stream}. Encoders read their input
+ * through the source one chunk at a time, so a source may hold its audio in a
+ * more compact form and expand only the samples being encoded. The sources
+ * package provides PCM buffers, G.711 (u-law and A-law) data and FLAC
+ * compressed audio.
+ * 
+ * Chunks are encoded concurrently, so sources must be thread safe.
+ */
+public interface PcmSource {
+
+    /**
+     * Get the format of the PCM data produced by {@link #read(int, int)}
+     * 
+     * @return PCM format
+     */
+    PCMFormat getFormat();
+
+    /**
+     * Get the number of samples in the source
+     * 
+     * @return sample count
+     */
+    int getSampleCount();
+
+    /**
+     * Get the little endian PCM bytes of a range of samples, clipped to the
+     * end of the source. The returned buffer may share data with the source
+     * and must not be written to; reading it does not affect the source or
+     * other buffers returned by it.
+     * 
+     * @param fromSample
+     *            first sample of the range
+     * @param length
+     *            number of samples in the range
+     * @return a buffer positioned at the first byte of the range
+     */
+    ByteBuffer read(int fromSample, int length);
+
+    /**
+     * Get an identity for the audio of this source, used as the
+     * {@link Stream#getSourceId() source id} of streams reading it
+     * 
+     * @return source identity, or null to let the stream hash the PCM data
+     */
+    default String getId() {
+        return null;
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.vaadin.addon.audio.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single scheduler thread ticking the extrapolated playback positions of
+ * every {@link AudioPlayer} reporting adaptively, in place of per client
+ * position reports.
+ */
+final class PositionTicker {
+
+    private static ScheduledExecutorService scheduler = null;
+
+    private PositionTicker() {
+    }
+
+    /**
+     * Run a tick repeatedly until it is cancelled
+     *
+     * @param tick
+     *            task to run; it must not block
+     * @param periodMillis
+     *            milliseconds between ticks
+     * @return handle cancelling the ticks
+     */
+    static synchronized ScheduledFuture<?> schedule(Runnable tick, long periodMillis) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "audio-position-ticker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler.scheduleAtFixedRate(tick, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+}
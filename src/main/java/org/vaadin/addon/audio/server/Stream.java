@@ -1,15 +1,39 @@
 package org.vaadin.addon.audio.server;
 
+import org.vaadin.addon.audio.server.planners.FixedChunkPlanner;
+import org.vaadin.addon.audio.server.sources.BufferPcmSource;
+import org.vaadin.addon.audio.server.sources.EffectPcmSource;
+import org.vaadin.addon.audio.server.sources.G711PcmSource;
 import org.vaadin.addon.audio.server.state.StreamState;
 import org.vaadin.addon.audio.server.state.StreamStateCallback;
+import org.vaadin.addon.audio.server.encoders.WaveEncoder;
+import org.vaadin.addon.audio.server.util.MappedWaveFile;
+import org.vaadin.addon.audio.server.util.PcmPredictionFilter;
+import org.vaadin.addon.audio.server.util.WaveHeader;
+import org.vaadin.addon.audio.server.util.WaveUtil;
 import org.vaadin.addon.audio.shared.ChunkDescriptor;
 import org.vaadin.addon.audio.shared.PCMFormat;
+import org.vaadin.addon.audio.shared.util.Log;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 /**
  * Server-side datastream class
@@ -17,37 +41,55 @@ import java.util.Queue;
 public class Stream {
 
     private static final int CHUNK_LENGTH_MILLIS_DEFAULT = 5000;
-    private static final int CHUNK_OVERLAP_MILLIS = 0;
 
     public static interface Callback {
         public void onComplete(byte[] data);
     }
 
-    private static class ChunkRequest {
-        ChunkDescriptor chunk;
-        Callback callback;
+    private List<StreamStateCallback> stateCallbacks = new CopyOnWriteArrayList<>();
+    private List<ChunkDescriptor> chunks;
+    private ChunkIndex chunkIndex = null;
 
-        ChunkRequest(ChunkDescriptor d, Callback c) {
-            this.chunk = d;
-            this.callback = c;
-        }
-    }
-
-    private List<StreamStateCallback> stateCallbacks = new ArrayList<>();
-    private List<ChunkDescriptor> chunks = new ArrayList<ChunkDescriptor>();
-    private volatile Queue<ChunkRequest> requestQueue = new ArrayDeque<>();
-    private volatile Thread worker = null;
+    // Guarded by this; used to derive the stream state
+    private int pendingRequests = 0;
+    private int encodingRequests = 0;
 
     private PCMFormat format = null;
+    private PcmSource source = null;
+    // The source's buffer, if it is a PCM buffer
     private ByteBuffer buffer = null;
     private Encoder encoder = null;
+    // Encoders from the lowest to the highest quality, ending with encoder
+    private volatile List<Variant> variants;
+    // Effects rendered into the chunks, null if none
+    private volatile EffectPcmSource effects = null;
+    private List<Effect> effectList = Collections.emptyList();
+    // Input of the encoders once effects have been set, guarded by this
+    private PcmSource encoderInput = null;
+    // Effects of the chunk being encoded by the current thread
+    private final ThreadLocal<EffectPcmSource> encodingEffects = new ThreadLocal<>();
     private StreamState streamState = StreamState.IDLE;
+    // Number of state changes, guarded by this
+    private long stateTransitions = 0;
 
-    // TODO: pass in chunk length and overlap in an optional constructor
+    private ChunkPlanner chunkPlanner;
+    // Longest chunk in milliseconds
     private int chunkLength;
-    private int chunkOverlapLength = CHUNK_OVERLAP_MILLIS;
+
+    private String sourceId = null;
+    private String registryKey = null;
+    private ChunkCache chunkCache = null;
+    private boolean chunkCacheEnabled = true;
+
+    // Chunks warmed after every requested chunk
+    private volatile int warmAheadChunks = 0;
+    // Warm-ups in progress, by cache key
+    private final ConcurrentMap<ChunkCache.Key, CompletableFuture<Void>> warming = new ConcurrentHashMap<>();
 
     private boolean compression = false;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+    private boolean predictionFilter = false;
     private int sampleCount = 0;
     private int duration = 0;
 
@@ -80,75 +122,194 @@ public class Stream {
      *            Milliseconds per audio chunk
      */
     public Stream(ByteBuffer pcmBuffer, PCMFormat format, Encoder encoder, int millisPerChunk) {
-        this.buffer = pcmBuffer;
-        this.format = format;
-        this.encoder = encoder;
-        this.chunkLength = millisPerChunk;
-        encoder.setInput(pcmBuffer, format);
-
-        int buffersize = pcmBuffer.capacity();
-        int samples = sampleCount = buffersize / format.getSampleSize();
-        int samplesPerMillis = format.getSampleRate() / 1000;
-        duration = samples / samplesPerMillis;
-
-        int chunkSampleSize = samplesPerMillis * chunkLength;
-        int chunkOverlapSampleSize = samplesPerMillis * chunkOverlapLength;
-
-        // Create chunks
-        {
-            int from_sample, to_sample;
-            int chunk = 0;
-
-            do {
-                // Calculate read area
-                from_sample = (chunk * chunkLength) * samplesPerMillis;
-                from_sample = Math.max(0, from_sample);
-                to_sample = ((chunk + 1) * chunkLength + chunkOverlapLength) * samplesPerMillis;
-                to_sample = Math.min(samples, to_sample);
-
-                // Calculate lead in/out duration
-                int time_lead_in = Math.max((chunk * chunkLength) - (from_sample / samplesPerMillis), 0);
-                int time_lead_out = Math.max((to_sample / samplesPerMillis) - ((chunk + 1) * chunkLength), 0);
-
-                // Calculate time
-                int time_start_offset = (from_sample / samplesPerMillis) + time_lead_in;
-                int time_end_offset = (to_sample / samplesPerMillis) - time_lead_out;
-
-                if (time_lead_out < chunkOverlapLength) {
-                    time_end_offset = (to_sample / samplesPerMillis);
-                    time_lead_out = 0;
-                }
+        this(pcmBuffer, format, encoder, new FixedChunkPlanner(millisPerChunk));
+    }
 
-                // Create descriptor
-                ChunkDescriptor cd = new ChunkDescriptor();
-                cd.setId(chunk);
-                cd.setStartSampleOffset(from_sample);
-                cd.setEndSampleOffset(to_sample);
-                cd.setLeadInDuration(time_lead_in);
-                cd.setLeadOutDuration(time_lead_out);
-                cd.setStartTimeOffset(time_start_offset);
-                cd.setEndTimeOffset(time_end_offset);
-                cd.setOverlapTime(chunkOverlapLength);
+    /**
+     * Create an audio stream. Performs on-the-fly audio encoding on a
+     * chunk-by-chunk basis.
+     * 
+     * @param pcmBuffer
+     *            Buffer containing PCM data - data should start at offset 0
+     * @param format
+     *            Object describing PCM data format
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param millisPerChunk
+     *            Milliseconds per audio chunk
+     * @param overlapMillis
+     *            Milliseconds each chunk extends into the next one
+     */
+    public Stream(ByteBuffer pcmBuffer, PCMFormat format, Encoder encoder, int millisPerChunk, int overlapMillis) {
+        this(pcmBuffer, format, encoder, new FixedChunkPlanner(millisPerChunk, overlapMillis));
+    }
+
+    /**
+     * Create an audio stream. Performs on-the-fly audio encoding on a
+     * chunk-by-chunk basis.
+     * 
+     * @param pcmBuffer
+     *            Buffer containing PCM data - data should start at offset 0
+     * @param format
+     *            Object describing PCM data format
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param chunkPlanner
+     *            Strategy splitting the stream into chunks
+     */
+    public Stream(ByteBuffer pcmBuffer, PCMFormat format, Encoder encoder, ChunkPlanner chunkPlanner) {
+        this(new BufferPcmSource(pcmBuffer, format), encoder, chunkPlanner);
+    }
+
+    /**
+     * Create an audio stream reading a PCM source, such as
+     * {@link G711PcmSource} which keeps u-law or A-law audio compact and
+     * decodes it only for the chunks being encoded.
+     * 
+     * @param source
+     *            Source of the PCM data
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param millisPerChunk
+     *            Milliseconds per audio chunk
+     */
+    public Stream(PcmSource source, Encoder encoder, int millisPerChunk) {
+        this(source, encoder, new FixedChunkPlanner(millisPerChunk));
+    }
+
+    /**
+     * Create an audio stream reading a PCM source, such as
+     * {@link G711PcmSource} which keeps u-law or A-law audio compact and
+     * decodes it only for the chunks being encoded.
+     * 
+     * @param source
+     *            Source of the PCM data
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param chunkPlanner
+     *            Strategy splitting the stream into chunks
+     */
+    public Stream(PcmSource source, Encoder encoder, ChunkPlanner chunkPlanner) {
+        this.source = source;
+        this.buffer = source instanceof BufferPcmSource ? ((BufferPcmSource) source).getBuffer() : null;
+        this.format = source.getFormat();
+        this.encoder = encoder;
+        this.chunkPlanner = chunkPlanner;
+        encoder.setInput(source);
+        variants = Collections.singletonList(new Variant(encoder));
 
-                // Add descriptor to list
-                chunks.add(cd);
+        sampleCount = source.getSampleCount();
+        duration = (int) ((long) sampleCount * 1000 / format.getSampleRate());
 
-                // Advance
-                chunk++;
-            } while (to_sample < samples);
+        chunks = Collections.unmodifiableList(new ArrayList<>(chunkPlanner.planChunks(source)));
+        chunkIndex = new ChunkIndex(chunks);
+        chunkLength = 0;
+        for (ChunkDescriptor chunk : chunks) {
+            chunkLength = Math.max(chunkLength, chunk.getEndTimeOffset() - chunk.getStartTimeOffset());
         }
+    }
 
-        // Create first chunk
-        {
-            ChunkDescriptor cd = new ChunkDescriptor();
-            cd.setId(0);
-            cd.setStartSampleOffset(0);
-            cd.setEndSampleOffset(Math.min(chunkSampleSize + chunkOverlapSampleSize, samples));
-            cd.setLeadInDuration(0);
-            cd.setLeadOutDuration(chunkOverlapSampleSize);
-            cd.setStartTimeOffset(0);
-            cd.setEndTimeOffset(chunkLength);
+    /**
+     * Create an audio stream from a PCM WAVE file. Only the file header is
+     * read; the data chunk is memory-mapped and shared with any other stream
+     * created from the same file, so the samples don't occupy heap memory.
+     * 
+     * @param path
+     *            path to a PCM WAVE file
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @return a stream reading from the mapped file
+     * @throws IOException
+     *             if the file can't be read or mapped
+     */
+    public static Stream fromWaveFile(Path path, Encoder encoder) throws IOException {
+        return fromWaveFile(path, encoder, CHUNK_LENGTH_MILLIS_DEFAULT);
+    }
+
+    /**
+     * Create an audio stream from a PCM WAVE file. Only the file header is
+     * read; the data chunk is memory-mapped and shared with any other stream
+     * created from the same file, so the samples don't occupy heap memory.
+     * 
+     * @param path
+     *            path to a PCM WAVE file
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param millisPerChunk
+     *            Milliseconds per audio chunk
+     * @return a stream reading from the mapped file
+     * @throws IOException
+     *             if the file can't be read or mapped
+     */
+    public static Stream fromWaveFile(Path path, Encoder encoder, int millisPerChunk) throws IOException {
+        return fromWaveFile(path, encoder, new FixedChunkPlanner(millisPerChunk));
+    }
+
+    /**
+     * Create an audio stream from a PCM WAVE file. Only the file header is
+     * read; the data chunk is memory-mapped and shared with any other stream
+     * created from the same file, so the samples don't occupy heap memory.
+     * 
+     * @param path
+     *            path to a PCM WAVE file
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param chunkPlanner
+     *            Strategy splitting the stream into chunks
+     * @return a stream reading from the mapped file
+     * @throws IOException
+     *             if the file can't be read or mapped
+     */
+    public static Stream fromWaveFile(Path path, Encoder encoder, ChunkPlanner chunkPlanner) throws IOException {
+        MappedWaveFile file = MappedWaveFile.open(path);
+        Stream stream = new Stream(file.getData(), file.getFormat(), encoder, chunkPlanner);
+        // Identify by file, hashing would page in the whole mapping
+        stream.setSourceId(file.getId());
+        return stream;
+    }
+
+    /**
+     * Create an audio stream from a PCM WAVE file held in a buffer. The
+     * stream reads the samples of the data chunk in place, leaving out the
+     * header and any other chunks.
+     * 
+     * @param waveFile
+     *            buffer containing a PCM WAVE file from index 0
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param millisPerChunk
+     *            Milliseconds per audio chunk
+     * @return a stream reading from the buffer
+     * @throws IOException
+     *             if the buffer doesn't hold a PCM WAVE file
+     */
+    public static Stream fromWaveBuffer(ByteBuffer waveFile, Encoder encoder, int millisPerChunk)
+            throws IOException {
+        return fromWaveBuffer(waveFile, encoder, new FixedChunkPlanner(millisPerChunk));
+    }
+
+    /**
+     * Create an audio stream from a PCM WAVE file held in a buffer. The
+     * stream reads the samples of the data chunk in place, leaving out the
+     * header and any other chunks.
+     * 
+     * @param waveFile
+     *            buffer containing a PCM WAVE file from index 0
+     * @param encoder
+     *            Data encoder to use. {@link WaveEncoder} forwards PCM data.
+     * @param chunkPlanner
+     *            Strategy splitting the stream into chunks
+     * @return a stream reading from the buffer
+     * @throws IOException
+     *             if the buffer doesn't hold a PCM WAVE file
+     */
+    public static Stream fromWaveBuffer(ByteBuffer waveFile, Encoder encoder, ChunkPlanner chunkPlanner)
+            throws IOException {
+        WaveHeader header = WaveUtil.readHeader(waveFile);
+        if (!header.isPcm()) {
+            throw new IOException("WAVE data is not PCM");
         }
+        return new Stream(WaveUtil.getDataRegion(waveFile), header.getFormat(), encoder, chunkPlanner);
     }
 
     public void addStateChangeListener(StreamStateCallback cb) {
@@ -159,40 +320,312 @@ public class Stream {
         stateCallbacks.remove(cb);
     }
 
-    private void setStreamState(StreamState s) {
-        if (streamState == s) {
-            return;
+    /**
+     * Adjust the request counters and fire a state change if the derived
+     * state changed. Listeners are called after the lock is released, so
+     * that they may call back into the stream or lock the session; a
+     * transition overtaken by a newer one before its listeners are called
+     * isn't fired.
+     */
+    private void updateStreamState(int pendingDelta, int encodingDelta) {
+        StreamState s;
+        long transition;
+        synchronized (this) {
+            pendingRequests += pendingDelta;
+            encodingRequests += encodingDelta;
+
+            s = StreamState.IDLE;
+            if (encodingRequests > 0) {
+                s = StreamState.ENCODING;
+            } else if (pendingRequests > 0) {
+                s = StreamState.READING;
+            }
+
+            if (streamState == s) {
+                return;
+            }
+            streamState = s;
+            transition = ++stateTransitions;
         }
-        streamState = s;
         for (StreamStateCallback cb : stateCallbacks) {
+            synchronized (this) {
+                if (transition != stateTransitions) {
+                    return;
+                }
+            }
             cb.onStateChanged(s);
         }
     }
 
-    public StreamState getState() {
+    public synchronized StreamState getState() {
         return streamState;
     }
 
+    /**
+     * Get the length of the longest chunk
+     * 
+     * @return chunk length in milliseconds
+     */
     public int getChunkLength() {
         return chunkLength;
     }
 
+    public ChunkPlanner getChunkPlanner() {
+        return chunkPlanner;
+    }
+
+    /**
+     * Get the chunks of this stream, ordered by time
+     * 
+     * @return unmodifiable list of chunk descriptors
+     */
     public List<ChunkDescriptor> getChunks() {
         return chunks;
     }
 
+    /**
+     * Get the buffer holding the PCM data of this stream
+     * 
+     * @return the PCM buffer, or null if the stream reads from a source that
+     *         decodes its samples
+     * @see #getPcmSource()
+     */
     public ByteBuffer getInputBuffer() {
         return buffer;
     }
 
+    /**
+     * Get the source of the PCM data of this stream
+     * 
+     * @return the PCM source
+     */
+    public PcmSource getPcmSource() {
+        return source;
+    }
+
     public PCMFormat getInputFormat() {
         return format;
     }
 
     /**
-     * Enable or disable datastream compression. If compression is enabled, data
-     * retrieved from this stream is run through a fast zlib compression routine
-     * before being base64 encoded for transport.
+     * Set lower quality variants of this stream, such as WAVE at a low sample
+     * rate or OGG at a low quality setting. Together with the encoder the
+     * stream was created with, which is always the highest quality variant,
+     * they form a ladder from which an {@link AudioPlayer} picks per client,
+     * switching between variants at chunk boundaries to match the client's
+     * download speed.
+     * 
+     * All variants share the chunks of this stream, and the client must be
+     * able to decode every one of them.
+     * 
+     * @param lowerVariants
+     *            encoders ordered from the lowest to the highest quality, or
+     *            none to disable adaptive streaming
+     */
+    public synchronized void setVariants(Encoder... lowerVariants) {
+        List<Variant> ladder = new ArrayList<>(lowerVariants.length + 1);
+        for (Encoder variant : lowerVariants) {
+            if (variant == encoder) {
+                throw new IllegalArgumentException("the stream's own encoder is always the highest variant");
+            }
+            variant.setInput(encoderInput != null ? encoderInput : source);
+            ladder.add(new Variant(variant));
+        }
+        ladder.add(new Variant(encoder));
+        variants = Collections.unmodifiableList(ladder);
+    }
+
+    /**
+     * Get the number of encoder variants, including the stream's own encoder
+     * 
+     * @return number of variants, 1 unless lower variants have been set
+     */
+    public int getVariantCount() {
+        return variants.size();
+    }
+
+    /**
+     * Get an encoder variant
+     * 
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @return the encoder of the variant
+     * @see #setVariants(Encoder...)
+     */
+    public Encoder getVariant(int variant) {
+        return variants.get(variant).encoder;
+    }
+
+    /**
+     * Get the estimated size of a variant's encoded audio, before transport
+     * compression. Estimates come from the chunks encoded so far; a variant
+     * without any is encoded once in the background, and its rate is unknown
+     * until that finishes.
+     * 
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @return bytes per second of audio, or -1 if not yet known
+     */
+    public double getVariantByteRate(int variant) {
+        Variant v = variants.get(variant);
+        double rate = v.byteRate;
+        if (rate < 0) {
+            long length = v.encoder.getEncodedLength(0, format.getSampleRate());
+            if (length >= 0) {
+                return length;
+            }
+            if (!chunks.isEmpty() && v.probing.compareAndSet(false, true)) {
+                probe(chunks.get(0), variant);
+            }
+        }
+        return rate;
+    }
+
+    private void probe(final ChunkDescriptor chunk, final int variant) {
+        try {
+            EncodingExecutor.getWarmingPool().execute(() -> loadChunk(chunk, variant));
+        } catch (RejectedExecutionException e) {
+            variants.get(variant).probing.set(false);
+        }
+    }
+
+    private int getTopVariant() {
+        return variants.size() - 1;
+    }
+
+    /**
+     * Render effects into the chunks of this stream on the server, so that
+     * clients don't have to apply them, e.g. pitch shifting on low end
+     * devices. Effects are captured with their current parameters; set them
+     * again after changing the parameters.
+     * 
+     * Chunks are cached per effect chain, so returning to an earlier chain
+     * reuses its chunks. Chunks already downloaded by clients keep the
+     * effects they were encoded with.
+     * 
+     * @param effects
+     *            effects to apply, in order, or none to stream the audio
+     *            unprocessed
+     */
+    public void setEffects(Effect... effects) {
+        List<Effect> list = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(effects)));
+        EffectPcmSource chain = new EffectPcmSource(source, list);
+        synchronized (this) {
+            if (chain.hasEffects() && encoderInput == null) {
+                // Encoders read through an input applying the effects of
+                // the chunk being encoded
+                encoderInput = new EncoderInput();
+                for (Variant variant : variants) {
+                    variant.encoder.setInput(encoderInput);
+                }
+            }
+            effectList = list;
+            this.effects = chain.hasEffects() ? chain : null;
+        }
+        Log.message(this, "effects set to " + chain.getEffectKey());
+    }
+
+    /**
+     * Get the effects rendered into the chunks of this stream
+     * 
+     * @return the effects, empty if none are set
+     * @see #setEffects(Effect...)
+     */
+    public synchronized List<Effect> getEffects() {
+        return effectList;
+    }
+
+    /**
+     * Get the identity of this stream's PCM data. Streams with equal source
+     * ids share encoded chunks through the {@link ChunkCache}.
+     * 
+     * Unless set with {@link #setSourceId(String)} or provided by the
+     * {@link PcmSource}, the id is a SHA-256 digest of the PCM data and
+     * format, computed on first use.
+     * 
+     * @return source identity
+     */
+    public synchronized String getSourceId() {
+        if (sourceId == null) {
+            sourceId = source.getId();
+        }
+        if (sourceId == null) {
+            sourceId = digestSource();
+        }
+        return sourceId;
+    }
+
+    /**
+     * Set the identity of this stream's PCM data, e.g. a file path and
+     * modification time. Setting an id avoids hashing the whole buffer, but
+     * two streams must only use the same id if their PCM data is identical.
+     * 
+     * @param sourceId
+     *            source identity
+     */
+    public synchronized void setSourceId(String sourceId) {
+        this.sourceId = sourceId;
+    }
+
+    private String digestSource() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(source.read(0, sampleCount));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        sb.append(':').append(format.getNumChannels()).append('x').append(format.getSampleRate()).append('x')
+                .append(format.getBitsPerSample());
+        return sb.toString();
+    }
+
+    /**
+     * Get the key under which this stream is shared in the
+     * {@link StreamRegistry}
+     * 
+     * @return registry key, or null if the stream isn't shared
+     */
+    public String getRegistryKey() {
+        return registryKey;
+    }
+
+    void setRegistryKey(String registryKey) {
+        this.registryKey = registryKey;
+    }
+
+    /**
+     * Get the cache used for encoded chunks of this stream.
+     * 
+     * @return the cache, or null if caching is disabled
+     */
+    public ChunkCache getChunkCache() {
+        if (!chunkCacheEnabled) {
+            return null;
+        }
+        return chunkCache != null ? chunkCache : ChunkCache.getShared();
+    }
+
+    /**
+     * Set the cache used for encoded chunks of this stream. By default the
+     * process-wide {@link ChunkCache#getShared()} cache is used.
+     * 
+     * @param cache
+     *            cache to use, or null to disable caching for this stream
+     */
+    public void setChunkCache(ChunkCache cache) {
+        chunkCache = cache;
+        chunkCacheEnabled = cache != null;
+    }
+
+    /**
+     * Enable or disable datastream compression. If compression is enabled,
+     * chunks are compressed with zlib once, cached in compressed form, and
+     * sent with {@code Content-Encoding: deflate} to clients that accept it.
      * 
      * If you're using the NullEncoder, compression is encouraged. For any other
      * encoding scheme, use of compression should be decided on a case-by-case
@@ -214,73 +647,559 @@ public class Stream {
         return compression;
     }
 
+    /**
+     * Set the zlib compression level used when compression is enabled.
+     * 
+     * @param level
+     *            0-9, or {@link Deflater#DEFAULT_COMPRESSION} (the default)
+     */
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        compressionLevel = level;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the zlib compression strategy used when compression is enabled.
+     * {@link Deflater#HUFFMAN_ONLY} compresses uncompressed PCM audio nearly
+     * as well as the default strategy, in a fraction of the time.
+     * 
+     * @param strategy
+     *            {@link Deflater#DEFAULT_STRATEGY} (the default),
+     *            {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}
+     */
+    public void setCompressionStrategy(int strategy) {
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("invalid compression strategy " + strategy);
+        }
+        compressionStrategy = strategy;
+    }
+
+    public int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    /**
+     * Enable or disable the lossless prediction filter for WAVE chunks. The
+     * filter replaces the samples with prediction residuals split into byte
+     * planes, which compress much better than raw PCM. The client reverses
+     * it before decoding. Use it together with compression; it has no effect
+     * with encoders other than {@link WaveEncoder}.
+     * 
+     * @param enable
+     *            true to enable, false to disable (the default)
+     * @see PcmPredictionFilter
+     */
+    public void setPredictionFilter(boolean enable) {
+        if (enable && !isWaveOnly()) {
+            Log.warning(this, "prediction filter only applies to WAVE chunks, ignored for " + encoder.getClass().getSimpleName());
+        }
+        predictionFilter = enable;
+    }
+
+    /**
+     * Tell whether chunks are sent through the prediction filter
+     * 
+     * @return true if the filter is enabled and every variant writes WAVE
+     *         chunks
+     */
+    public boolean isPredictionFilterEnabled() {
+        return predictionFilter && isWaveOnly();
+    }
+
+    private boolean isWaveOnly() {
+        for (Variant v : variants) {
+            if (!(v.encoder instanceof WaveEncoder)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tell whether chunks of a variant are written straight from the
+     * encoder, without being encoded into an array first
+     */
+    private boolean isStreamingTransport(int variant) {
+        return getVariant(variant).isStreaming() && !isPredictionFilterEnabled();
+    }
+
     /**
      * Get data for a chunk of audio as an encoded string. This method is used
      * to facilitate audio transport.
      * 
-     * The logic runs in its own thread, and calls cb when complete.
+     * The logic runs on the shared {@link EncodingExecutor}, and calls cb
+     * from the encoding thread when complete.
+     */
+    public void getChunkData(ChunkDescriptor chunk, final Callback cb) {
+        getChunkData(chunk).thenAccept(bytes -> cb.onComplete(bytes));
+    }
+
+    /**
+     * Get the encoded data for a chunk of audio. Chunks found in the
+     * {@link ChunkCache} are returned immediately, others are encoded on the
+     * shared {@link EncodingExecutor} and then cached.
+     * 
+     * If the executor queue is full, the chunk is encoded on the calling
+     * thread before this method returns. If the executor has been shut down,
+     * the returned future completes exceptionally with a
+     * {@link RejectedExecutionException}.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to encode
+     * @return future completed with the encoded bytes
+     */
+    public CompletableFuture<byte[]> getChunkData(final ChunkDescriptor chunk) {
+        return getChunkData(chunk, getTopVariant());
+    }
+
+    /**
+     * Get the encoded data for a chunk of audio in one of the stream's
+     * variants.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to encode
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @return future completed with the encoded bytes
+     * @see #getChunkData(ChunkDescriptor)
+     */
+    public CompletableFuture<byte[]> getChunkData(final ChunkDescriptor chunk, final int variant) {
+        warmAhead(chunk, variant);
+        final EffectPcmSource fx = effects;
+        ChunkCache cache = getChunkCache();
+        if (cache == null) {
+            return encodeChunk(chunk, variant, fx);
+        }
+        return cache.get(getCacheKey(chunk, false, variant, fx), () -> encodeChunk(chunk, variant, fx));
+    }
+
+    /**
+     * Get the zlib compressed data for a chunk of audio, as sent to clients
+     * when compression is enabled. Compressed chunks are cached separately
+     * from uncompressed ones, so each chunk is compressed only once.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to encode
+     * @return future completed with the compressed bytes
+     * @see #setCompression(boolean)
+     */
+    public CompletableFuture<byte[]> getCompressedChunkData(final ChunkDescriptor chunk) {
+        return getCompressedChunkData(chunk, getTopVariant());
+    }
+
+    /**
+     * Get the zlib compressed data for a chunk of audio in one of the
+     * stream's variants.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to encode
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @return future completed with the compressed bytes
+     * @see #getCompressedChunkData(ChunkDescriptor)
+     */
+    public CompletableFuture<byte[]> getCompressedChunkData(final ChunkDescriptor chunk, final int variant) {
+        warmAhead(chunk, variant);
+        final EffectPcmSource fx = effects;
+        ChunkCache cache = getChunkCache();
+        if (cache == null) {
+            return encodeChunk(chunk, variant, fx).thenApply(this::compress);
+        }
+        return cache.get(getCacheKey(chunk, true, variant, fx),
+                () -> compressChunk(cache, chunk, variant, fx, () -> encodeChunk(chunk, variant, fx)));
+    }
+
+    /**
+     * Compress a chunk, reusing its uncompressed data if that is cached
      */
-    public void getChunkData(ChunkDescriptor chunk, Callback cb) {
-        requestQueue.add(new ChunkRequest(chunk, cb));
-        serviceChunkRequests();
+    private CompletableFuture<byte[]> compressChunk(ChunkCache cache, ChunkDescriptor chunk, int variant,
+            EffectPcmSource fx, Supplier<CompletableFuture<byte[]>> encoding) {
+        ChunkCache.Key key = getCacheKey(chunk, false, variant, fx);
+        byte[] bytes = cache.contains(key) ? cache.get(key) : null;
+        if (bytes != null) {
+            return CompletableFuture.completedFuture(compress(bytes));
+        }
+        return encoding.get().thenApply(this::compress);
+    }
+
+    private byte[] compress(byte[] bytes) {
+        return StreamDataEncoder.compress(bytes, compressionLevel, compressionStrategy);
+    }
+
+    /**
+     * Warm the stream: encode every chunk into the {@link ChunkCache} in
+     * parallel on the {@link EncodingExecutor#getWarmingPool() warming pool},
+     * so that later requests are served from the cache. Call this right
+     * after construction to pre-warm a stream, e.g. popular streams at server
+     * startup. The cache should be large enough to hold the whole stream, or
+     * the first chunks are evicted again while the last ones are encoded.
+     * 
+     * Streams whose encoder writes chunks directly from the PCM buffer, or
+     * that don't use a cache, have nothing to warm.
+     * 
+     * @return future completed when every chunk is cached
+     */
+    public CompletableFuture<Void> warm() {
+        List<CompletableFuture<Void>> ready = new ArrayList<>(chunks.size());
+        for (ChunkDescriptor chunk : chunks) {
+            ready.add(warmChunk(chunk));
+        }
+        return CompletableFuture.allOf(ready.toArray(new CompletableFuture<?>[ready.size()]));
+    }
+
+    /**
+     * Encode a chunk into the {@link ChunkCache} in the background, unless
+     * it is already cached or being warmed.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to warm
+     * @return future completed when the chunk is cached
+     */
+    public CompletableFuture<Void> warmChunk(final ChunkDescriptor chunk) {
+        return warmChunk(chunk, getTopVariant());
+    }
+
+    /**
+     * Encode a chunk of one of the stream's variants into the
+     * {@link ChunkCache} in the background, unless it is already cached or
+     * being warmed.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to warm
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @return future completed when the chunk is cached
+     */
+    public CompletableFuture<Void> warmChunk(final ChunkDescriptor chunk, final int variant) {
+        final ChunkCache cache = getChunkCache();
+        if (cache == null || (isStreamingTransport(variant) && !compression)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final EffectPcmSource fx = effects;
+        final ChunkCache.Key key = getCacheKey(chunk, compression, variant, fx);
+        if (cache.contains(key)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        CompletableFuture<Void> existing = warming.putIfAbsent(key, ready);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            EncodingExecutor.getWarmingPool().execute(() -> {
+                loadChunk(chunk, variant, fx).whenComplete((bytes, error) -> {
+                    warming.remove(key, ready);
+                    if (error != null) {
+                        ready.completeExceptionally(error);
+                    } else {
+                        ready.complete(null);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            warming.remove(key, ready);
+            ready.completeExceptionally(e);
+        }
+        return ready;
+    }
+
+    /**
+     * Tells whether a chunk can be served without encoding it first
+     * 
+     * @param chunk
+     *            descriptor of the chunk
+     * @return true if the chunk is cached, or the encoder streams chunks
+     *         directly and compression is disabled
+     */
+    public boolean isChunkReady(ChunkDescriptor chunk) {
+        return isChunkReady(chunk, getTopVariant());
+    }
+
+    /**
+     * Tells whether a chunk of one of the stream's variants can be served
+     * without encoding it first
+     * 
+     * @param chunk
+     *            descriptor of the chunk
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @return true if the chunk is cached, or the variant streams chunks
+     *         directly and compression is disabled
+     */
+    public boolean isChunkReady(ChunkDescriptor chunk, int variant) {
+        if (isStreamingTransport(variant) && !compression) {
+            return true;
+        }
+        ChunkCache cache = getChunkCache();
+        return cache != null && cache.contains(getCacheKey(chunk, compression, variant, effects));
     }
 
-    private void serviceChunkRequests() {
-        if (worker != null) {
+    /**
+     * Set the number of chunks to warm after each requested chunk. Warming
+     * ahead of the chunks the clients fetch keeps encoding off the request
+     * path without encoding the whole stream up front.
+     * 
+     * @param chunkCount
+     *            number of chunks to warm, 0 to disable (the default)
+     */
+    public void setWarmAheadChunks(int chunkCount) {
+        warmAheadChunks = Math.max(0, chunkCount);
+    }
+
+    public int getWarmAheadChunks() {
+        return warmAheadChunks;
+    }
+
+    private void warmAhead(ChunkDescriptor chunk, int variant) {
+        int count = warmAheadChunks;
+        if (count == 0) {
             return;
         }
+        int index = chunkIndex.indexOfId(chunk.getId());
+        for (int i = index + 1; index >= 0 && i <= index + count && i < chunks.size(); i++) {
+            warmChunk(chunks.get(i), variant);
+        }
+    }
 
-        ChunkRequest request = requestQueue.remove();
+    /**
+     * Get a chunk through the cache, encoding it on the calling thread if it
+     * isn't cached or being encoded yet. With compression enabled, this is
+     * the compressed chunk.
+     */
+    CompletableFuture<byte[]> loadChunk(final ChunkDescriptor chunk, final int variant) {
+        return loadChunk(chunk, variant, effects);
+    }
 
-        final ChunkDescriptor chunk = request.chunk;
-        final Callback callback = request.callback;
+    private CompletableFuture<byte[]> loadChunk(final ChunkDescriptor chunk, final int variant,
+            final EffectPcmSource fx) {
+        ChunkCache cache = getChunkCache();
+        if (cache == null) {
+            return encodeNow(chunk, variant, fx);
+        }
+        if (compression) {
+            return cache.get(getCacheKey(chunk, true, variant, fx),
+                    () -> compressChunk(cache, chunk, variant, fx, () -> encodeNow(chunk, variant, fx)));
+        }
+        return cache.get(getCacheKey(chunk, false, variant, fx), () -> encodeNow(chunk, variant, fx));
+    }
 
-        worker = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                setStreamState(StreamState.READING);
-                int startOffset = chunk.getStartSampleOffset();
-                int endOffset = chunk.getEndSampleOffset();
-                int length = endOffset - startOffset;
+    /**
+     * Get the cache key of a chunk. Chunks rendered with effects are keyed
+     * by the effect chain as well as the source.
+     */
+    private ChunkCache.Key getCacheKey(ChunkDescriptor chunk, boolean compressed, int variant,
+            EffectPcmSource fx) {
+        String encoderKey = getVariant(variant).getCacheKey();
+        if (isPredictionFilterEnabled()) {
+            encoderKey += "+prediction";
+        }
+        if (compressed) {
+            encoderKey += "+deflate:" + compressionLevel + "," + compressionStrategy;
+        }
+        String sourceKey = fx == null ? getSourceId() : getSourceId() + "+" + fx.getEffectKey();
+        return new ChunkCache.Key(sourceKey, encoderKey, chunk.getStartSampleOffset(),
+                chunk.getEndSampleOffset());
+    }
 
-                setStreamState(StreamState.ENCODING);
-                byte[] bytes = encoder.encode(startOffset, length);
+    /**
+     * Write the encoded data for a chunk of audio to an output stream. This is
+     * used by the transport to serve chunk requests.
+     * 
+     * If the encoder streams its output, the chunk is written directly from
+     * the PCM buffer on the calling thread. Otherwise the chunk is obtained
+     * through {@link #getChunkData(ChunkDescriptor)} and written when ready.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to write
+     * @param out
+     *            stream to write to
+     * @throws IOException
+     *             if encoding or writing fails
+     */
+    public void writeChunkData(ChunkDescriptor chunk, OutputStream out) throws IOException {
+        writeChunkData(chunk, out, getTopVariant());
+    }
 
-                callback.onComplete(bytes);
+    /**
+     * Write the encoded data for a chunk of audio in one of the stream's
+     * variants to an output stream.
+     * 
+     * @param chunk
+     *            descriptor of the chunk to write
+     * @param out
+     *            stream to write to
+     * @param variant
+     *            variant index, 0 being the lowest quality
+     * @throws IOException
+     *             if encoding or writing fails
+     * @see #writeChunkData(ChunkDescriptor, OutputStream)
+     */
+    public void writeChunkData(ChunkDescriptor chunk, OutputStream out, int variant) throws IOException {
+        if (isStreamingTransport(variant)) {
+            int startOffset = chunk.getStartSampleOffset();
+            int length = chunk.getEndSampleOffset() - startOffset;
+            updateStreamState(0, 1);
+            EffectPcmSource previous = encodingEffects.get();
+            encodingEffects.set(effects);
+            try {
+                getVariant(variant).encodeTo(startOffset, length, out);
+            } finally {
+                encodingEffects.set(previous);
+                updateStreamState(0, -1);
+            }
+            return;
+        }
+
+        out.write(getChunkBytes(chunk, false, variant));
+    }
+
+    /**
+     * Get the length of a chunk's encoded data without encoding it.
+     * 
+     * @param chunk
+     *            descriptor of the chunk
+     * @return length in bytes, or -1 if it is only known after encoding
+     */
+    long getEncodedLength(ChunkDescriptor chunk, int variant) {
+        if (!isStreamingTransport(variant)) {
+            return -1;
+        }
+        int startOffset = chunk.getStartSampleOffset();
+        return getVariant(variant).getEncodedLength(startOffset, chunk.getEndSampleOffset() - startOffset);
+    }
+
+    /**
+     * Get the encoded data of a chunk, waiting for it if necessary
+     */
+    byte[] getChunkBytes(ChunkDescriptor chunk) throws IOException {
+        return getChunkBytes(chunk, false, getTopVariant());
+    }
 
-                // We're done, kill the worker
-                worker = null;
-                if (requestQueue.isEmpty()) {
-                    setStreamState(StreamState.IDLE);
-                } else {
-                    setStreamState(StreamState.READING);
-                    serviceChunkRequests();
+    /**
+     * Get the encoded, optionally compressed, data of a chunk in one of the
+     * stream's variants, waiting for it if necessary
+     */
+    byte[] getChunkBytes(ChunkDescriptor chunk, boolean compressed, int variant) throws IOException {
+        try {
+            return (compressed ? getCompressedChunkData(chunk, variant) : getChunkData(chunk, variant)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while encoding chunk " + chunk.getId(), e);
+        } catch (ExecutionException e) {
+            throw new IOException("could not encode chunk " + chunk.getId(), e.getCause());
+        }
+    }
+
+    private CompletableFuture<byte[]> encodeChunk(final ChunkDescriptor chunk, final int variant,
+            final EffectPcmSource fx) {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        updateStreamState(1, 0);
+        try {
+            EncodingExecutor.get().execute(() -> {
+                updateStreamState(-1, 1);
+                try {
+                    result.complete(encode(chunk, variant, fx));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    updateStreamState(0, -1);
                 }
-            }
-        });
-        worker.run();
+            });
+        } catch (RejectedExecutionException e) {
+            updateStreamState(-1, 0);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Encode a chunk on the calling thread
+     */
+    private CompletableFuture<byte[]> encodeNow(ChunkDescriptor chunk, int variant, EffectPcmSource fx) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        updateStreamState(0, 1);
+        try {
+            result.complete(encode(chunk, variant, fx));
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        } finally {
+            updateStreamState(0, -1);
+        }
+        return result;
+    }
+
+    private byte[] encode(ChunkDescriptor chunk, int variant, EffectPcmSource fx) {
+        int startOffset = chunk.getStartSampleOffset();
+        int length = chunk.getEndSampleOffset() - startOffset;
+        Variant v = variants.get(variant);
+        byte[] bytes;
+        // Encoders read the effect chain the chunk is keyed by
+        EffectPcmSource previous = encodingEffects.get();
+        encodingEffects.set(fx);
+        try {
+            bytes = v.encoder.encode(startOffset, length);
+        } finally {
+            encodingEffects.set(previous);
+        }
+        v.addSample(bytes.length, length, format.getSampleRate());
+        return isPredictionFilterEnabled() ? PcmPredictionFilter.apply(bytes) : bytes;
     }
 
     /**
      * Find the chunk descriptor that contains the requested timestamp
      * 
      * @param position_millis
-     * @return
+     *            time in milliseconds
+     * @return the chunk playing at that time, or null if the time is outside
+     *         the stream
      */
     public ChunkDescriptor findChunk(int position_millis) {
-        for (ChunkDescriptor c : chunks) {
-            if (c.getStartTimeOffset() >= position_millis && c.getEndTimeOffset() <= position_millis) {
-                return c;
-            }
-        }
-        return null;
+        int index = chunkIndex.indexOfTime(position_millis);
+        return index >= 0 ? chunks.get(index) : null;
     }
 
+    /**
+     * Find the chunk descriptor that contains the requested sample offset
+     * 
+     * @param sampleOffset
+     *            offset in samples
+     * @return the chunk containing that sample, or null if the offset is
+     *         outside the stream
+     */
+    public ChunkDescriptor findChunkBySample(int sampleOffset) {
+        int index = chunkIndex.indexOfSample(sampleOffset);
+        return index >= 0 ? chunks.get(index) : null;
+    }
+
+    /**
+     * Get a chunk descriptor by its id
+     * 
+     * @param chunkID
+     *            chunk id
+     * @return the chunk, or null if there is no chunk with that id
+     */
     public ChunkDescriptor getChunkById(int chunkID) {
-        // TODO: actually SEARCH for the chunk, supposing the store isn't 1:1!
-        // We may otherwise get a really nasty NPE situation!
-        ChunkDescriptor c = chunks.get(chunkID);
-        return c;
+        int index = chunkIndex.indexOfId(chunkID);
+        return index >= 0 ? chunks.get(index) : null;
+    }
+
+    /**
+     * Get the position of a chunk in {@link #getChunks()}
+     * 
+     * @param chunk
+     *            chunk of this stream
+     * @return chunk index, or -1 if the chunk isn't part of this stream
+     */
+    public int getChunkIndex(ChunkDescriptor chunk) {
+        return chunkIndex.indexOfId(chunk.getId());
     }
 
     /**
@@ -336,4 +1255,57 @@ public class Stream {
         return text;
     }
 
+    /**
+     * Input of the encoders once effects are set. Reads the stream's source
+     * through the effects of the chunk the current thread is encoding.
+     */
+    private final class EncoderInput implements PcmSource {
+
+        @Override
+        public PCMFormat getFormat() {
+            return source.getFormat();
+        }
+
+        @Override
+        public int getSampleCount() {
+            return source.getSampleCount();
+        }
+
+        @Override
+        public ByteBuffer read(int fromSample, int length) {
+            EffectPcmSource fx = encodingEffects.get();
+            return fx != null ? fx.read(fromSample, length) : source.read(fromSample, length);
+        }
+
+        @Override
+        public String getId() {
+            return source.getId();
+        }
+    }
+
+    /**
+     * An encoder of the stream, with the size of its output measured so far
+     */
+    private static final class Variant {
+
+        // Weight of the latest chunk in the byte rate average
+        private static final double SMOOTHING = 0.25;
+
+        final Encoder encoder;
+        final AtomicBoolean probing = new AtomicBoolean();
+        volatile double byteRate = -1;
+
+        Variant(Encoder encoder) {
+            this.encoder = encoder;
+        }
+
+        synchronized void addSample(int bytes, int samples, int sampleRate) {
+            if (samples <= 0) {
+                return;
+            }
+            double rate = (double) bytes * sampleRate / samples;
+            byteRate = byteRate < 0 ? rate : byteRate + SMOOTHING * (rate - byteRate);
+        }
+    }
+
 }
@@ -1,37 +1,201 @@
 package org.vaadin.addon.audio.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /**
- * Functions for handling encoding of data to be sent to client
+ * Functions for handling encoding of data to be sent to client.
+ *
+ * Compression is thread safe. Deflaters are pooled per compression level and
+ * strategy; a Deflater that doesn't fit back into its pool is ended right
+ * away instead of holding native zlib memory until finalization.
  */
 public final class StreamDataEncoder {
 
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ConcurrentMap<Integer, BlockingQueue<Deflater>> DEFLATERS = new ConcurrentHashMap<>();
+
+    // Scratch space compressed data is written to before it is copied to an
+    // array of the exact length
+    private static final ThreadLocal<byte[]> OUTPUT_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
     public static String encode(byte[] bytes) {
         return Base64.getEncoder().encodeToString(bytes);
     }
 
+    /**
+     * Compress data with zlib using the default level and strategy. The
+     * result can be inflated on the client with pako, or sent with
+     * {@code Content-Encoding: deflate}.
+     *
+     * @param bytes
+     *            data to compress
+     * @return compressed data
+     */
     public static byte[] compress(byte[] bytes) {
-        Deflater deflater = new Deflater();
-        deflater.setInput(bytes);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length);
-        deflater.finish();
-        byte[] buffer = new byte[1024];
-        while (!deflater.finished()) {
-            int count = deflater.deflate(buffer); // returns the generated
-                                                  // code... index
-            outputStream.write(buffer, 0, count);
+        return compress(bytes, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Compress data with zlib.
+     *
+     * @param bytes
+     *            data to compress
+     * @param level
+     *            compression level, 0-9 or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @param strategy
+     *            {@link Deflater#DEFAULT_STRATEGY},
+     *            {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY};
+     *            Huffman coding alone is nearly as effective on PCM audio and
+     *            much faster
+     * @return compressed data
+     */
+    public static byte[] compress(byte[] bytes, int level, int strategy) {
+        byte[] buffer = OUTPUT_BUFFER.get();
+        int bound = maxCompressedLength(bytes.length);
+        if (buffer.length < bound) {
+            buffer = new byte[bound];
+            OUTPUT_BUFFER.set(buffer);
+        }
+        int length = compress(bytes, 0, bytes.length, buffer, 0, level, strategy);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Compress data with zlib into a caller supplied buffer.
+     *
+     * @param input
+     *            data to compress
+     * @param inputOffset
+     *            offset of the data in input
+     * @param inputLength
+     *            number of bytes to compress
+     * @param output
+     *            buffer to write to, with at least
+     *            {@link #maxCompressedLength(int)} bytes of space
+     * @param outputOffset
+     *            offset in output to write to
+     * @param level
+     *            compression level
+     * @param strategy
+     *            compression strategy
+     * @return number of compressed bytes written
+     * @throws IllegalArgumentException
+     *             if the output buffer might be too small
+     */
+    public static int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset,
+            int level, int strategy) {
+        if (output.length - outputOffset < maxCompressedLength(inputLength)) {
+            throw new IllegalArgumentException("output buffer needs " + maxCompressedLength(inputLength)
+                    + " bytes of space, has " + (output.length - outputOffset));
         }
+        Deflater deflater = borrowDeflater(level, strategy);
         try {
-            outputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            deflater.setInput(input, inputOffset, inputLength);
+            deflater.finish();
+            int position = outputOffset;
+            while (!deflater.finished()) {
+                position += deflater.deflate(output, position, output.length - position);
+            }
+            return position - outputOffset;
+        } finally {
+            releaseDeflater(deflater, level, strategy);
+        }
+    }
+
+    /**
+     * Get the largest possible zlib compressed length of data, for any
+     * compression level and strategy.
+     *
+     * @param length
+     *            length of the uncompressed data
+     * @return buffer size that always fits the compressed data
+     */
+    public static int maxCompressedLength(int length) {
+        // zlib's deflateBound() for non-default settings, plus the wrapper
+        long bound = (long) length + ((length + 7) >> 3) + ((length + 63) >> 6) + 5 + 6;
+        return (int) Math.min(Integer.MAX_VALUE - 8, bound);
+    }
+
+    /**
+     * Get a stream that compresses what is written to it with zlib. Closing
+     * the stream finishes the compressed data, closes out and releases the
+     * Deflater back to the pool.
+     *
+     * @param out
+     *            stream to write the compressed data to
+     * @param level
+     *            compression level
+     * @param strategy
+     *            compression strategy
+     * @return compressing stream
+     */
+    public static OutputStream compressingStream(OutputStream out, int level, int strategy) {
+        return new PooledDeflaterOutputStream(out, level, strategy);
+    }
+
+    private static Deflater borrowDeflater(int level, int strategy) {
+        Deflater deflater = getPool(level, strategy).poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            deflater.setStrategy(strategy);
+        }
+        return deflater;
+    }
+
+    private static void releaseDeflater(Deflater deflater, int level, int strategy) {
+        // Drops the reference to the input too
+        deflater.reset();
+        if (!getPool(level, strategy).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static BlockingQueue<Deflater> getPool(int level, int strategy) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("invalid compression strategy " + strategy);
+        }
+        return DEFLATERS.computeIfAbsent((level + 1) * 3 + strategy, k -> new ArrayBlockingQueue<>(POOL_SIZE));
+    }
+
+    private static final class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+        private final int level;
+        private final int strategy;
+        private boolean released = false;
+
+        PooledDeflaterOutputStream(OutputStream out, int level, int strategy) {
+            super(out, borrowDeflater(level, strategy), 8192);
+            this.level = level;
+            this.strategy = strategy;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                released = true;
+                releaseDeflater(def, level, strategy);
+            }
         }
-        byte[] output = outputStream.toByteArray();
-        return output;
     }
 
 }
@@ -0,0 +1,178 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.server.planners.FixedChunkPlanner;
+import org.vaadin.addon.audio.shared.util.Log;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of shared streams. All AudioPlayers in the JVM that play the same
+ * source get the same {@link Stream}, and with it a single chunk table,
+ * encoder and PCM buffer.
+ *
+ * Streams are reference counted by the number of attached AudioPlayers using
+ * them. When the last one detaches, the stream is dropped from the registry
+ * and can be garbage collected. A stream obtained from the registry but never
+ * given to an attached AudioPlayer stays registered until
+ * {@link #remove(String)} is called.
+ */
+public class StreamRegistry {
+
+    /**
+     * Creates the stream for a key that is not registered yet.
+     */
+    public interface StreamFactory {
+        Stream create() throws IOException;
+    }
+
+    private static final StreamRegistry instance = new StreamRegistry();
+
+    private static final class Registration {
+        final Stream stream;
+        int references = 0;
+
+        Registration(Stream stream) {
+            this.stream = stream;
+        }
+    }
+
+    // Guarded by this
+    private final Map<String, Registration> streams = new HashMap<>();
+
+    protected StreamRegistry() {
+    }
+
+    public static StreamRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get the shared stream for a key, creating it with the factory if it
+     * isn't registered. The key must identify both the source data and the
+     * stream settings (encoder, chunk length), since every caller with the
+     * same key gets the same stream.
+     *
+     * @param key
+     *            identity of the source and stream settings
+     * @param factory
+     *            creates the stream if needed
+     * @return the shared stream
+     * @throws IOException
+     *             if the factory fails
+     */
+    public synchronized Stream getStream(String key, StreamFactory factory) throws IOException {
+        Registration registration = streams.get(key);
+        if (registration == null) {
+            Stream stream = factory.create();
+            stream.setRegistryKey(key);
+            registration = new Registration(stream);
+            streams.put(key, registration);
+            Log.message(this, "registered shared stream " + key);
+        }
+        return registration.stream;
+    }
+
+    /**
+     * Get the shared stream for a PCM WAVE file, memory-mapping it if it
+     * isn't registered yet.
+     *
+     * @param path
+     *            path to a PCM WAVE file
+     * @param encoder
+     *            encoder for a new stream; ignored if the stream exists
+     * @param millisPerChunk
+     *            milliseconds per audio chunk
+     * @return the shared stream
+     * @throws IOException
+     *             if the file can't be read or mapped
+     */
+    public Stream getWaveFileStream(Path path, Encoder encoder, int millisPerChunk) throws IOException {
+        return getWaveFileStream(path, encoder, new FixedChunkPlanner(millisPerChunk));
+    }
+
+    /**
+     * Get the shared stream for a PCM WAVE file, memory-mapping it if it
+     * isn't registered yet. The chunk planner is told apart from others by
+     * its {@link Object#toString()}.
+     *
+     * @param path
+     *            path to a PCM WAVE file
+     * @param encoder
+     *            encoder for a new stream; ignored if the stream exists
+     * @param chunkPlanner
+     *            chunk plan for a new stream
+     * @return the shared stream
+     * @throws IOException
+     *             if the file can't be read or mapped
+     */
+    public Stream getWaveFileStream(Path path, Encoder encoder, ChunkPlanner chunkPlanner) throws IOException {
+        String key = path.toRealPath() + "|" + encoder.getCacheKey() + "|" + chunkPlanner;
+        return getStream(key, () -> Stream.fromWaveFile(path, encoder, chunkPlanner));
+    }
+
+    /**
+     * Tells whether a stream is registered with a key
+     */
+    public synchronized boolean contains(String key) {
+        return streams.containsKey(key);
+    }
+
+    /**
+     * Get the number of attached AudioPlayers using the stream registered with
+     * a key
+     */
+    public synchronized int getReferenceCount(String key) {
+        Registration registration = streams.get(key);
+        return registration != null ? registration.references : 0;
+    }
+
+    /**
+     * Drop a stream from the registry regardless of its users. Players that
+     * still use it keep working, but new requests for the key create a new
+     * stream.
+     *
+     * @param key
+     *            key of the stream
+     */
+    public synchronized void remove(String key) {
+        streams.remove(key);
+    }
+
+    /**
+     * Count a new user of a registered stream. A stream that was dropped
+     * while the caller still held it is registered again.
+     */
+    synchronized void retain(Stream stream) {
+        String key = stream.getRegistryKey();
+        Registration registration = streams.get(key);
+        if (registration == null || registration.stream != stream) {
+            if (registration != null) {
+                // The key was taken over by a new stream, don't replace it
+                return;
+            }
+            registration = new Registration(stream);
+            streams.put(key, registration);
+        }
+        registration.references++;
+    }
+
+    /**
+     * Release a user of a registered stream, dropping the stream when the
+     * last user is gone.
+     */
+    synchronized void release(Stream stream) {
+        String key = stream.getRegistryKey();
+        Registration registration = streams.get(key);
+        if (registration == null || registration.stream != stream) {
+            return;
+        }
+        if (--registration.references <= 0) {
+            streams.remove(key);
+            Log.message(this, "released shared stream " + key);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.vaadin.addon.audio.server;
+
+import org.vaadin.addon.audio.shared.util.Log;
+
+/**
+ * Picks the encoder variant of a {@link Stream} to send to one client, from
+ * the download throughput measured while writing its chunks.
+ *
+ * Throughput is tracked with a fast and a slow moving average, weighted by
+ * transfer time, and the lower of the two is used: drops are followed
+ * quickly, while a single fast transfer doesn't switch up. A variant is
+ * chosen if its byte rate, scaled by the playback speed, leaves headroom in
+ * that throughput; switching up requires more headroom than staying on a
+ * variant, so the choice doesn't flap around a threshold.
+ *
+ * Writes that fit into the network buffers finish before the client has
+ * received them, so transfers smaller than {@link #MIN_SAMPLE_BYTES} aren't
+ * measured.
+ */
+final class VariantSelector {
+
+    /** Smallest transfer that is measured */
+    static final int MIN_SAMPLE_BYTES = 16 * 1024;
+
+    // Seconds of transfer time over which the averages' weights halve
+    private static final double FAST_HALF_LIFE = 2;
+    private static final double SLOW_HALF_LIFE = 10;
+
+    // Share of the throughput a variant may use to stay selected or to be
+    // switched up to
+    private static final double KEEP_FACTOR = 0.9;
+    private static final double UP_FACTOR = 0.7;
+
+    private final Stream stream;
+
+    private final Average fast = new Average(FAST_HALF_LIFE);
+    private final Average slow = new Average(SLOW_HALF_LIFE);
+    private double playbackSpeed = 1;
+    private int variant = 0;
+
+    VariantSelector(Stream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Record the transfer of a chunk to the client
+     *
+     * @param bytes
+     *            number of bytes written
+     * @param nanos
+     *            time taken to write them
+     */
+    synchronized void addTransfer(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        double seconds = nanos / 1e9;
+        double throughput = bytes / seconds;
+        fast.add(throughput, seconds);
+        slow.add(throughput, seconds);
+    }
+
+    /**
+     * Get the estimated throughput to the client
+     *
+     * @return bytes per second, or -1 until a transfer has been measured
+     */
+    synchronized double getThroughput() {
+        if (fast.isEmpty()) {
+            return -1;
+        }
+        return Math.min(fast.get(), slow.get());
+    }
+
+    synchronized void setPlaybackSpeed(double playbackSpeed) {
+        this.playbackSpeed = playbackSpeed;
+    }
+
+    /**
+     * Get the variant most recently selected
+     *
+     * @return variant index, 0 being the lowest quality
+     */
+    synchronized int getVariant() {
+        return Math.min(variant, stream.getVariantCount() - 1);
+    }
+
+    /**
+     * Select the variant of the next chunk to send
+     *
+     * @return variant index, 0 being the lowest quality
+     */
+    synchronized int selectVariant() {
+        int count = stream.getVariantCount();
+        if (count == 1) {
+            return 0;
+        }
+        double throughput = getThroughput();
+        int current = Math.min(variant, count - 1);
+        if (throughput < 0) {
+            // Start low until the link has been measured
+            return current;
+        }
+
+        double speed = Math.max(1, playbackSpeed);
+        int selected = 0;
+        for (int i = count - 1; i > 0; i--) {
+            double rate = stream.getVariantByteRate(i);
+            if (rate < 0) {
+                // Not measured yet, it's probed in the background
+                continue;
+            }
+            double factor = i <= current ? KEEP_FACTOR : UP_FACTOR;
+            if (rate * speed <= throughput * factor) {
+                selected = i;
+                break;
+            }
+        }
+        if (selected != current) {
+            Log.message(this, "switching from variant " + current + " to " + selected + " at "
+                    + Math.round(throughput) + " bytes/s");
+            variant = selected;
+        }
+        return selected;
+    }
+
+    /**
+     * Exponential moving average weighted by time
+     */
+    private static final class Average {
+
+        private final double alpha;
+        private double estimate = 0;
+        private double totalWeight = 0;
+
+        Average(double halfLife) {
+            alpha = Math.exp(Math.log(0.5) / halfLife);
+        }
+
+        void add(double value, double weight) {
+            double a = Math.pow(alpha, weight);
+            estimate = value * (1 - a) + a * estimate;
+            totalWeight += weight;
+        }
+
+        boolean isEmpty() {
+            return totalWeight == 0;
+        }
+
+        double get() {
+            // Correct the bias towards the initial zero estimate
+            return estimate / (1 - Math.pow(alpha, totalWeight));
+        }
+    }
+
+}
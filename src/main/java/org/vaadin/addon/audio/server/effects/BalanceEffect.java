@@ -1,36 +1,93 @@
 package org.vaadin.addon.audio.server.effects;
 
 import org.vaadin.addon.audio.server.Effect;
-import org.vaadin.addon.audio.shared.SharedEffect;
-import org.vaadin.addon.audio.shared.SharedEffectProperty;
+import org.vaadin.addon.audio.server.EffectProcessor;
+import org.vaadin.addon.audio.shared.PCMFormat;
+import org.vaadin.addon.audio.shared.SharedEffect.EffectName;
 import org.vaadin.addon.audio.shared.SharedEffectProperty.PropertyName;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class BalanceEffect extends Effect {
 
-    private double position;
-
     public BalanceEffect() {
-        super();
+        super(EffectName.BalanceEffect);
+        setBalance(0);
     }
 
     public void setBalance(double position) {
-        this.position = position;
+        setParameter(PropertyName.Balance, position);
     }
 
     public double getBalance() {
-        return position;
+        return getParameter(PropertyName.Balance);
     }
 
+    /**
+     * Pans stereo audio like the client's equal power panner. Streams of
+     * other channel counts are left unchanged, as panning them would change
+     * their format.
+     */
     @Override
-    public SharedEffect getSharedEffectObject() {
-        SharedEffect shared = new SharedEffect(getID(), SharedEffect.EffectName.BalanceEffect);
-        List<SharedEffectProperty> props = new ArrayList<SharedEffectProperty>();
-        props.add(new SharedEffectProperty(PropertyName.Balance, getBalance() + ""));
-        shared.setProperties(props);
-        return shared;
+    public EffectProcessor createProcessor(PCMFormat format) {
+        double position = getBalance();
+        if (format.getNumChannels() != 2 || position == 0) {
+            return null;
+        }
+        return new PanProcessor(Math.max(-1, Math.min(1, position)));
+    }
+
+    /**
+     * Equal power stereo panning, as specified for the Web Audio
+     * StereoPannerNode
+     */
+    private static final class PanProcessor implements EffectProcessor {
+
+        private final double pan;
+        private final float gainLeft;
+        private final float gainRight;
+
+        PanProcessor(double pan) {
+            this.pan = pan;
+            double x = (pan <= 0 ? pan + 1 : pan) * Math.PI / 2;
+            gainLeft = (float) Math.cos(x);
+            gainRight = (float) Math.sin(x);
+        }
+
+        @Override
+        public String getKey() {
+            return "balance(" + pan + ")";
+        }
+
+        @Override
+        public int getSettlingTime() {
+            return 0;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void process(float[][] samples, int length, long position) {
+            float[] left = samples[0];
+            float[] right = samples[1];
+            if (pan <= 0) {
+                // Right moves into the left channel
+                for (int i = 0; i < length; i++) {
+                    left[i] += right[i] * gainLeft;
+                    right[i] *= gainRight;
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    right[i] += left[i] * gainRight;
+                    left[i] *= gainLeft;
+                }
+            }
+        }
+
+        @Override
+        public EffectProcessor copy() {
+            return this;
+        }
     }
 
 }
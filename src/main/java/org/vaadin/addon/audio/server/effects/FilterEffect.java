@@ -1,13 +1,12 @@
 package org.vaadin.addon.audio.server.effects;
 
 import org.vaadin.addon.audio.server.Effect;
-import org.vaadin.addon.audio.shared.SharedEffect;
+import org.vaadin.addon.audio.server.EffectProcessor;
+import org.vaadin.addon.audio.shared.PCMFormat;
 import org.vaadin.addon.audio.shared.SharedEffect.EffectName;
-import org.vaadin.addon.audio.shared.SharedEffectProperty;
 import org.vaadin.addon.audio.shared.SharedEffectProperty.PropertyName;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class FilterEffect extends Effect {
 
@@ -15,57 +14,181 @@ public class FilterEffect extends Effect {
         LOWPASS, HIGHPASS
     }
 
-    private double q;
-    private double frequency;
-    private double gain;
-    private Type type = Type.LOWPASS;
+    private static final Type[] TYPES = Type.values();
 
     public FilterEffect() {
-        super();
+        super(EffectName.FilterEffect);
+        setQ(0);
+        setFrequency(0);
+        setGain(0);
+        setType(Type.LOWPASS);
     }
 
     public double getQ() {
-        return q;
+        return getParameter(PropertyName.Q);
     }
 
     public void setQ(double q) {
-        this.q = q;
+        setParameter(PropertyName.Q, q);
     }
 
     public double getFrequency() {
-        return frequency;
+        return getParameter(PropertyName.Frequency);
     }
 
     public void setFrequency(double frequency) {
-        this.frequency = frequency;
+        setParameter(PropertyName.Frequency, frequency);
     }
 
     public double getGain() {
-        return gain;
+        return getParameter(PropertyName.Gain);
     }
 
     public void setGain(double gain) {
-        this.gain = gain;
+        setParameter(PropertyName.Gain, gain);
     }
 
     public Type getType() {
-        return type;
+        return TYPES[(int) getParameter(PropertyName.FilterType)];
     }
 
+    /**
+     * Set the filter type, sent to the client as the ordinal of the type
+     */
     public void setType(Type type) {
-        this.type = type;
+        setParameter(PropertyName.FilterType, type.ordinal());
     }
 
     @Override
-    public SharedEffect getSharedEffectObject() {
-        SharedEffect sharedEffect = new SharedEffect(getID(), EffectName.FilterEffect);
-        List<SharedEffectProperty> props = new ArrayList<SharedEffectProperty>();
-        props.add(new SharedEffectProperty(PropertyName.Q, getQ() + ""));
-        props.add(new SharedEffectProperty(PropertyName.Frequency, getFrequency() + ""));
-        props.add(new SharedEffectProperty(PropertyName.Gain, getGain() + ""));
-        props.add(new SharedEffectProperty(PropertyName.FilterType, getType().name()));
-        sharedEffect.setProperties(props);
-        return sharedEffect;
+    protected String formatParameter(PropertyName property, double value) {
+        return property == PropertyName.FilterType ? TYPES[(int) value].name()
+                : super.formatParameter(property, value);
+    }
+
+    /**
+     * Filters with the biquad of the Web Audio BiquadFilterNode, where Q is
+     * the resonance in dB. The gain is not used by low and high pass
+     * filters.
+     */
+    @Override
+    public EffectProcessor createProcessor(PCMFormat format) {
+        return new BiquadProcessor(getType(), getFrequency(), getQ(), format.getSampleRate(),
+                format.getNumChannels());
+    }
+
+    /**
+     * Direct form I biquad filter, one per channel
+     */
+    private static final class BiquadProcessor implements EffectProcessor {
+
+        // Bound on the settling time, for filters on the edge of stability
+        private static final int MAX_SETTLING_TIME = 1 << 17;
+        // Level below which the response to earlier samples is negligible
+        private static final double SETTLED_LEVEL = 1e-5;
+
+        private final Type type;
+        private final double frequency;
+        private final double q;
+        private final int sampleRate;
+        private final double b0, b1, b2, a1, a2;
+        private final int settlingTime;
+        // Two previous inputs and outputs of each channel
+        private final double[] state;
+
+        BiquadProcessor(Type type, double frequency, double q, int sampleRate, int channels) {
+            this.type = type;
+            this.frequency = frequency;
+            this.q = q;
+            this.sampleRate = sampleRate;
+            this.state = new double[channels * 4];
+
+            double nyquist = sampleRate / 2.0;
+            double f = Math.max(0, Math.min(1, frequency / nyquist));
+            boolean lowpass = type == Type.LOWPASS;
+            if (f == 0 || f == 1) {
+                // Passes everything or nothing
+                boolean pass = lowpass == (f == 1);
+                b0 = pass ? 1 : 0;
+                b1 = b2 = a1 = a2 = 0;
+            } else {
+                double w0 = Math.PI * f;
+                double cos = Math.cos(w0);
+                double alpha = Math.sin(w0) / (2 * Math.pow(10, q / 20));
+                double a0 = 1 + alpha;
+                double b = (lowpass ? 1 - cos : 1 + cos) / 2;
+                b0 = b / a0;
+                b1 = (lowpass ? 2 * b : -2 * b) / a0;
+                b2 = b / a0;
+                a1 = -2 * cos / a0;
+                a2 = (1 - alpha) / a0;
+            }
+            settlingTime = getSettlingTime(a1, a2);
+        }
+
+        /**
+         * Get the time for the impulse response to decay, from the largest
+         * pole radius
+         */
+        private static int getSettlingTime(double a1, double a2) {
+            double discriminant = a1 * a1 - 4 * a2;
+            double radius;
+            if (discriminant < 0) {
+                radius = Math.sqrt(a2);
+            } else {
+                double root = Math.sqrt(discriminant);
+                radius = Math.max(Math.abs(-a1 + root), Math.abs(-a1 - root)) / 2;
+            }
+            if (radius <= 0) {
+                return 2;
+            }
+            if (radius >= 1) {
+                return MAX_SETTLING_TIME;
+            }
+            double time = Math.log(SETTLED_LEVEL) / Math.log(radius);
+            return (int) Math.min(MAX_SETTLING_TIME, Math.ceil(time) + 2);
+        }
+
+        @Override
+        public String getKey() {
+            return "filter(" + type + "," + frequency + "," + q + "," + sampleRate + ")";
+        }
+
+        @Override
+        public int getSettlingTime() {
+            return settlingTime;
+        }
+
+        @Override
+        public void reset() {
+            Arrays.fill(state, 0);
+        }
+
+        @Override
+        public void process(float[][] samples, int length, long position) {
+            for (int c = 0; c < samples.length; c++) {
+                float[] s = samples[c];
+                int k = c * 4;
+                double x1 = state[k], x2 = state[k + 1], y1 = state[k + 2], y2 = state[k + 3];
+                for (int i = 0; i < length; i++) {
+                    double x = s[i];
+                    double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+                    x2 = x1;
+                    x1 = x;
+                    y2 = y1;
+                    y1 = y;
+                    s[i] = (float) y;
+                }
+                state[k] = x1;
+                state[k + 1] = x2;
+                state[k + 2] = y1;
+                state[k + 3] = y2;
+            }
+        }
+
+        @Override
+        public EffectProcessor copy() {
+            return new BiquadProcessor(type, frequency, q, sampleRate, state.length / 4);
+        }
     }
 
 }
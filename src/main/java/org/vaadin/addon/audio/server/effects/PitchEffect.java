@@ -1,18 +1,132 @@
 package org.vaadin.addon.audio.server.effects;
 
 import org.vaadin.addon.audio.server.Effect;
-import org.vaadin.addon.audio.shared.SharedEffect;
+import org.vaadin.addon.audio.server.EffectProcessor;
+import org.vaadin.addon.audio.shared.PCMFormat;
+import org.vaadin.addon.audio.shared.SharedEffect.EffectName;
+import org.vaadin.addon.audio.shared.SharedEffectProperty.PropertyName;
+
+import java.util.Arrays;
 
 public class PitchEffect extends Effect {
 
     public PitchEffect() {
-        super();
+        super(EffectName.PitchEffect);
+        setPitch(1);
+    }
+
+    /**
+     * Set the pitch shift as a frequency ratio, e.g. 2 for an octave up.
+     * Default is 1, no shift.
+     */
+    public void setPitch(double pitch) {
+        if (pitch <= 0) {
+            throw new IllegalArgumentException("pitch must be greater than 0");
+        }
+        setParameter(PropertyName.Pitch, pitch);
+    }
+
+    public double getPitch() {
+        return getParameter(PropertyName.Pitch);
     }
 
     @Override
-    public SharedEffect getSharedEffectObject() {
-        // TODO Auto-generated method stub
-        return null;
+    public EffectProcessor createProcessor(PCMFormat format) {
+        double pitch = getPitch();
+        if (pitch == 1) {
+            return null;
+        }
+        return new PitchShiftProcessor(pitch, format.getSampleRate(), format.getNumChannels());
+    }
+
+    /**
+     * Time domain pitch shifter, working like the client's: two taps read a
+     * delay line at the shifted rate, their delays sweeping over a window
+     * half a period apart, and are cross-faded so that each tap is silent
+     * when its delay wraps around.
+     *
+     * The sweep phase is a function of the stream position, so chunks
+     * processed separately join up exactly.
+     */
+    private static final class PitchShiftProcessor implements EffectProcessor {
+
+        // Delay window, as in the client's pitch shift node
+        private static final double WINDOW_SECONDS = 0.1;
+
+        private final double pitch;
+        private final int sampleRate;
+        private final int window;
+        // Fraction of the sweep done per sample
+        private final double sweepRate;
+        private final float[][] lines;
+        private final int mask;
+
+        PitchShiftProcessor(double pitch, int sampleRate, int channels) {
+            this.pitch = pitch;
+            this.sampleRate = sampleRate;
+            this.window = Math.max(16, (int) Math.round(WINDOW_SECONDS * sampleRate));
+            this.sweepRate = Math.abs(pitch - 1) / window;
+            int size = Integer.highestOneBit(window + 2) << 1;
+            this.lines = new float[channels][size];
+            this.mask = size - 1;
+        }
+
+        @Override
+        public String getKey() {
+            return "pitch(" + pitch + "," + sampleRate + ")";
+        }
+
+        @Override
+        public int getSettlingTime() {
+            return window + 2;
+        }
+
+        @Override
+        public void reset() {
+            for (float[] line : lines) {
+                Arrays.fill(line, 0);
+            }
+        }
+
+        @Override
+        public void process(float[][] samples, int length, long position) {
+            boolean up = pitch > 1;
+            for (int i = 0; i < length; i++) {
+                long n = position + i;
+                double sweep = n * sweepRate;
+                double phase = sweep - Math.floor(sweep);
+                double otherPhase = phase < 0.5 ? phase + 0.5 : phase - 0.5;
+                // The delay shrinks to shift up and grows to shift down
+                double delay = window * (up ? 1 - phase : phase);
+                double otherDelay = window * (up ? 1 - otherPhase : otherPhase);
+                // Hann cross-fade, the two weights add up to one
+                float weight = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * phase));
+
+                int index = (int) (n & mask);
+                for (int c = 0; c < lines.length; c++) {
+                    float[] line = lines[c];
+                    line[index] = samples[c][i];
+                    samples[c][i] = weight * tap(line, n, delay) + (1 - weight) * tap(line, n, otherDelay);
+                }
+            }
+        }
+
+        /**
+         * Read the delay line with linear interpolation
+         */
+        private float tap(float[] line, long n, double delay) {
+            double position = n - delay;
+            long first = (long) Math.floor(position);
+            float fraction = (float) (position - first);
+            float a = line[(int) (first & mask)];
+            float b = line[(int) ((first + 1) & mask)];
+            return a + (b - a) * fraction;
+        }
+
+        @Override
+        public EffectProcessor copy() {
+            return new PitchShiftProcessor(pitch, sampleRate, lines.length);
+        }
     }
 
 }
@@ -1,35 +1,70 @@
 package org.vaadin.addon.audio.server.effects;
 
 import org.vaadin.addon.audio.server.Effect;
-import org.vaadin.addon.audio.shared.SharedEffect;
-import org.vaadin.addon.audio.shared.SharedEffectProperty;
-
-import java.util.ArrayList;
-import java.util.List;
+import org.vaadin.addon.audio.server.EffectProcessor;
+import org.vaadin.addon.audio.shared.PCMFormat;
+import org.vaadin.addon.audio.shared.SharedEffect.EffectName;
+import org.vaadin.addon.audio.shared.SharedEffectProperty.PropertyName;
 
 public class VolumeEffect extends Effect {
 
-    private double gain;
-
     public VolumeEffect() {
-        super();
+        super(EffectName.VolumeEffect);
+        setGain(0);
     }
 
     public void setGain(double gain) {
-        this.gain = gain;
+        setParameter(PropertyName.Gain, gain);
     }
 
     public double getGain() {
-        return gain;
+        return getParameter(PropertyName.Gain);
     }
 
     @Override
-    public SharedEffect getSharedEffectObject() {
-        SharedEffect shared = new SharedEffect(getID(), SharedEffect.EffectName.VolumeEffect);
-        List<SharedEffectProperty> props = new ArrayList<SharedEffectProperty>();
-        props.add(new SharedEffectProperty(SharedEffectProperty.PropertyName.Gain, getGain() + ""));
-        shared.setProperties(props);
-        return shared;
+    public EffectProcessor createProcessor(PCMFormat format) {
+        double gain = getGain();
+        return gain == 1 ? null : new GainProcessor((float) gain);
+    }
+
+    /**
+     * Multiplies every sample by the gain
+     */
+    private static final class GainProcessor implements EffectProcessor {
+
+        private final float gain;
+
+        GainProcessor(float gain) {
+            this.gain = gain;
+        }
+
+        @Override
+        public String getKey() {
+            return "volume(" + gain + ")";
+        }
+
+        @Override
+        public int getSettlingTime() {
+            return 0;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void process(float[][] samples, int length, long position) {
+            for (float[] channel : samples) {
+                for (int i = 0; i < length; i++) {
+                    channel[i] *= gain;
+                }
+            }
+        }
+
+        @Override
+        public EffectProcessor copy() {
+            return this;
+        }
     }
 
 }
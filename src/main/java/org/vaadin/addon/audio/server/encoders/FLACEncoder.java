@@ -0,0 +1,911 @@
+package org.vaadin.addon.audio.server.encoders;
+
+import org.vaadin.addon.audio.server.Encoder;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lossless FLAC encoder, written in pure Java. Every chunk is encoded into a
+ * self-contained FLAC stream, which browsers decode natively. Decoded chunks
+ * are bit-exact copies of the PCM range.
+ *
+ * Frames use fixed and linear predictors with Rice coded residuals, and
+ * stereo frames pick the cheapest of independent, left/side, right/side and
+ * mid/side coding. Input of 8, 16 and 24 bits per sample is supported.
+ */
+public class FLACEncoder extends Encoder {
+
+    public static class FLACFormat {
+
+        private int blockSize = 4096;
+        private int compressionLevel = 5;
+
+        /**
+         * Get the number of samples per FLAC frame. Default is 4096.
+         */
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public void setBlockSize(int blockSize) {
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+                throw new IllegalArgumentException(
+                        "block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+            }
+            this.blockSize = blockSize;
+        }
+
+        /**
+         * Get the compression level, from 0 (fastest) to 8 (smallest), with
+         * the same meaning as in the reference encoder. Default is 5.
+         */
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public void setCompressionLevel(int compressionLevel) {
+            if (compressionLevel < 0 || compressionLevel > 8) {
+                throw new IllegalArgumentException("compression level must be between 0 and 8");
+            }
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public String toString() {
+            return "b" + blockSize + "-l" + compressionLevel;
+        }
+    }
+
+    private static final FLACFormat DEFAULT_FORMAT;
+
+    static {
+        DEFAULT_FORMAT = new FLACFormat();
+    }
+
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MAX_BLOCK_SIZE = 65535;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 12;
+    private static final int MAX_PARTITION_ORDER = 8;
+
+    // Settings per compression level
+    private static final int[] LPC_ORDERS = { 0, 0, 0, 6, 8, 8, 8, 12, 12 };
+    private static final int[] PARTITION_ORDERS = { 3, 3, 3, 4, 4, 5, 6, 6, 6 };
+
+    // Fixed part of the stream header: "fLaC" and the STREAMINFO block
+    private static final int STREAM_HEADER_LENGTH = 4 + 4 + 34;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    private FLACFormat outputFormat;
+
+    public FLACEncoder() {
+        this(DEFAULT_FORMAT);
+    }
+
+    public FLACEncoder(FLACFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    public FLACFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + ":" + outputFormat;
+    }
+
+    @Override
+    public byte[] encode(int from_offset, int length) {
+        PCMFormat format = getInputFormat();
+        int channels = format.getNumChannels();
+        int bps = format.getBitsPerSample();
+        if (bps != 8 && bps != 16 && bps != 24) {
+            throw new IllegalStateException("FLAC encoding of " + bps + " bit samples is not supported");
+        }
+        if (channels < 1 || channels > 8) {
+            throw new IllegalStateException("FLAC encoding of " + channels + " channels is not supported");
+        }
+
+        int blockSize = outputFormat.getBlockSize();
+        int level = outputFormat.getCompressionLevel();
+
+        Workspace ws = WORKSPACE.get();
+        ws.prepare(channels, blockSize);
+        BitWriter out = ws.out;
+        out.reset();
+        // Room for the stream header, written when the frame sizes are known
+        out.skipBytes(STREAM_HEADER_LENGTH);
+
+        ByteBuffer pcm = getInputSlice(from_offset, length);
+        int minFrame = Integer.MAX_VALUE;
+        int maxFrame = 0;
+        int frame = 0;
+        for (int start = 0; start < length; start += blockSize, frame++) {
+            int n = Math.min(blockSize, length - start);
+            readBlock(pcm, ws.samples, channels, bps, n);
+            int frameStart = out.byteLength();
+            writeFrame(out, ws, frame, n, channels, bps, level);
+            int frameLength = out.byteLength() - frameStart;
+            minFrame = Math.min(minFrame, frameLength);
+            maxFrame = Math.max(maxFrame, frameLength);
+        }
+
+        byte[] flac = out.toByteArray();
+        writeStreamHeader(flac, format, Math.max(MIN_BLOCK_SIZE, blockSize), frame > 0 ? minFrame : 0, maxFrame,
+                length);
+        return flac;
+    }
+
+    /**
+     * Read a block of little endian PCM samples, padding with silence past
+     * the end of the input
+     */
+    private static void readBlock(ByteBuffer pcm, int[][] samples, int channels, int bps, int n) {
+        int width = bps / 8;
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < channels; c++) {
+                int value = 0;
+                if (pcm.remaining() >= width) {
+                    for (int b = 0; b < width; b++) {
+                        value |= (pcm.get() & 0xff) << (8 * b);
+                    }
+                    if (width == 1) {
+                        // 8 bit WAVE data is unsigned
+                        value -= 128;
+                    } else {
+                        int shift = 32 - bps;
+                        value = (value << shift) >> shift;
+                    }
+                }
+                samples[c][i] = value;
+            }
+        }
+    }
+
+    private static void writeStreamHeader(byte[] flac, PCMFormat format, int blockSize, int minFrame, int maxFrame,
+            long totalSamples) {
+        BitWriter header = new BitWriter(STREAM_HEADER_LENGTH);
+        header.write(0x664c6143, 32); // fLaC
+        // Last metadata block, STREAMINFO, 34 bytes
+        header.write(1, 1);
+        header.write(0, 7);
+        header.write(34, 24);
+        header.write(blockSize, 16);
+        header.write(blockSize, 16);
+        header.write(minFrame, 24);
+        header.write(maxFrame, 24);
+        header.write(format.getSampleRate(), 20);
+        header.write(format.getNumChannels() - 1, 3);
+        header.write(format.getBitsPerSample() - 1, 5);
+        header.write(totalSamples >>> 32, 4);
+        header.write(totalSamples, 32);
+        // MD5 signature left unset
+        header.skipBytes(16);
+        System.arraycopy(header.toByteArray(), 0, flac, 0, STREAM_HEADER_LENGTH);
+    }
+
+    private static void writeFrame(BitWriter out, Workspace ws, int frame, int n, int channels, int bps,
+            int level) {
+        int frameStart = out.byteLength();
+
+        // Pick the channel coding
+        int assignment = channels - 1;
+        Subframe[] subframes = ws.subframes;
+        if (channels == 2 && level > 0) {
+            int[] left = ws.samples[0];
+            int[] right = ws.samples[1];
+            int[] mid = ws.mid;
+            int[] side = ws.side;
+            for (int i = 0; i < n; i++) {
+                mid[i] = (left[i] + right[i]) >> 1;
+                side[i] = left[i] - right[i];
+            }
+            long l = ws.planLeft.plan(left, n, bps, level, ws);
+            long r = ws.planRight.plan(right, n, bps, level, ws);
+            long m = ws.planMid.plan(mid, n, bps, level, ws);
+            long s = ws.planSide.plan(side, n, bps + 1, level, ws);
+            long best = Math.min(Math.min(l + r, l + s), Math.min(r + s, m + s));
+            if (best == l + r) {
+                subframes[0] = ws.planLeft;
+                subframes[1] = ws.planRight;
+            } else if (best == l + s) {
+                assignment = 8;
+                subframes[0] = ws.planLeft;
+                subframes[1] = ws.planSide;
+            } else if (best == r + s) {
+                assignment = 9;
+                subframes[0] = ws.planSide;
+                subframes[1] = ws.planRight;
+            } else {
+                assignment = 10;
+                subframes[0] = ws.planMid;
+                subframes[1] = ws.planSide;
+            }
+        } else {
+            for (int c = 0; c < channels; c++) {
+                ws.planChannels[c].plan(ws.samples[c], n, bps, level, ws);
+                subframes[c] = ws.planChannels[c];
+            }
+        }
+
+        // Frame header: sync code, fixed block size, 16 bit block size, rate
+        // and sample size from STREAMINFO
+        out.write(0xfff8, 16);
+        out.write(7, 4);
+        out.write(0, 4);
+        out.write(assignment, 4);
+        out.write(0, 3);
+        out.write(0, 1);
+        writeUtf8(out, frame);
+        out.write(n - 1, 16);
+        out.write(crc8(out.buffer(), frameStart, out.byteLength()), 8);
+
+        for (int c = 0; c < channels; c++) {
+            subframes[c].write(out, n, ws);
+        }
+
+        out.alignToByte();
+        out.write(crc16(out.buffer(), frameStart, out.byteLength()), 16);
+    }
+
+    private static void writeUtf8(BitWriter out, long value) {
+        if (value < 0x80) {
+            out.write(value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && value >= 1L << (5 * bytes + 1)) {
+            bytes++;
+        }
+        int shift = 6 * (bytes - 1);
+        out.write((0xff00 >> bytes) & 0xff | (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            out.write(0x80 | ((value >>> shift) & 0x3f), 8);
+        }
+    }
+
+    private static int crc8(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Encoding buffers reused by the encodes of one thread
+     */
+    private static final class Workspace {
+
+        int[][] samples = new int[0][];
+        int[] mid = new int[0];
+        int[] side = new int[0];
+        int[] residual = new int[0];
+        long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+        int[] partitionParameters = new int[1 << MAX_PARTITION_ORDER];
+        double[] windowed = new double[0];
+        double[] window = new double[0];
+        int windowLength = -1;
+        double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+        double[][] lpc = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+        double[] lpcErrors = new double[MAX_LPC_ORDER];
+        double[] reflection = new double[MAX_LPC_ORDER];
+        int[] coefficients = new int[MAX_LPC_ORDER];
+
+        Subframe planLeft = new Subframe();
+        Subframe planRight = new Subframe();
+        Subframe planMid = new Subframe();
+        Subframe planSide = new Subframe();
+        Subframe[] planChannels = new Subframe[0];
+        Subframe[] subframes = new Subframe[0];
+        // Scratch plan candidates are built in
+        Subframe candidate = new Subframe();
+
+        final BitWriter out = new BitWriter(64 * 1024);
+
+        void prepare(int channels, int blockSize) {
+            if (samples.length < channels || samples[0].length < blockSize) {
+                samples = new int[channels][blockSize];
+            }
+            if (mid.length < blockSize) {
+                mid = new int[blockSize];
+                side = new int[blockSize];
+                residual = new int[blockSize];
+                windowed = new double[blockSize];
+            }
+            if (planChannels.length < channels) {
+                planChannels = new Subframe[channels];
+                for (int c = 0; c < channels; c++) {
+                    planChannels[c] = new Subframe();
+                }
+                subframes = new Subframe[channels];
+            }
+        }
+
+        /**
+         * Get a Tukey(0.5) window, as used by the reference encoder
+         */
+        double[] getWindow(int n) {
+            if (windowLength != n) {
+                if (window.length < n) {
+                    window = new double[n];
+                }
+                Arrays.fill(window, 0, n, 1.0);
+                int np = (int) (0.5 / 2 * n) - 1;
+                if (np > 0) {
+                    for (int i = 0; i <= np; i++) {
+                        window[i] = 0.5 - 0.5 * Math.cos(Math.PI * i / np);
+                        window[n - np - 1 + i] = 0.5 - 0.5 * Math.cos(Math.PI * (i + np) / np);
+                    }
+                }
+                windowLength = n;
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Encoding plan of one subframe: the predictor and the Rice parameters
+     * chosen for a channel of a block
+     */
+    private static final class Subframe {
+
+        static final int CONSTANT = 0;
+        static final int VERBATIM = 1;
+        static final int FIXED = 2;
+        static final int LPC = 3;
+
+        int[] samples;
+        // Samples without their wasted bits
+        int[] shifted = new int[0];
+        int type;
+        int bps;
+        int wasted;
+        int order;
+        int precision;
+        int shift;
+        final int[] coefficients = new int[MAX_LPC_ORDER];
+        int partitionOrder;
+        final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+        long bits;
+
+        /**
+         * Choose the cheapest coding of samples
+         *
+         * @return estimated size in bits
+         */
+        long plan(int[] x, int n, int sampleBps, int level, Workspace ws) {
+            samples = x;
+            wasted = 0;
+            bps = sampleBps;
+
+            boolean constant = true;
+            int or = 0;
+            for (int i = 0; i < n; i++) {
+                constant &= x[i] == x[0];
+                or |= x[i];
+            }
+            if (constant) {
+                type = CONSTANT;
+                bits = 8 + bps;
+                return bits;
+            }
+
+            // Drop low bits that are zero in every sample
+            int zeros = Integer.numberOfTrailingZeros(or);
+            if (zeros > 0) {
+                if (shifted.length < n) {
+                    shifted = new int[ws.mid.length];
+                }
+                for (int i = 0; i < n; i++) {
+                    shifted[i] = x[i] >> zeros;
+                }
+                samples = shifted;
+                wasted = zeros;
+                bps -= zeros;
+            }
+            int[] s = samples;
+            long header = 8 + (wasted > 0 ? wasted : 0);
+
+            type = VERBATIM;
+            bits = header + (long) n * bps;
+
+            Subframe candidate = ws.candidate;
+            for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+                if (!fixedResidual(s, n, order, ws.residual)) {
+                    continue;
+                }
+                long cost = header + (long) order * bps
+                        + candidate.planResidual(ws.residual, n, order, PARTITION_ORDERS[level], ws);
+                if (cost < bits) {
+                    type = FIXED;
+                    this.order = order;
+                    adoptRice(candidate);
+                    bits = cost;
+                }
+            }
+
+            int maxLpcOrder = Math.min(LPC_ORDERS[level], n - 1);
+            if (maxLpcOrder > 0) {
+                planLpc(s, n, maxLpcOrder, level, header, ws);
+            }
+            return bits;
+        }
+
+        private void planLpc(int[] s, int n, int maxOrder, int level, long header, Workspace ws) {
+            double[] window = ws.getWindow(n);
+            double[] w = ws.windowed;
+            for (int i = 0; i < n; i++) {
+                w[i] = s[i] * window[i];
+            }
+            double[] r = ws.autocorrelation;
+            for (int lag = 0; lag <= maxOrder; lag++) {
+                double sum = 0;
+                for (int i = lag; i < n; i++) {
+                    sum += w[i] * w[i - lag];
+                }
+                r[lag] = sum;
+            }
+            if (r[0] == 0) {
+                return;
+            }
+            maxOrder = levinson(r, maxOrder, ws.lpc, ws.lpcErrors, ws.reflection);
+            if (maxOrder == 0) {
+                return;
+            }
+
+            int precision = getPrecision(n, bps);
+            int firstOrder = maxOrder;
+            int lastOrder = maxOrder;
+            if (level >= 7) {
+                // Exhaustive search
+                firstOrder = 1;
+            } else {
+                // The order with the fewest expected bits
+                double best = Double.MAX_VALUE;
+                for (int order = 1; order <= maxOrder; order++) {
+                    double error = ws.lpcErrors[order - 1];
+                    double bitsPerSample = error > 0 ? Math.max(0, 0.5 * Math.log(0.5 * error / n) / Math.log(2))
+                            : 0;
+                    double expected = bitsPerSample * (n - order) + order * (precision + bps);
+                    if (expected < best) {
+                        best = expected;
+                        firstOrder = lastOrder = order;
+                    }
+                }
+            }
+
+            Subframe candidate = ws.candidate;
+            int[] q = ws.coefficients;
+            for (int order = firstOrder; order <= lastOrder; order++) {
+                int qShift = quantize(ws.lpc[order - 1], order, precision, q);
+                if (qShift < 0 || !lpcResidual(s, n, order, q, qShift, ws.residual)) {
+                    continue;
+                }
+                long cost = header + (long) order * bps + 4 + 5 + (long) order * precision
+                        + candidate.planResidual(ws.residual, n, order, PARTITION_ORDERS[level], ws);
+                if (cost < bits) {
+                    type = LPC;
+                    this.order = order;
+                    this.precision = precision;
+                    shift = qShift;
+                    System.arraycopy(q, 0, coefficients, 0, order);
+                    adoptRice(candidate);
+                    bits = cost;
+                }
+            }
+        }
+
+        private void adoptRice(Subframe candidate) {
+            partitionOrder = candidate.partitionOrder;
+            System.arraycopy(candidate.riceParameters, 0, riceParameters, 0, 1 << partitionOrder);
+        }
+
+        /**
+         * Choose the partition order and Rice parameters for a residual
+         *
+         * @return estimated size of the residual in bits
+         */
+        long planResidual(int[] residual, int n, int predictorOrder, int maxPartitionOrder, Workspace ws) {
+            int po = 0;
+            while (po < maxPartitionOrder && (n & ((2 << po) - 1)) == 0 && (n >> (po + 1)) > predictorOrder) {
+                po++;
+            }
+
+            // Sums of the folded residuals in the finest partitions
+            long[] sums = ws.partitionSums;
+            int partitions = 1 << po;
+            int size = n >> po;
+            int i = predictorOrder;
+            for (int p = 0; p < partitions; p++) {
+                long sum = 0;
+                for (int end = (p + 1) * size; i < end; i++) {
+                    int e = residual[i];
+                    sum += ((e << 1) ^ (e >> 31)) & 0xffffffffL;
+                }
+                sums[p] = sum;
+            }
+
+            long bestBits = Long.MAX_VALUE;
+            int[] params = ws.partitionParameters;
+            for (int order = po;; order--) {
+                int count = 1 << order;
+                int partSize = n >> order;
+                long total = 2 + 4;
+                for (int p = 0; p < count; p++) {
+                    int samplesInPartition = p == 0 ? partSize - predictorOrder : partSize;
+                    int k = riceParameter(sums[p], samplesInPartition);
+                    params[p] = k;
+                    total += 5 + riceBits(sums[p], samplesInPartition, k);
+
+                }
+                if (total < bestBits) {
+                    bestBits = total;
+                    partitionOrder = order;
+                    System.arraycopy(params, 0, riceParameters, 0, count);
+                }
+                if (order == 0) {
+                    break;
+                }
+                // Merge neighbouring partitions for the next coarser order
+                for (int p = 0; p < count / 2; p++) {
+                    sums[p] = sums[2 * p] + sums[2 * p + 1];
+                }
+            }
+            return bestBits;
+        }
+
+        void write(BitWriter out, int n, Workspace ws) {
+            int[] s = samples;
+            out.write(0, 1);
+            switch (type) {
+            case CONSTANT:
+                out.write(0, 6);
+                out.write(0, 1);
+                out.write(s[0], bps);
+                return;
+            case VERBATIM:
+                out.write(1, 6);
+                writeWasted(out);
+                for (int i = 0; i < n; i++) {
+                    out.write(s[i], bps);
+                }
+                return;
+            case FIXED:
+                out.write(8 | order, 6);
+                writeWasted(out);
+                for (int i = 0; i < order; i++) {
+                    out.write(s[i], bps);
+                }
+                fixedResidual(s, n, order, ws.residual);
+                break;
+            default:
+                out.write(32 | (order - 1), 6);
+                writeWasted(out);
+                for (int i = 0; i < order; i++) {
+                    out.write(s[i], bps);
+                }
+                out.write(precision - 1, 4);
+                out.write(shift, 5);
+                for (int i = 0; i < order; i++) {
+                    out.write(coefficients[i], precision);
+                }
+                lpcResidual(s, n, order, coefficients, shift, ws.residual);
+                break;
+            }
+            writeResidual(out, ws.residual, n);
+        }
+
+        private void writeWasted(BitWriter out) {
+            if (wasted == 0) {
+                out.write(0, 1);
+            } else {
+                out.write(1, 1);
+                out.writeUnary(wasted - 1);
+            }
+        }
+
+        private void writeResidual(BitWriter out, int[] residual, int n) {
+            int partitions = 1 << partitionOrder;
+            boolean rice2 = false;
+            for (int p = 0; p < partitions; p++) {
+                rice2 |= riceParameters[p] > 14;
+            }
+            int parameterBits = rice2 ? 5 : 4;
+            out.write(rice2 ? 1 : 0, 2);
+            out.write(partitionOrder, 4);
+            int size = n >> partitionOrder;
+            int i = order;
+            for (int p = 0; p < partitions; p++) {
+                int k = riceParameters[p];
+                out.write(k, parameterBits);
+                for (int end = (p + 1) * size; i < end; i++) {
+                    int e = residual[i];
+                    out.writeRice((e << 1) ^ (e >> 31), k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the residual of a fixed predictor
+     *
+     * @return false if the residual doesn't fit in 32 bits
+     */
+    private static boolean fixedResidual(int[] s, int n, int order, int[] residual) {
+        for (int i = order; i < n; i++) {
+            long e;
+            switch (order) {
+            case 0:
+                e = s[i];
+                break;
+            case 1:
+                e = (long) s[i] - s[i - 1];
+                break;
+            case 2:
+                e = (long) s[i] - 2L * s[i - 1] + s[i - 2];
+                break;
+            case 3:
+                e = (long) s[i] - 3L * s[i - 1] + 3L * s[i - 2] - s[i - 3];
+                break;
+            default:
+                e = (long) s[i] - 4L * s[i - 1] + 6L * s[i - 2] - 4L * s[i - 3] + s[i - 4];
+                break;
+            }
+            if (e != (int) e) {
+                return false;
+            }
+            residual[i] = (int) e;
+        }
+        return true;
+    }
+
+    /**
+     * Compute the residual of a quantized linear predictor
+     *
+     * @return false if the residual doesn't fit in 32 bits
+     */
+    private static boolean lpcResidual(int[] s, int n, int order, int[] q, int shift, int[] residual) {
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) q[j] * s[i - 1 - j];
+            }
+            long e = s[i] - (sum >> shift);
+            if (e != (int) e) {
+                return false;
+            }
+            residual[i] = (int) e;
+        }
+        return true;
+    }
+
+    /**
+     * Levinson-Durbin recursion. lpc[k] receives the predictor coefficients
+     * of order k + 1, errors[k] its prediction error.
+     *
+     * @return highest order computed
+     */
+    private static int levinson(double[] r, int maxOrder, double[][] lpc, double[] errors, double[] a) {
+        double error = r[0];
+        for (int i = 0; i < maxOrder; i++) {
+            double k = -r[i + 1];
+            for (int j = 0; j < i; j++) {
+                k -= a[j] * r[i - j];
+            }
+            k /= error;
+            a[i] = k;
+            for (int j = 0; j < (i >> 1); j++) {
+                double t = a[j];
+                a[j] += k * a[i - 1 - j];
+                a[i - 1 - j] += k * t;
+            }
+            if ((i & 1) != 0) {
+                a[i >> 1] += a[i >> 1] * k;
+            }
+            error *= 1.0 - k * k;
+            for (int j = 0; j <= i; j++) {
+                lpc[i][j] = -a[j];
+            }
+            errors[i] = error;
+            if (error <= 0 || Double.isNaN(error)) {
+                return i + 1;
+            }
+        }
+        return maxOrder;
+    }
+
+    /**
+     * Quantize predictor coefficients to precision bits
+     *
+     * @return the shift of the quantized coefficients, or -1 if they can't
+     *         be represented
+     */
+    private static int quantize(double[] lpc, int order, int precision, int[] q) {
+        double max = 0;
+        for (int i = 0; i < order; i++) {
+            max = Math.max(max, Math.abs(lpc[i]));
+        }
+        if (max <= 0 || Double.isNaN(max) || Double.isInfinite(max)) {
+            return -1;
+        }
+        int log2max = Math.getExponent(max) + 1;
+        int shift = Math.min(15, precision - 1 - log2max);
+        if (shift < 0) {
+            return -1;
+        }
+        int qMax = (1 << (precision - 1)) - 1;
+        int qMin = -(1 << (precision - 1));
+        double error = 0;
+        for (int i = 0; i < order; i++) {
+            error += lpc[i] * (1 << shift);
+            long value = Math.round(error);
+            value = Math.max(qMin, Math.min(qMax, value));
+            error -= value;
+            q[i] = (int) value;
+        }
+        return shift;
+    }
+
+    /**
+     * Coefficient precision used by the reference encoder for a block size
+     */
+    private static int getPrecision(int n, int bps) {
+        int precision;
+        if (n <= 192) {
+            precision = 7;
+        } else if (n <= 384) {
+            precision = 8;
+        } else if (n <= 576) {
+            precision = 9;
+        } else if (n <= 1152) {
+            precision = 10;
+        } else if (n <= 2304) {
+            precision = 11;
+        } else if (n <= 4608) {
+            precision = 12;
+        } else {
+            precision = 13;
+        }
+        return bps > 16 ? Math.min(15, precision + 2) : precision;
+    }
+
+    /**
+     * Pick the Rice parameter with the fewest estimated bits for a partition
+     */
+    private static int riceParameter(long sum, int count) {
+        int k = 0;
+        while (k < 30 && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        int best = k;
+        for (int candidate = Math.max(0, k - 1); candidate <= Math.min(30, k + 1); candidate++) {
+            if (riceBits(sum, count, candidate) < riceBits(sum, count, best)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the Rice coded size of a partition from the sum of its folded
+     * residuals; each value loses half a unit on average to the shift
+     */
+    private static long riceBits(long sum, int count, int k) {
+        long quotients = k == 0 ? sum : Math.max(0, (sum >> k) - (count >> 1));
+        return (long) count * (k + 1) + quotients;
+    }
+
+    /**
+     * Big endian bit writer over a growable byte array
+     */
+    private static final class BitWriter {
+
+        private byte[] buffer;
+        private int length;
+        private long accumulator;
+        private int bits;
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void reset() {
+            length = 0;
+            accumulator = 0;
+            bits = 0;
+        }
+
+        /**
+         * Write the low n bits of value, n at most 32
+         */
+        void write(long value, int n) {
+            accumulator = (accumulator << n) | (value & ((1L << n) - 1));
+            bits += n;
+            while (bits >= 8) {
+                bits -= 8;
+                put((byte) (accumulator >>> bits));
+            }
+        }
+
+        /**
+         * Write count zero bits followed by a one bit
+         */
+        void writeUnary(int count) {
+            while (count >= 32) {
+                write(0, 32);
+                count -= 32;
+            }
+            write(1, count + 1);
+        }
+
+        void writeRice(int folded, int k) {
+            writeUnary(folded >>> k);
+            if (k > 0) {
+                write(folded, k);
+            }
+        }
+
+        void alignToByte() {
+            if (bits > 0) {
+                write(0, 8 - bits);
+            }
+        }
+
+        void skipBytes(int count) {
+            for (int i = 0; i < count; i++) {
+                put((byte) 0);
+            }
+        }
+
+        int byteLength() {
+            return length;
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void put(byte b) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = b;
+        }
+    }
+
+}
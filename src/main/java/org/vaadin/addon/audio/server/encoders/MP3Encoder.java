@@ -1,26 +1,149 @@
 package org.vaadin.addon.audio.server.encoders;
 
+import de.sciss.jump3r.lowlevel.LameEncoder;
 import org.vaadin.addon.audio.server.Encoder;
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
- * MP3 encoder placeholder.
- * User will probably provide this and we won't need it,
- * but it will be good to have during testing...
+ * MP3 encoder, written in pure Java on top of jump3r, a Java port of LAME.
+ * Every chunk is encoded into a self-contained MP3 stream. Input is
+ * converted to 16 bits, at most two channels and the nearest sample rate MP3
+ * supports by a {@link PcmConverter}.
+ *
+ * MP3 encoders prepend a priming delay to the audio and pad the last frame,
+ * which would leave a gap at every chunk boundary. Each chunk therefore gets
+ * a LAME style Info frame recording the encoder delay and padding, which
+ * browsers use to trim decoded chunks back to their exact length.
  */
 public class MP3Encoder extends Encoder {
 
+    public enum ChannelMode {
+        STEREO, JOINT_STEREO, MONO
+    }
+
     public static class MP3Format {
-        // TODO: implement
+
+        private int bitrate = 128;
+        private boolean vbr = false;
+        private int vbrQuality = 4;
+        private int quality = 3;
+        private ChannelMode channelMode = ChannelMode.JOINT_STEREO;
+
+        /**
+         * Get the bitrate in kbit/s used for constant bitrate encoding.
+         * Default is 128.
+         */
+        public int getBitrate() {
+            return bitrate;
+        }
+
+        public void setBitrate(int bitrate) {
+            if (bitrate <= 0) {
+                throw new IllegalArgumentException("bitrate must be positive");
+            }
+            this.bitrate = bitrate;
+        }
+
+        /**
+         * Tells whether variable bitrate encoding is used instead of the
+         * constant bitrate. Default is false.
+         */
+        public boolean isVbr() {
+            return vbr;
+        }
+
+        public void setVbr(boolean vbr) {
+            this.vbr = vbr;
+        }
+
+        /**
+         * Get the variable bitrate quality, from 0 (highest) to 9 (lowest).
+         * Default is 4.
+         */
+        public int getVbrQuality() {
+            return vbrQuality;
+        }
+
+        public void setVbrQuality(int vbrQuality) {
+            if (vbrQuality < 0 || vbrQuality > 9) {
+                throw new IllegalArgumentException("VBR quality must be between 0 and 9");
+            }
+            this.vbrQuality = vbrQuality;
+        }
+
+        /**
+         * Get the algorithm quality of constant bitrate encoding, from 0
+         * (best, slowest) to 9 (worst, fastest). Default is 3.
+         */
+        public int getQuality() {
+            return quality;
+        }
+
+        public void setQuality(int quality) {
+            if (quality < 0 || quality > 9) {
+                throw new IllegalArgumentException("quality must be between 0 and 9");
+            }
+            this.quality = quality;
+        }
+
+        public ChannelMode getChannelMode() {
+            return channelMode;
+        }
+
+        /**
+         * Set the channel mode. {@link ChannelMode#MONO} downmixes the input
+         * to a single channel.
+         */
+        public void setChannelMode(ChannelMode channelMode) {
+            this.channelMode = channelMode;
+        }
+
+        @Override
+        public String toString() {
+            return (vbr ? "v" + vbrQuality : bitrate + "kbps") + "-q" + quality + "-" + channelMode;
+        }
     }
 
     private static final MP3Format DEFAULT_FORMAT;
 
     static {
         DEFAULT_FORMAT = new MP3Format();
-        // TODO: init mp3 format
     }
 
+    // Samples of silence LAME encodes before the audio
+    private static final int ENCODER_DELAY = 576;
+
+    // Delay and padding are stored as 12 bit values in the Info frame
+    private static final int MAX_GAPLESS_VALUE = 4095;
+
+    // Sample rates of MPEG 1, 2 and 2.5 layer III
+    private static final int[] MP3_SAMPLE_RATES = { 8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000 };
+
+    private static final int[][] BITRATES = {
+            // MPEG 1 layer III
+            { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+            // MPEG 2 and 2.5 layer III
+            { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } };
+
+    private static final int[][] SAMPLE_RATES = {
+            // MPEG 2.5, reserved, MPEG 2, MPEG 1
+            { 11025, 12000, 8000 }, null, { 22050, 24000, 16000 }, { 44100, 48000, 32000 } };
+
+    private static final byte[] ENCODER_VERSION = "LAME3.98r".getBytes(StandardCharsets.US_ASCII);
+
+    // Length of the LAME extension following the Xing fields
+    private static final int LAME_TAG_LENGTH = 36;
+
+    // Buffers reused by every chunk encoded on a thread
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
     private MP3Format outputFormat;
+    private PcmConverter converter;
 
     public MP3Encoder() {
         this(DEFAULT_FORMAT);
@@ -28,19 +151,274 @@ public class MP3Encoder extends Encoder {
 
     public MP3Encoder(MP3Format outputFormat) {
         this.outputFormat = outputFormat;
+    }
 
-        // Actual constructor
+    public MP3Format getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + ":" + outputFormat;
+    }
+
+    /**
+     * Tells whether MP3 encoding is available. The encoder is pure Java, so
+     * it always is.
+     *
+     * @return true
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    @Override
+    protected void setInput(PcmSource source) {
+        super.setInput(source);
+        PCMFormat in = source.getFormat();
+        int channels = outputFormat.getChannelMode() == ChannelMode.MONO ? 1 : Math.min(in.getNumChannels(), 2);
+        converter = new PcmConverter(in, new PCMFormat(channels, getMp3SampleRate(in.getSampleRate()), 16));
     }
 
     @Override
     public byte[] encode(int from_offset, int length) {
+        PCMFormat format = converter.getOutputFormat();
+        int samples = converter.getOutputLength(from_offset, length);
+        Buffers buffers = BUFFERS.get();
+        byte[] pcm = buffers.getPcm(samples * format.getSampleSize());
+        converter.convert(getInput(), from_offset, length, pcm, 0);
 
-        return null;
+        LameEncoder lame;
+        try {
+            lame = new LameEncoder(new AudioFormat(format.getSampleRate(), 16, format.getNumChannels(), true, false),
+                    outputFormat.getBitrate(), getLameChannelMode(format), outputFormat.isVbr()
+                            ? outputFormat.getVbrQuality() : outputFormat.getQuality(),
+                    outputFormat.isVbr());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("MP3 encoding of " + format + " as " + outputFormat + " is not supported",
+                    e);
+        }
+
+        int written = 0;
+        try {
+            byte[] frames = buffers.getFrames(lame.getMP3BufferSize());
+            int step = lame.getPCMBufferSize() / format.getSampleSize() * format.getSampleSize();
+            int pcmLength = samples * format.getSampleSize();
+            for (int offset = 0; offset < pcmLength; offset += step) {
+                int n = lame.encodeBuffer(pcm, offset, Math.min(step, pcmLength - offset), frames);
+                written = buffers.append(frames, n, written);
+            }
+            written = buffers.append(frames, lame.encodeFinish(frames), written);
+        } finally {
+            lame.close();
+        }
+        return addInfoFrame(buffers.out, written, samples);
     }
 
-    public static boolean isSupported() {
-        // TODO: actually report if it's supported or not
-        return false;
+    private int getLameChannelMode(PCMFormat format) {
+        if (format.getNumChannels() == 1) {
+            return LameEncoder.CHANNEL_MODE_MONO;
+        }
+        return outputFormat.getChannelMode() == ChannelMode.STEREO ? LameEncoder.CHANNEL_MODE_STEREO
+                : LameEncoder.CHANNEL_MODE_JOINT_STEREO;
+    }
+
+    /**
+     * Get the MP3 sample rate to encode a sample rate at, the lowest that
+     * keeps all of its bandwidth
+     */
+    private static int getMp3SampleRate(int sampleRate) {
+        for (int rate : MP3_SAMPLE_RATES) {
+            if (rate >= sampleRate) {
+                return rate;
+            }
+        }
+        return MP3_SAMPLE_RATES[MP3_SAMPLE_RATES.length - 1];
+    }
+
+    /**
+     * Fill in the Info frame of LAME's output, which LAME leaves blank when
+     * it can't seek back to the start of its output
+     *
+     * @param mp3
+     *            buffer holding LAME's output
+     * @param length
+     *            length of the output
+     * @param numSamples
+     *            number of PCM samples that were encoded
+     * @return the chunk data
+     */
+    private byte[] addInfoFrame(byte[] mp3, int length, int numSamples) {
+        if (!isFrameHeader(mp3, 0, length)) {
+            throw new IllegalStateException("MP3 encoder output does not start with a frame");
+        }
+        // Audio frames follow the blank frame reserved for the tag
+        int start = getFrameLength(mp3, 0);
+        int frames = 0;
+        int end = start;
+        while (isFrameHeader(mp3, end, length)) {
+            int frameLength = getFrameLength(mp3, end);
+            if (end + frameLength > length) {
+                break;
+            }
+            end += frameLength;
+            frames++;
+        }
+        if (frames == 0) {
+            return new byte[0];
+        }
+
+        int samplesPerFrame = isMpeg1(mp3, start) ? 1152 : 576;
+        int padding = frames * samplesPerFrame - ENCODER_DELAY - numSamples;
+        if (padding < 0 || padding > MAX_GAPLESS_VALUE) {
+            throw new IllegalStateException("unexpected MP3 padding of " + padding + " samples");
+        }
+
+        byte[] info = createInfoFrame(mp3, start, end, frames, ENCODER_DELAY, padding);
+        byte[] out = new byte[info.length + end - start];
+        System.arraycopy(info, 0, out, 0, info.length);
+        System.arraycopy(mp3, start, out, info.length, end - start);
+        return out;
+    }
+
+    /**
+     * Create a silent frame carrying a Xing "Info" header and LAME extension,
+     * matching the format of the first audio frame.
+     */
+    private byte[] createInfoFrame(byte[] mp3, int start, int end, int frames, int delay, int padding) {
+        boolean mpeg1 = isMpeg1(mp3, start);
+        int sideInfo = getSideInfoLength(mp3, start);
+        int needed = 4 + sideInfo + 16 + LAME_TAG_LENGTH;
+
+        // Use the bitrate of the audio, or the lowest one that fits the tag
+        int bitrateIndex = (mp3[start + 2] >> 4) & 0x0f;
+        int sampleRate = getSampleRate(mp3, start);
+        int[] bitrates = BITRATES[mpeg1 ? 0 : 1];
+        while (bitrateIndex < bitrates.length - 1 && frameLength(mpeg1, bitrates[bitrateIndex], sampleRate) < needed) {
+            bitrateIndex++;
+        }
+
+        byte[] frame = new byte[frameLength(mpeg1, bitrates[bitrateIndex], sampleRate)];
+        frame[0] = (byte) 0xff;
+        // no CRC protection
+        frame[1] = (byte) (mp3[start + 1] | 0x01);
+        // no padding, no private bit
+        frame[2] = (byte) ((bitrateIndex << 4) | (mp3[start + 2] & 0x0c));
+        // channel mode without mode extension
+        frame[3] = (byte) (mp3[start + 3] & 0xcf);
+
+        int p = 4 + sideInfo;
+        // Xing for variable bitrates, Info for constant ones
+        p = put(frame, p, outputFormat.isVbr() ? 0x58696e67 : 0x496e666f, 4);
+        p = put(frame, p, 0x03, 4); // frames and bytes fields present
+        p = put(frame, p, frames, 4);
+        p = put(frame, p, frame.length + end - start, 4);
+
+        System.arraycopy(ENCODER_VERSION, 0, frame, p, ENCODER_VERSION.length);
+        p += ENCODER_VERSION.length;
+        // tag revision 0, VBR method
+        frame[p++] = (byte) (outputFormat.isVbr() ? 4 : 1);
+        // lowpass, replay gain peak and gains, encoding flags
+        p += 1 + 4 + 2 + 2 + 1;
+        frame[p++] = (byte) Math.min(outputFormat.isVbr() ? 0 : outputFormat.getBitrate(), 255);
+        p = put(frame, p, (delay << 12) | padding, 3);
+        // misc, MP3 gain, preset and surround
+        p += 1 + 1 + 2;
+        p = put(frame, p, frame.length + end - start, 4);
+        p = put(frame, p, crc16(mp3, start, end, 0), 2);
+        put(frame, p, crc16(frame, 0, p, 0), 2);
+
+        return frame;
+    }
+
+    private static int put(byte[] data, int offset, int value, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            data[offset++] = (byte) (value >>> (8 * i));
+        }
+        return offset;
+    }
+
+    /**
+     * CRC-16 with polynomial 0x8005, as used by the LAME tag
+     */
+    private static int crc16(byte[] data, int from, int to, int crc) {
+        for (int i = from; i < to; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xa001 : crc >>> 1;
+            }
+        }
+        return crc & 0xffff;
+    }
+
+    private static boolean isFrameHeader(byte[] data, int offset, int length) {
+        if (offset + 4 > length || (data[offset] & 0xff) != 0xff || (data[offset + 1] & 0xe0) != 0xe0) {
+            return false;
+        }
+        int version = (data[offset + 1] >> 3) & 0x03;
+        int layer = (data[offset + 1] >> 1) & 0x03;
+        int bitrateIndex = (data[offset + 2] >> 4) & 0x0f;
+        int sampleRateIndex = (data[offset + 2] >> 2) & 0x03;
+        return version != 1 && layer == 1 && bitrateIndex != 0 && bitrateIndex != 15 && sampleRateIndex != 3;
+    }
+
+    private static boolean isMpeg1(byte[] data, int offset) {
+        return ((data[offset + 1] >> 3) & 0x03) == 3;
+    }
+
+    private static int getSampleRate(byte[] data, int offset) {
+        return SAMPLE_RATES[(data[offset + 1] >> 3) & 0x03][(data[offset + 2] >> 2) & 0x03];
+    }
+
+    private static int getSideInfoLength(byte[] data, int offset) {
+        boolean mono = ((data[offset + 3] >> 6) & 0x03) == 3;
+        if (isMpeg1(data, offset)) {
+            return mono ? 17 : 32;
+        }
+        return mono ? 9 : 17;
+    }
+
+    private static int getFrameLength(byte[] data, int offset) {
+        boolean mpeg1 = isMpeg1(data, offset);
+        int bitrate = BITRATES[mpeg1 ? 0 : 1][(data[offset + 2] >> 4) & 0x0f];
+        int padding = (data[offset + 2] >> 1) & 0x01;
+        return frameLength(mpeg1, bitrate, getSampleRate(data, offset)) + padding;
+    }
+
+    private static int frameLength(boolean mpeg1, int bitrate, int sampleRate) {
+        return (mpeg1 ? 144000 : 72000) * bitrate / sampleRate;
+    }
+
+    /**
+     * Output buffers of one thread
+     */
+    private static final class Buffers {
+
+        byte[] pcm = new byte[0];
+        byte[] frames = new byte[0];
+        byte[] out = new byte[16 * 1024];
+
+        byte[] getPcm(int length) {
+            if (pcm.length < length) {
+                pcm = new byte[length];
+            }
+            return pcm;
+        }
+
+        byte[] getFrames(int length) {
+            if (frames.length < length) {
+                frames = new byte[length];
+            }
+            return frames;
+        }
+
+        int append(byte[] data, int length, int offset) {
+            if (offset + length > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, offset + length));
+            }
+            System.arraycopy(data, 0, out, offset, length);
+            return offset + length;
+        }
     }
 
 }
@@ -1,26 +1,112 @@
 package org.vaadin.addon.audio.server.encoders;
 
+import org.gagravarr.ogg.OggFile;
+import org.gagravarr.ogg.OggPacket;
+import org.gagravarr.ogg.OggPacketWriter;
+import org.gagravarr.vorbis.VorbisComments;
+import org.gagravarr.vorbis.VorbisInfo;
+import org.gagravarr.vorbis.VorbisSetup;
 import org.vaadin.addon.audio.server.Encoder;
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 /**
- * OGG encoder placeholder. We'll need to add a dependency to an
- * open source OGG encoder implementation and run it in a thread
- * or something.
+ * OGG/Vorbis encoder, written in pure Java. Audio is encoded by the in-tree
+ * {@link VorbisEncoder} and framed into Ogg pages with vorbis-java. The codec
+ * setup is built once per input; every chunk reuses it.
+ *
+ * Every chunk is encoded into a complete Ogg stream. The blocks at its edges
+ * overlap the neighbouring chunks' samples, and the final granule position
+ * carries the exact sample count, so decoded chunks keep the length of the
+ * PCM range and play back-to-back without gaps.
  */
 public class OGGEncoder extends Encoder {
 
     public static class OGGFormat {
-        // TODO: implement
+
+        /**
+         * Bitrate value telling that audio is encoded by quality
+         */
+        public static final int BITRATE_UNSET = -1;
+
+        private float quality = 0.4f;
+        private int bitrate = BITRATE_UNSET;
+
+        /**
+         * Get the variable bitrate quality, from -0.1 (lowest) to 1.0
+         * (highest). Default is 0.4, about 140 kbit/s for stereo 44.1 kHz
+         * music. A pure tone keeps about 35 dB signal to noise ratio at 0.4
+         * and 47 dB at 1.0.
+         *
+         * The encoder only uses long blocks and codes channels separately, so
+         * it needs more bits than libvorbis for the same quality, and sharp
+         * attacks get some pre-echo.
+         */
+        public float getQuality() {
+            return quality;
+        }
+
+        public void setQuality(float quality) {
+            if (quality < -0.1f || quality > 1.0f) {
+                throw new IllegalArgumentException("quality must be between -0.1 and 1.0");
+            }
+            this.quality = quality;
+        }
+
+        /**
+         * Get the nominal bitrate in bits per second, or
+         * {@link #BITRATE_UNSET} to encode by quality.
+         */
+        public int getBitrate() {
+            return bitrate;
+        }
+
+        /**
+         * Set a nominal bitrate in bits per second. When set, it takes
+         * precedence over the quality setting and every chunk is encoded at
+         * the best quality that fits it.
+         */
+        public void setBitrate(int bitrate) {
+            if (bitrate <= 0 && bitrate != BITRATE_UNSET) {
+                throw new IllegalArgumentException("bitrate must be positive");
+            }
+            this.bitrate = bitrate;
+        }
+
+        @Override
+        public String toString() {
+            return bitrate == BITRATE_UNSET ? "q" + quality : bitrate + "bps";
+        }
     }
 
     private static final OGGFormat DEFAULT_FORMAT;
 
     static {
         DEFAULT_FORMAT = new OGGFormat();
-        // TODO: init ogg format
     }
 
+    private static final String VENDOR = "AudioPlayer Vorbis encoder";
+
+    // Size at which pages are completed, as libvorbis does
+    private static final int PAGE_SIZE = 4096;
+
+    // Noise ratios searched for the best quality fitting a nominal bitrate,
+    // beyond quality 1.0 residues would outgrow the codebooks
+    private static final float MIN_NOISE_RATIO = getNoiseRatio(-0.1f);
+    private static final float MAX_NOISE_RATIO = getNoiseRatio(1.0f);
+    private static final int BITRATE_SEARCH_STEPS = 8;
+
+    // Buffers reused by every chunk encoded on a thread
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
     private OGGFormat outputFormat;
+    private VorbisEncoder vorbis;
+    private byte[] setupHeader;
 
     public OGGEncoder() {
         this(DEFAULT_FORMAT);
@@ -28,15 +114,211 @@ public class OGGEncoder extends Encoder {
 
     public OGGEncoder(OGGFormat outputFormat) {
         this.outputFormat = outputFormat;
+    }
+
+    public OGGFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + ":" + outputFormat;
+    }
+
+    /**
+     * Tells whether OGG/Vorbis encoding is available. The encoder is pure
+     * Java, so it always is.
+     *
+     * @return true
+     */
+    public static boolean isSupported() {
+        return true;
+    }
 
+    @Override
+    protected void setInput(PcmSource source) {
+        super.setInput(source);
+        PCMFormat format = source.getFormat();
+        vorbis = new VorbisEncoder(format.getNumChannels(), format.getSampleRate(), getCutoff(format));
+        setupHeader = vorbis.createSetupHeader();
     }
 
     @Override
     public byte[] encode(int from_offset, int length) {
+        PCMFormat format = getInputFormat();
+        int channels = format.getNumChannels();
+        int bps = format.getBitsPerSample();
+        if (bps != 8 && bps != 16 && bps != 24 && bps != 32) {
+            throw new IllegalStateException("OGG encoding of " + bps + " bit samples is not supported");
+        }
+
+        int hop = VorbisEncoder.HOP;
+        int samples = Math.max(0, Math.min(length, getInput().getSampleCount() - from_offset));
+        if (samples == 0) {
+            return new byte[0];
+        }
+        // Packet k decodes the samples from (k - 1) * hop to k * hop, from
+        // the block spanning one hop to each side of (k - 1) * hop
+        int packets = (samples + hop - 1) / hop + 1;
+
+        Workspace ws = WORKSPACE.get();
+        ws.prepare(channels, packets);
+        readSamples(from_offset - hop, (packets + 1) * hop, ws.samples, channels, bps);
+        for (int k = 0; k < packets; k++) {
+            for (int c = 0; c < channels; c++) {
+                vorbis.transform(ws.samples[c], k * hop, ws.spectra[k][c], ws.vorbis);
+            }
+        }
+
+        float noiseRatio;
+        if (outputFormat.getBitrate() == OGGFormat.BITRATE_UNSET) {
+            noiseRatio = getNoiseRatio(outputFormat.getQuality());
+        } else {
+            long headerBits = 8L * (setupHeader.length + VENDOR.length());
+            noiseRatio = findNoiseRatio(ws, packets,
+                    (long) outputFormat.getBitrate() * samples / format.getSampleRate() - headerBits);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            OggFile ogg = new OggFile(bytes);
+            OggPacketWriter writer = ogg.getPacketWriter(from_offset);
+            writer.bufferPacket(createInfoHeader(format).write(), true);
+            VorbisComments comments = new VorbisComments();
+            comments.setVendor(VENDOR);
+            writer.bufferPacket(comments.write());
+            VorbisSetup setup = new VorbisSetup();
+            setup.setData(setupHeader);
+            writer.bufferPacket(setup.write(), true);
+
+            VorbisEncoder.BitWriter out = ws.out;
+            for (int k = 0; k < packets; k++) {
+                out.reset();
+                vorbis.encodePacket(ws.spectra[k], noiseRatio, ws.vorbis, out);
+                writer.bufferPacket(new OggPacket(out.toByteArray()), Math.min((long) k * hop, samples));
+                // The last page is left to close(), which would otherwise end
+                // the stream with an empty packet
+                if (k + 1 < packets && writer.getSizePendingFlush() >= PAGE_SIZE) {
+                    writer.flush();
+                }
+            }
+            writer.close();
+            ogg.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private VorbisInfo createInfoHeader(PCMFormat format) {
+        VorbisInfo info = new VorbisInfo();
+        info.setChannels(format.getNumChannels());
+        info.setRate(format.getSampleRate());
+        info.setBlocksize0(VorbisEncoder.SHORT_BLOCK_SIZE);
+        info.setBlocksize1(VorbisEncoder.BLOCK_SIZE);
+        if (outputFormat.getBitrate() != OGGFormat.BITRATE_UNSET) {
+            info.setBitrateNominal(outputFormat.getBitrate());
+        }
+        return info;
+    }
+
+    /**
+     * Find the largest noise ratio whose packets fit in a number of bits
+     */
+    private float findNoiseRatio(Workspace ws, int packets, long budget) {
+        double low = Math.log(MIN_NOISE_RATIO);
+        double high = Math.log(MAX_NOISE_RATIO);
+        VorbisEncoder.BitWriter out = ws.out;
+        for (int step = 0; step < BITRATE_SEARCH_STEPS; step++) {
+            double middle = (low + high) / 2;
+            long bits = 0;
+            for (int k = 0; k < packets; k++) {
+                out.reset();
+                vorbis.encodePacket(ws.spectra[k], (float) Math.exp(middle), ws.vorbis, out);
+                bits += out.bitLength();
+            }
+            if (bits > budget) {
+                high = middle;
+            } else {
+                low = middle;
+            }
+        }
+        return (float) Math.exp(low);
+    }
+
+    /**
+     * Get the ratio of signal to quantization noise in every band for a
+     * quality setting
+     */
+    private static float getNoiseRatio(float quality) {
+        return (float) (0.5 * Math.pow(11.3, quality - 0.4));
+    }
+
+    /**
+     * Get the frequency above which audio is cut off, lower for low
+     * qualities and bitrates where the bits are better spent below it
+     */
+    private double getCutoff(PCMFormat format) {
+        if (outputFormat.getBitrate() == OGGFormat.BITRATE_UNSET) {
+            return 14000 + 6000 * outputFormat.getQuality();
+        }
+        double channelBitrate = (double) outputFormat.getBitrate() / format.getNumChannels();
+        return Math.max(8000, Math.min(20000, 4000 + 0.2 * channelBitrate));
+    }
+
+    /**
+     * Read little endian PCM samples as floats from -1 to 1, with silence
+     * outside the input
+     *
+     * @param from
+     *            first sample to read, may be negative
+     */
+    private void readSamples(int from, int length, float[][] samples, int channels, int bps) {
+        int start = Math.max(0, from);
+        int skipped = start - from;
+        ByteBuffer pcm = getInputSlice(start, length - skipped);
+        int width = bps / 8;
+        float scale = 1f / (1L << (bps - 1));
+        for (int i = 0; i < length; i++) {
+            for (int c = 0; c < channels; c++) {
+                int value = 0;
+                if (i >= skipped && pcm.remaining() >= width) {
+                    for (int b = 0; b < width; b++) {
+                        value |= (pcm.get() & 0xff) << (8 * b);
+                    }
+                    if (width == 1) {
+                        // 8 bit WAVE data is unsigned
+                        value -= 128;
+                    } else {
+                        int shift = 32 - bps;
+                        value = (value << shift) >> shift;
+                    }
+                }
+                samples[c][i] = value * scale;
+            }
+        }
+    }
+
+    /**
+     * Encoding buffers reused by the encodes of one thread
+     */
+    private static final class Workspace {
 
-        // TODO: implement OGG encoding
+        float[][] samples = new float[0][];
+        float[][][] spectra = new float[0][][];
+        final VorbisEncoder.Workspace vorbis = new VorbisEncoder.Workspace();
+        final VorbisEncoder.BitWriter out = new VorbisEncoder.BitWriter();
 
-        return null;
+        void prepare(int channels, int packets) {
+            int length = (packets + 1) * VorbisEncoder.HOP;
+            if (samples.length < channels || samples[0].length < length) {
+                samples = new float[channels][Math.max(length, samples.length == 0 ? 0 : samples[0].length)];
+            }
+            if (spectra.length < packets || spectra.length > 0 && spectra[0].length < channels) {
+                spectra = new float[Math.max(packets, spectra.length)][channels][VorbisEncoder.HOP];
+            }
+            vorbis.prepare(channels);
+        }
     }
 
 }
@@ -0,0 +1,313 @@
+package org.vaadin.addon.audio.server.encoders;
+
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts little endian PCM data between sample rates, bit depths and
+ * channel counts.
+ *
+ * Resampling uses a polyphase bank of Kaiser windowed sinc filters for the
+ * exact rational rate ratio. Output sample positions are computed from the
+ * absolute input position, and the filters read input samples from outside
+ * the converted range, so separately converted chunks join seamlessly.
+ * Channels are mixed before resampling. Output of 16 bits or less is
+ * quantized with TPDF dither whenever it carries less precision than the
+ * converted signal.
+ */
+final class PcmConverter {
+
+    // Zero crossings of the filter on each side, which sets its sharpness
+    private static final int ZERO_CROSSINGS = 16;
+    // Passband edge, relative to the lower Nyquist frequency
+    private static final double CUTOFF = 0.92;
+    private static final double KAISER_BETA = 8.0;
+    private static final int MAX_PHASES = 4096;
+
+    private static final ThreadLocal<double[][]> MIXED = ThreadLocal.withInitial(() -> new double[0][0]);
+
+    private final PCMFormat in;
+    private final PCMFormat out;
+
+    private final boolean resample;
+    // Output rate / input rate = up / down
+    private final int up;
+    private final int down;
+    // Filter taps on each side of the output position, in input samples
+    private final int halfTaps;
+    private final double[][] bank;
+
+    private final boolean dither;
+
+    PcmConverter(PCMFormat in, PCMFormat out) {
+        checkBits(in.getBitsPerSample());
+        checkBits(out.getBitsPerSample());
+        if (out.getNumChannels() < 1) {
+            throw new IllegalArgumentException("output needs at least one channel");
+        }
+        this.in = in;
+        this.out = out;
+
+        int gcd = gcd(in.getSampleRate(), out.getSampleRate());
+        up = out.getSampleRate() / gcd;
+        down = in.getSampleRate() / gcd;
+        resample = up != down;
+        if (up > MAX_PHASES) {
+            throw new IllegalArgumentException(
+                    "can't resample from " + in.getSampleRate() + " Hz to " + out.getSampleRate() + " Hz");
+        }
+
+        if (resample) {
+            double cutoff = CUTOFF * Math.min(1.0, (double) up / down);
+            halfTaps = (int) Math.ceil(ZERO_CROSSINGS / cutoff);
+            bank = createBank(up, halfTaps, cutoff);
+        } else {
+            halfTaps = 0;
+            bank = null;
+        }
+
+        boolean mixes = in.getNumChannels() > out.getNumChannels();
+        dither = out.getBitsPerSample() <= 16
+                && (out.getBitsPerSample() < in.getBitsPerSample() || resample || mixes);
+    }
+
+    PCMFormat getOutputFormat() {
+        return out;
+    }
+
+    /**
+     * Get the first output sample at or after an input sample position
+     */
+    long getOutputPosition(long inputSample) {
+        return (inputSample * up + down - 1) / down;
+    }
+
+    /**
+     * Get the number of output samples for a range of input samples
+     */
+    int getOutputLength(int from, int length) {
+        return (int) (getOutputPosition((long) from + length) - getOutputPosition(from));
+    }
+
+    /**
+     * Convert a range of input samples.
+     *
+     * @param input
+     *            source of the input samples; samples around the range are
+     *            read too
+     * @param from
+     *            first input sample of the range
+     * @param length
+     *            number of input samples in the range
+     * @param output
+     *            array to write the converted samples to
+     * @param offset
+     *            offset in output to write to
+     * @return number of output samples written
+     */
+    int convert(PcmSource input, int from, int length, byte[] output, int offset) {
+        int inputSamples = input.getSampleCount();
+        long first = getOutputPosition(from);
+        int count = getOutputLength(from, length);
+        if (count == 0) {
+            return 0;
+        }
+
+        // Input range the filters reach into
+        long readFrom = from;
+        long readTo = (long) from + length;
+        if (resample) {
+            readFrom = first * down / up - halfTaps + 1;
+            readTo = (first + count - 1) * down / up + halfTaps + 1;
+        }
+        int span = (int) (readTo - readFrom);
+        int channels = out.getNumChannels();
+        double[][] mixed = getMixBuffer(channels, span);
+        // Only the input samples that exist are read, the rest are silent
+        int readFirst = (int) Math.max(0, readFrom);
+        int readLast = (int) Math.min(inputSamples, readTo);
+        ByteBuffer samples = input.read(readFirst, Math.max(0, readLast - readFirst));
+        mix(samples, readFirst, readLast, readFrom, span, mixed);
+
+        int bits = out.getBitsPerSample();
+        int width = bits / 8;
+        double scale = Math.pow(2, bits - 1);
+        long max = (1L << (bits - 1)) - 1;
+        long min = -(1L << (bits - 1));
+        for (int i = 0; i < count; i++) {
+            long j = first + i;
+            int base = 0;
+            double[] taps = null;
+            if (resample) {
+                long t = j * down;
+                base = (int) (t / up - halfTaps + 1 - readFrom);
+                taps = bank[(int) (t % up)];
+            } else {
+                base = i;
+            }
+            for (int c = 0; c < channels; c++) {
+                double[] x = mixed[c];
+                double y;
+                if (taps != null) {
+                    y = 0;
+                    for (int k = 0; k < taps.length; k++) {
+                        y += taps[k] * x[base + k];
+                    }
+                } else {
+                    y = x[base];
+                }
+
+                double v = y * scale;
+                if (dither) {
+                    // Noise derived from the sample position, so chunks match however they're cut
+                    long random = mixBits(j * channels + c);
+                    double r1 = (random >>> 32) * 0x1.0p-32;
+                    double r2 = (random & 0xffffffffL) * 0x1.0p-32;
+                    v += r1 - r2;
+                }
+                long q = Math.max(min, Math.min(max, Math.round(v)));
+                if (width == 1) {
+                    // 8 bit WAVE data is unsigned
+                    q += 128;
+                }
+                int o = offset + (i * channels + c) * width;
+                for (int b = 0; b < width; b++) {
+                    output[o + b] = (byte) (q >> (8 * b));
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read input samples, mixed to the output channels and scaled to -1..1.
+     * Samples outside the input are silent.
+     *
+     * @param input
+     *            PCM bytes of the input samples first to last (exclusive)
+     */
+    private void mix(ByteBuffer input, int first, int last, long from, int span, double[][] mixed) {
+        int inChannels = in.getNumChannels();
+        int outChannels = out.getNumChannels();
+        int bits = in.getBitsPerSample();
+        int width = bits / 8;
+        int shift = 32 - bits;
+        double scale = 1.0 / Math.pow(2, bits - 1);
+        int frameSize = in.getSampleSize();
+
+        for (int i = 0; i < span; i++) {
+            long n = from + i;
+            for (int c = 0; c < outChannels; c++) {
+                mixed[c][i] = 0;
+            }
+            if (n < first || n >= last) {
+                continue;
+            }
+            int frame = input.position() + (int) (n - first) * frameSize;
+            for (int ic = 0; ic < inChannels; ic++) {
+                int p = frame + ic * width;
+                int value = 0;
+                for (int b = 0; b < width; b++) {
+                    value |= (input.get(p + b) & 0xff) << (8 * b);
+                }
+                if (width == 1) {
+                    value -= 128;
+                } else {
+                    value = (value << shift) >> shift;
+                }
+                double sample = value * scale;
+                if (inChannels >= outChannels) {
+                    // Average the input channels folded onto each output
+                    mixed[ic % outChannels][i] += sample;
+                } else {
+                    // Repeat the input channels over the outputs
+                    for (int c = ic; c < outChannels; c += inChannels) {
+                        mixed[c][i] = sample;
+                    }
+                }
+            }
+            if (inChannels > outChannels) {
+                for (int c = 0; c < outChannels; c++) {
+                    mixed[c][i] /= (inChannels - c + outChannels - 1) / outChannels;
+                }
+            }
+        }
+    }
+
+    private static double[][] getMixBuffer(int channels, int span) {
+        double[][] mixed = MIXED.get();
+        if (mixed.length < channels || mixed[0].length < span) {
+            mixed = new double[Math.max(channels, mixed.length)][Math.max(span, mixed.length > 0 ? mixed[0].length : 0)];
+            MIXED.set(mixed);
+        }
+        return mixed;
+    }
+
+    /**
+     * Create the filter of each output phase. Phase p filters the output
+     * position p / up input samples after an input sample.
+     */
+    private static double[][] createBank(int phases, int halfTaps, double cutoff) {
+        double[][] bank = new double[phases][2 * halfTaps];
+        double norm = besselI0(KAISER_BETA);
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            for (int k = 0; k < 2 * halfTaps; k++) {
+                // Distance from the output position to the input sample
+                double t = (double) p / phases + halfTaps - 1 - k;
+                double h = 0;
+                double ratio = t / halfTaps;
+                if (Math.abs(ratio) < 1) {
+                    double x = cutoff * t;
+                    double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+                    double window = besselI0(KAISER_BETA * Math.sqrt(1 - ratio * ratio)) / norm;
+                    h = cutoff * sinc * window;
+                }
+                bank[p][k] = h;
+                sum += h;
+            }
+            // Unity gain for constant signals
+            for (int k = 0; k < 2 * halfTaps; k++) {
+                bank[p][k] /= sum;
+            }
+        }
+        return bank;
+    }
+
+    private static long mixBits(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-17) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static void checkBits(int bits) {
+        if (bits != 8 && bits != 16 && bits != 24 && bits != 32) {
+            throw new IllegalArgumentException(bits + " bit samples are not supported");
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
@@ -0,0 +1,902 @@
+package org.vaadin.addon.audio.server.encoders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Vorbis I encoder, written in pure Java. Encodes blocks of float samples
+ * into Vorbis packets with a fixed setup: long blocks of 2048 samples only,
+ * floor 1 over a fixed set of frequency lines, and residue 1 with partitions
+ * classified by their peak and coded through cascaded lattice codebooks.
+ * Channels are coded independently.
+ *
+ * The floor of each band is the band's level divided by a noise ratio, raised
+ * where louder bands nearby mask the noise and never below the threshold of
+ * hearing. Tonal bands get a larger ratio than noisy ones. Residues are the
+ * spectrum divided by the floor and rounded, so quantization noise follows
+ * the floor. Larger noise ratios give better quality at higher bitrates.
+ *
+ * Encoders are immutable and may be shared; the buffers of each thread are
+ * kept in a {@link Workspace}.
+ */
+final class VorbisEncoder {
+
+    static final int BLOCK_SIZE = 2048;
+    // Samples between the starts of consecutive blocks, and spectral lines per block
+    static final int HOP = BLOCK_SIZE / 2;
+    // Short blocks are declared, as the format requires, but never used
+    static final int SHORT_BLOCK_SIZE = 256;
+
+    private static final int FLOOR_MULTIPLIER = 2;
+    private static final int FLOOR_RANGE = 128;
+    private static final int FLOOR_RANGE_BITS = 10;
+    private static final int FLOOR_CLASS_DIMENSIONS = 2;
+    // Lines of the floor points besides 0 and HOP, in increasing order
+    private static final int[] FLOOR_LINES = { 1, 2, 3, 4, 5, 6, 8, 10, 12, 14, 16, 20, 24, 28, 32, 40, 48, 56, 64,
+            80, 96, 112, 128, 160, 192, 224, 256, 320, 384, 448, 512, 640, 768, 896 };
+    // Amplitude of each floor value, the floor1_inverse_dB_table of the
+    // specification, which is geometric from 1.0649863e-07 to 1
+    private static final float[] FLOOR_AMPLITUDES = new float[256];
+
+    // Masking of neighbouring bands, in dB per Bark and below the masker
+    private static final double MASKING_SLOPE_UP = 12;
+    private static final double MASKING_SLOPE_DOWN = 27;
+    private static final float MASKING_OFFSET = 2;
+    // Noise ratio gained by tonal bands, as noise masks noise far better than tones
+    private static final float TONAL_ACCURACY = 20;
+
+    private static final int PARTITION_SIZE = 16;
+    private static final int CLASS_DIMENSIONS = 2;
+    // Largest residue each partition class codes
+    private static final int[] CLASS_LIMITS = { 0, 1, 2, 7, 112, 1687 };
+
+    private static final int BOOK_FLOOR = 0;
+    private static final int BOOK_CLASSES = 1;
+    private static final int BOOK_UNIT = 2;
+    private static final int BOOK_SMALL = 3;
+    private static final int BOOK_FINE = 4;
+    private static final int BOOK_COARSE = 5;
+    private static final int BOOK_COARSEST = 6;
+    // Books of each partition class by pass
+    private static final int[][] CLASS_BOOKS = { {}, { BOOK_UNIT }, { BOOK_SMALL }, { BOOK_FINE },
+            { BOOK_COARSE, BOOK_FINE }, { BOOK_COARSEST, BOOK_COARSE, BOOK_FINE } };
+    private static final int PASSES = 3;
+
+    private static final Codebook[] BOOKS;
+
+    // Floor points in the order they are coded, and their neighbours in it
+    private static final int[] POINT_LINES;
+    private static final int[] LOW_NEIGHBORS;
+    private static final int[] HIGH_NEIGHBORS;
+    // Points in order of their lines
+    private static final int[] SORTED_POINTS;
+
+    private static final float[] WINDOW = new float[BLOCK_SIZE];
+    private static final Mdct MDCT = new Mdct(BLOCK_SIZE);
+
+    static {
+        for (int i = 0; i < FLOOR_AMPLITUDES.length; i++) {
+            FLOOR_AMPLITUDES[i] = (float) (1.0649863e-07 * Math.pow(1 / 1.0649863e-07, i / 255.0));
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            double s = Math.sin((i + 0.5) / BLOCK_SIZE * Math.PI);
+            WINDOW[i] = (float) Math.sin(Math.PI / 2 * s * s);
+        }
+
+        // Code the points coarse to fine, so that each is predicted from
+        // its nearest neighbours
+        int points = FLOOR_LINES.length + 2;
+        int[] sorted = new int[points];
+        sorted[0] = 0;
+        System.arraycopy(FLOOR_LINES, 0, sorted, 1, FLOOR_LINES.length);
+        sorted[points - 1] = HOP;
+        POINT_LINES = new int[points];
+        POINT_LINES[0] = 0;
+        POINT_LINES[1] = HOP;
+        int count = 2;
+        int[] queue = new int[4 * points];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        queue[tail++] = points - 1;
+        while (head < tail) {
+            int lo = queue[head++];
+            int hi = queue[head++];
+            if (hi - lo > 1) {
+                int mid = (lo + hi) / 2;
+                POINT_LINES[count++] = sorted[mid];
+                queue[tail++] = lo;
+                queue[tail++] = mid;
+                queue[tail++] = mid;
+                queue[tail++] = hi;
+            }
+        }
+
+        LOW_NEIGHBORS = new int[points];
+        HIGH_NEIGHBORS = new int[points];
+        for (int i = 2; i < points; i++) {
+            int lo = 0;
+            int hi = 1;
+            for (int j = 0; j < i; j++) {
+                if (POINT_LINES[j] < POINT_LINES[i] && POINT_LINES[j] > POINT_LINES[lo]) {
+                    lo = j;
+                }
+                if (POINT_LINES[j] > POINT_LINES[i] && POINT_LINES[j] < POINT_LINES[hi]) {
+                    hi = j;
+                }
+            }
+            LOW_NEIGHBORS[i] = lo;
+            HIGH_NEIGHBORS[i] = hi;
+        }
+        SORTED_POINTS = new int[points];
+        for (int i = 0; i < points; i++) {
+            for (int j = 0; j < points; j++) {
+                if (POINT_LINES[j] == sorted[i]) {
+                    SORTED_POINTS[i] = j;
+                }
+            }
+        }
+
+        // Floor values are coded as offsets from their prediction, mostly small
+        double[] floorWeights = new double[FLOOR_RANGE];
+        for (int i = 0; i < FLOOR_RANGE; i++) {
+            floorWeights[i] = Math.pow(i + 1, -1.6);
+        }
+        // Most partitions are silent or small
+        double[] classWeights = new double[CLASS_LIMITS.length * CLASS_LIMITS.length];
+        double[] classWeight = { 5, 8, 3, 2, 0.8, 0.2 };
+        for (int i = 0; i < classWeights.length; i++) {
+            classWeights[i] = classWeight[i / CLASS_LIMITS.length] * classWeight[i % CLASS_LIMITS.length];
+        }
+        BOOKS = new Codebook[] { Codebook.scalar(1, floorWeights),
+                Codebook.scalar(CLASS_DIMENSIONS, classWeights),
+                Codebook.lattice(4, 3, 1, 1.0), Codebook.lattice(2, 5, 1, 0.7), Codebook.lattice(2, 15, 1, 0.6),
+                Codebook.lattice(2, 15, 15, 2.5), Codebook.lattice(2, 15, 225, 2.5) };
+    }
+
+    private final int channels;
+    private final int sampleRate;
+    // Spectral lines coded, the rest is cut off
+    private final int residueEnd;
+    // Threshold of hearing at each floor point
+    private final float[] hearingThreshold;
+    // Fraction of the level of each band, by frequency, that masks each other band
+    private final float[][] spreading;
+
+    /**
+     * @param channels
+     *            number of channels
+     * @param sampleRate
+     *            sample rate in Hz
+     * @param cutoff
+     *            frequency in Hz above which the audio is cut off
+     */
+    VorbisEncoder(int channels, int sampleRate, double cutoff) {
+        if (channels < 1 || channels > 255) {
+            throw new IllegalStateException("Vorbis encoding of " + channels + " channels is not supported");
+        }
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        int lines = (int) (Math.min(cutoff, sampleRate / 2.0) / (sampleRate / 2.0) * HOP);
+        residueEnd = Math.max(2 * PARTITION_SIZE, lines / PARTITION_SIZE * PARTITION_SIZE);
+
+        hearingThreshold = new float[POINT_LINES.length];
+        for (int i = 0; i < POINT_LINES.length; i++) {
+            double khz = Math.max(0.02, (POINT_LINES[i] + 0.5) * sampleRate / (2.0 * HOP) / 1000);
+            // Terhardt's approximation in dB SPL, with full scale at a loud
+            // 110 dB and the steep rise at the top of the range capped
+            double spl = 3.64 * Math.pow(khz, -0.8) - 6.5 * Math.exp(-0.6 * (khz - 3.3) * (khz - 3.3))
+                    + 1e-3 * Math.pow(khz, 4);
+            hearingThreshold[i] = (float) Math.pow(10, (Math.min(spl, 30) - 110) / 20);
+        }
+
+        spreading = new float[POINT_LINES.length][POINT_LINES.length];
+        for (int s = 0; s < POINT_LINES.length; s++) {
+            for (int t = 0; t < POINT_LINES.length; t++) {
+                double distance = getBark(sortedLine(s)) - getBark(sortedLine(t));
+                // Masking spreads further up in frequency than down
+                double db = distance > 0 ? MASKING_SLOPE_UP * distance : -MASKING_SLOPE_DOWN * distance;
+                spreading[s][t] = (float) Math.pow(10, -db / 20);
+            }
+        }
+    }
+
+    /**
+     * Get the critical band rate of a spectral line, in Bark
+     */
+    private double getBark(int line) {
+        double hz = (line + 0.5) * sampleRate / (2.0 * HOP);
+        return 13 * Math.atan(0.00076 * hz) + 3.5 * Math.atan(hz * hz / (7500.0 * 7500.0));
+    }
+
+    /**
+     * Create the setup header packet
+     */
+    byte[] createSetupHeader() {
+        BitWriter out = new BitWriter();
+        out.write(5, 8);
+        for (byte b : "vorbis".getBytes(StandardCharsets.US_ASCII)) {
+            out.write(b, 8);
+        }
+
+        out.write(BOOKS.length - 1, 8);
+        for (Codebook book : BOOKS) {
+            book.writeHeader(out);
+        }
+
+        // One placeholder time domain transform
+        out.write(0, 6);
+        out.write(0, 16);
+
+        // One floor of type 1, all partitions of class 0
+        out.write(0, 6);
+        out.write(1, 16);
+        int partitions = (POINT_LINES.length - 2) / FLOOR_CLASS_DIMENSIONS;
+        out.write(partitions, 5);
+        for (int i = 0; i < partitions; i++) {
+            out.write(0, 4);
+        }
+        out.write(FLOOR_CLASS_DIMENSIONS - 1, 3);
+        // No subclasses, so no master book
+        out.write(0, 2);
+        out.write(BOOK_FLOOR + 1, 8);
+        out.write(FLOOR_MULTIPLIER - 1, 2);
+        out.write(FLOOR_RANGE_BITS, 4);
+        for (int i = 2; i < POINT_LINES.length; i++) {
+            out.write(POINT_LINES[i], FLOOR_RANGE_BITS);
+        }
+
+        // One residue of type 1
+        out.write(0, 6);
+        out.write(1, 16);
+        out.write(0, 24);
+        out.write(residueEnd, 24);
+        out.write(PARTITION_SIZE - 1, 24);
+        out.write(CLASS_LIMITS.length - 1, 6);
+        out.write(BOOK_CLASSES, 8);
+        for (int[] books : CLASS_BOOKS) {
+            int cascade = (1 << books.length) - 1;
+            out.write(cascade & 7, 3);
+            out.write(0, 1);
+        }
+        for (int[] books : CLASS_BOOKS) {
+            for (int book : books) {
+                out.write(book, 8);
+            }
+        }
+
+        // One mapping with one submap and no coupling
+        out.write(0, 6);
+        out.write(0, 16);
+        out.write(0, 1);
+        out.write(0, 1);
+        out.write(0, 2);
+        out.write(0, 8);
+        out.write(0, 8);
+        out.write(0, 8);
+
+        // One mode, of long blocks
+        out.write(0, 6);
+        out.write(1, 1);
+        out.write(0, 16);
+        out.write(0, 16);
+        out.write(0, 8);
+
+        out.write(1, 1);
+        return out.toByteArray();
+    }
+
+    /**
+     * Transform a block of samples to the spectrum coded by
+     * {@link #encodePacket(float[][], float, Workspace, BitWriter)}
+     *
+     * @param samples
+     *            array holding the block
+     * @param offset
+     *            index of the block's first sample
+     * @param spectrum
+     *            array to write the {@link #HOP} spectral lines to
+     */
+    void transform(float[] samples, int offset, float[] spectrum, Workspace ws) {
+        float[] block = ws.block;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            block[i] = samples[offset + i] * WINDOW[i];
+        }
+        MDCT.forward(block, spectrum, ws);
+    }
+
+    /**
+     * Encode the spectra of the channels of one block as an audio packet
+     *
+     * @param spectra
+     *            spectrum of each channel
+     * @param noiseRatio
+     *            ratio of the level of noisy bands to their floor, raised
+     *            for tonal bands
+     * @param out
+     *            writer to append the packet to
+     */
+    void encodePacket(float[][] spectra, float noiseRatio, Workspace ws, BitWriter out) {
+        // Audio packet of the only mode, between long blocks
+        out.write(0, 1);
+        out.write(1, 1);
+        out.write(1, 1);
+
+        for (int c = 0; c < channels; c++) {
+            boolean used = quantize(spectra[c], noiseRatio, ws, c);
+            ws.used[c] = used;
+            out.write(used ? 1 : 0, 1);
+            if (used) {
+                int[] values = ws.floorValues[c];
+                int bits = ilog(FLOOR_RANGE - 1);
+                out.write(values[0], bits);
+                out.write(values[1], bits);
+                for (int i = 2; i < values.length; i++) {
+                    BOOKS[BOOK_FLOOR].write(out, values[i]);
+                }
+            }
+        }
+        writeResidue(ws, out);
+    }
+
+    /**
+     * Compute the floor and residue of one channel
+     *
+     * @return false if the channel is silent
+     */
+    private boolean quantize(float[] spectrum, float noiseRatio, Workspace ws, int channel) {
+        int points = POINT_LINES.length;
+        int[] target = ws.target;
+        float[] levels = ws.levels;
+        float[] peaks = ws.peaks;
+        float[] tonalities = ws.tonalities;
+        float[] noises = ws.noises;
+        for (int s = 0; s < points; s++) {
+            int line = sortedLine(s);
+            int from = s == 0 ? 0 : (sortedLine(s - 1) + line) / 2;
+            int to = s == points - 1 ? HOP : (line + sortedLine(s + 1) + 1) / 2;
+            double energy = 0;
+            float peak = 0;
+            int peakLine = from;
+            for (int k = from; k < to; k++) {
+                float v = spectrum[k];
+                energy += v * v;
+                if (Math.abs(v) > peak) {
+                    peak = Math.abs(v);
+                    peakLine = k;
+                }
+            }
+            int width = to - from;
+            levels[s] = (float) Math.sqrt(energy / width);
+            peaks[s] = peak;
+            // Level of the band without the main lobe of its peak
+            double lobe = 0;
+            for (int k = Math.max(from, peakLine - 2); k < Math.min(to, peakLine + 3); k++) {
+                lobe += spectrum[k] * spectrum[k];
+            }
+            noises[s] = width >= 8 ? (float) Math.sqrt(Math.max(0, energy - lobe) / (width - 5)) : 0;
+            // Tones stand out of their band, noise peaks at a few times its
+            // mean energy
+            double noiseCrest = 2 * Math.log(width) + 1;
+            double crest = peak * peak / (levels[s] * levels[s] + 1e-30);
+            tonalities[s] = width * 0.5 <= noiseCrest ? 1f : (float) Math.max(0, Math.min(1, Math.log(crest
+                    / noiseCrest) / Math.log(width * 0.5 / noiseCrest)));
+        }
+        for (int s = 0; s < points; s++) {
+            // Noise in a band may rise to the level the loudest band masks in it
+            float masked = 0;
+            for (int t = 0; t < points; t++) {
+                masked = Math.max(masked, levels[t] * spreading[s][t]);
+            }
+            int p = SORTED_POINTS[s];
+            // Tones are coded finely, but the rest of their band only as
+            // finely as noise
+            double ratio = noiseRatio * (1 + TONAL_ACCURACY * tonalities[s]);
+            double amplitude = Math.max(Math.max(levels[s], masked / MASKING_OFFSET) / ratio,
+                    Math.max(noises[s] / noiseRatio, Math.max(peaks[s] / CLASS_LIMITS[CLASS_LIMITS.length - 1],
+                            hearingThreshold[p])));
+            int y = (int) Math.ceil(Math.log(amplitude / FLOOR_AMPLITUDES[0]) / Math.log(FLOOR_AMPLITUDES[1]
+                    / FLOOR_AMPLITUDES[0]) / FLOOR_MULTIPLIER - 0.5);
+            target[p] = Math.max(0, Math.min(FLOOR_RANGE - 1, y));
+        }
+
+        // Code the values as the decoder reads them
+        int[] values = ws.floorValues[channel];
+        int[] finalY = ws.finalY;
+        boolean[] step2 = ws.step2;
+        finalY[0] = values[0] = target[0];
+        finalY[1] = values[1] = target[1];
+        step2[0] = step2[1] = true;
+        for (int i = 2; i < points; i++) {
+            int lo = LOW_NEIGHBORS[i];
+            int hi = HIGH_NEIGHBORS[i];
+            int predicted = renderPoint(POINT_LINES[lo], finalY[lo], POINT_LINES[hi], finalY[hi], POINT_LINES[i]);
+            int value = encodeFloorValue(target[i], predicted);
+            values[i] = value;
+            if (value != 0) {
+                step2[lo] = step2[hi] = step2[i] = true;
+                finalY[i] = target[i];
+            } else {
+                step2[i] = false;
+                finalY[i] = predicted;
+            }
+        }
+
+        // Render the floor curve
+        int[] curve = ws.curve;
+        int lx = 0;
+        int ly = finalY[SORTED_POINTS[0]] * FLOOR_MULTIPLIER;
+        for (int s = 1; s < points; s++) {
+            int p = SORTED_POINTS[s];
+            if (step2[p]) {
+                int hx = POINT_LINES[p];
+                int hy = finalY[p] * FLOOR_MULTIPLIER;
+                renderLine(lx, ly, hx, hy, curve);
+                lx = hx;
+                ly = hy;
+            }
+        }
+
+        int[] residue = ws.residues[channel];
+        int limit = CLASS_LIMITS[CLASS_LIMITS.length - 1];
+        boolean audible = false;
+        for (int k = 0; k < residueEnd; k++) {
+            int q = Math.round(spectrum[k] / FLOOR_AMPLITUDES[curve[k]]);
+            q = Math.max(-limit, Math.min(limit, q));
+            residue[k] = q;
+            audible |= q != 0;
+        }
+        return audible;
+    }
+
+    private static int sortedLine(int sortedIndex) {
+        return POINT_LINES[SORTED_POINTS[sortedIndex]];
+    }
+
+    /**
+     * Code a floor value as its offset from the prediction, the inverse of
+     * the decoder's step 1
+     */
+    private static int encodeFloorValue(int value, int predicted) {
+        int headroom = Math.min(FLOOR_RANGE - predicted, predicted);
+        int offset = value - predicted;
+        if (offset >= 0) {
+            return offset >= headroom ? offset + headroom : offset << 1;
+        }
+        return -offset > headroom ? headroom - offset - 1 : -1 - (offset << 1);
+    }
+
+    private static int renderPoint(int x0, int y0, int x1, int y1, int x) {
+        int dy = y1 - y0;
+        int adx = x1 - x0;
+        int off = Math.abs(dy) * (x - x0) / adx;
+        return dy < 0 ? y0 - off : y0 + off;
+    }
+
+    private static void renderLine(int x0, int y0, int x1, int y1, int[] v) {
+        int dy = y1 - y0;
+        int adx = x1 - x0;
+        int base = dy / adx;
+        int sy = dy < 0 ? base - 1 : base + 1;
+        int ady = Math.abs(dy) - Math.abs(base) * adx;
+        int y = y0;
+        int err = 0;
+        v[x0] = y;
+        for (int x = x0 + 1; x < x1; x++) {
+            err += ady;
+            if (err >= adx) {
+                err -= adx;
+                y += sy;
+            } else {
+                y += base;
+            }
+            v[x] = y;
+        }
+    }
+
+    /**
+     * Write the residues of the used channels, in the order residue 1 is
+     * decoded
+     */
+    private void writeResidue(Workspace ws, BitWriter out) {
+        int partitions = residueEnd / PARTITION_SIZE;
+        for (int c = 0; c < channels; c++) {
+            if (!ws.used[c]) {
+                continue;
+            }
+            int[] residue = ws.residues[c];
+            int[] classes = ws.classes[c];
+            for (int p = 0; p < partitions; p++) {
+                int peak = 0;
+                for (int k = p * PARTITION_SIZE; k < (p + 1) * PARTITION_SIZE; k++) {
+                    peak = Math.max(peak, Math.abs(residue[k]));
+                }
+                int cls = 0;
+                while (CLASS_LIMITS[cls] < peak) {
+                    cls++;
+                }
+                classes[p] = cls;
+            }
+        }
+
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int p = 0; p < partitions;) {
+                if (pass == 0) {
+                    for (int c = 0; c < channels; c++) {
+                        if (ws.used[c]) {
+                            int word = 0;
+                            for (int i = 0; i < CLASS_DIMENSIONS; i++) {
+                                word = word * CLASS_LIMITS.length + (p + i < partitions ? ws.classes[c][p + i] : 0);
+                            }
+                            BOOKS[BOOK_CLASSES].write(out, word);
+                        }
+                    }
+                }
+                for (int i = 0; i < CLASS_DIMENSIONS && p < partitions; i++, p++) {
+                    for (int c = 0; c < channels; c++) {
+                        if (ws.used[c]) {
+                            int[] books = CLASS_BOOKS[ws.classes[c][p]];
+                            if (pass < books.length) {
+                                writePartition(ws.residues[c], p * PARTITION_SIZE, books, pass, out);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the part of a partition coded by one pass of its cascade. Each
+     * pass codes the remainder of the ones before it in steps of its book.
+     */
+    private static void writePartition(int[] residue, int offset, int[] books, int pass, BitWriter out) {
+        Codebook book = BOOKS[books[pass]];
+        int half = book.values / 2;
+        for (int i = 0; i < PARTITION_SIZE; i += book.dimensions) {
+            int entry = 0;
+            int scale = 1;
+            for (int j = 0; j < book.dimensions; j++) {
+                int remainder = residue[offset + i + j];
+                int step = 0;
+                for (int earlier = 0; earlier <= pass; earlier++) {
+                    Codebook b = BOOKS[books[earlier]];
+                    step = Math.max(-b.values / 2, Math.min(b.values / 2, Math.round((float) remainder / b.delta)));
+                    remainder -= step * b.delta;
+                }
+                entry += (step + half) * scale;
+                scale *= book.values;
+            }
+            book.write(out, entry);
+        }
+    }
+
+    private static int ilog(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Buffers of one thread
+     */
+    static final class Workspace {
+
+        final float[] block = new float[BLOCK_SIZE];
+        final float[] fold = new float[HOP];
+        final float[] re = new float[HOP / 2];
+        final float[] im = new float[HOP / 2];
+        final float[] levels = new float[POINT_LINES.length];
+        final float[] peaks = new float[POINT_LINES.length];
+        final float[] tonalities = new float[POINT_LINES.length];
+        final float[] noises = new float[POINT_LINES.length];
+        final int[] target = new int[POINT_LINES.length];
+        final int[] finalY = new int[POINT_LINES.length];
+        final boolean[] step2 = new boolean[POINT_LINES.length];
+        final int[] curve = new int[HOP];
+        int[][] floorValues = new int[0][];
+        int[][] residues = new int[0][];
+        int[][] classes = new int[0][];
+        boolean[] used = new boolean[0];
+
+        void prepare(int channels) {
+            if (used.length < channels) {
+                floorValues = new int[channels][POINT_LINES.length];
+                residues = new int[channels][HOP];
+                classes = new int[channels][HOP / PARTITION_SIZE];
+                used = new boolean[channels];
+            }
+        }
+    }
+
+    /**
+     * Writer of bits in the order Vorbis packs them, least significant first
+     */
+    static final class BitWriter {
+
+        private byte[] data = new byte[4096];
+        private int length;
+        private long pending;
+        private int pendingBits;
+
+        void write(int value, int bits) {
+            pending |= (value & ((1L << bits) - 1)) << pendingBits;
+            pendingBits += bits;
+            while (pendingBits >= 8) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                data[length++] = (byte) pending;
+                pending >>>= 8;
+                pendingBits -= 8;
+            }
+        }
+
+        int bitLength() {
+            return length * 8 + pendingBits;
+        }
+
+        void reset() {
+            length = 0;
+            pending = 0;
+            pendingBits = 0;
+        }
+
+        /**
+         * Get the bytes written, the last one padded with zero bits
+         */
+        byte[] toByteArray() {
+            byte[] bytes = Arrays.copyOf(data, length + (pendingBits > 0 ? 1 : 0));
+            if (pendingBits > 0) {
+                bytes[length] = (byte) pending;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Huffman coded codebook, of scalars or of lattice vectors
+     */
+    private static final class Codebook {
+
+        final int dimensions;
+        // Lattice values per dimension and their spacing, or 0 for scalars
+        final int values;
+        final int delta;
+        final int[] lengths;
+        final int[] codewords;
+
+        private Codebook(int dimensions, int values, int delta, double[] weights) {
+            this.dimensions = dimensions;
+            this.values = values;
+            this.delta = delta;
+            lengths = huffmanLengths(weights);
+            codewords = assignCodewords(lengths);
+        }
+
+        /**
+         * @param dimensions
+         *            number of scalars coded together, which the decoder
+         *            splits from the entry number itself
+         */
+        static Codebook scalar(int dimensions, double[] weights) {
+            return new Codebook(dimensions, 0, 0, weights);
+        }
+
+        /**
+         * @param values
+         *            odd number of values per dimension, centered on zero
+         * @param delta
+         *            spacing of the values
+         * @param decay
+         *            decay of the likelihood of a value with its magnitude,
+         *            which levels off to keep codewords short
+         */
+        static Codebook lattice(int dimensions, int values, int delta, double decay) {
+            int entries = (int) Math.pow(values, dimensions);
+            double[] weights = new double[entries];
+            for (int e = 0; e < entries; e++) {
+                double weight = 1;
+                for (int j = 0, rest = e; j < dimensions; j++, rest /= values) {
+                    weight *= Math.exp(-decay * Math.abs(rest % values - values / 2)) + 1e-3;
+                }
+                weights[e] = weight;
+            }
+            return new Codebook(dimensions, values, delta, weights);
+        }
+
+        void write(BitWriter out, int entry) {
+            int length = lengths[entry];
+            int codeword = codewords[entry];
+            // Codewords are read from their first bit on
+            for (int b = length - 1; b >= 0; b--) {
+                out.write(codeword >>> b, 1);
+            }
+        }
+
+        void writeHeader(BitWriter out) {
+            out.write(0x564342, 24);
+            out.write(dimensions, 16);
+            out.write(lengths.length, 24);
+            // Not ordered, not sparse
+            out.write(0, 1);
+            out.write(0, 1);
+            for (int length : lengths) {
+                out.write(length - 1, 5);
+            }
+            if (values == 0) {
+                out.write(0, 4);
+            } else {
+                out.write(1, 4);
+                out.write(packFloat(-(values / 2) * delta), 32);
+                out.write(packFloat(delta), 32);
+                int bits = ilog(values - 1);
+                out.write(bits - 1, 4);
+                out.write(0, 1);
+                for (int i = 0; i < values; i++) {
+                    out.write(i, bits);
+                }
+            }
+        }
+
+        /**
+         * Pack an integer in the float format of codebook headers
+         */
+        private static int packFloat(int value) {
+            int sign = value < 0 ? 0x80000000 : 0;
+            return sign | 788 << 21 | Math.abs(value);
+        }
+
+        private static int[] huffmanLengths(double[] weights) {
+            int n = weights.length;
+            double[] weight = Arrays.copyOf(weights, 2 * n - 1);
+            int[] parent = new int[2 * n - 1];
+            PriorityQueue<Integer> queue = new PriorityQueue<>(n, (a, b) -> weight[a] != weight[b]
+                    ? Double.compare(weight[a], weight[b]) : Integer.compare(a, b));
+            for (int i = 0; i < n; i++) {
+                queue.add(i);
+            }
+            for (int node = n; node < 2 * n - 1; node++) {
+                int a = queue.poll();
+                int b = queue.poll();
+                weight[node] = weight[a] + weight[b];
+                parent[a] = parent[b] = node;
+                queue.add(node);
+            }
+            int[] lengths = new int[n];
+            for (int i = 0; i < n; i++) {
+                for (int node = i; node != 2 * n - 2; node = parent[node]) {
+                    lengths[i]++;
+                }
+                if (lengths[i] > 32) {
+                    throw new IllegalStateException("Vorbis codeword longer than 32 bits");
+                }
+            }
+            return lengths;
+        }
+
+        /**
+         * Assign the codewords the decoder derives from the lengths, each
+         * entry taking the lowest free codeword of its length
+         */
+        private static int[] assignCodewords(int[] lengths) {
+            long[] marker = new long[33];
+            int[] codewords = new int[lengths.length];
+            for (int i = 0; i < lengths.length; i++) {
+                int length = lengths[i];
+                long entry = marker[length];
+                codewords[i] = (int) entry;
+                for (int j = length; j > 0; j--) {
+                    if ((marker[j] & 1) != 0) {
+                        marker[j] = j == 1 ? marker[1] + 1 : marker[j - 1] << 1;
+                        break;
+                    }
+                    marker[j]++;
+                }
+                for (int j = length + 1; j < 33; j++) {
+                    if (marker[j] >>> 1 == entry) {
+                        entry = marker[j];
+                        marker[j] = marker[j - 1] << 1;
+                    } else {
+                        break;
+                    }
+                }
+            }
+            return codewords;
+        }
+    }
+
+    /**
+     * Forward MDCT, computed as a DCT-IV of the folded block through a
+     * complex FFT of a quarter of the block size
+     */
+    private static final class Mdct {
+
+        private final int n;
+        private final float[] twiddleCos;
+        private final float[] twiddleSin;
+        private final float[] fftCos;
+        private final float[] fftSin;
+        private final int[] bitReverse;
+        private final float scale;
+
+        Mdct(int n) {
+            this.n = n;
+            int m = n / 2;
+            int quarter = n / 4;
+            twiddleCos = new float[quarter];
+            twiddleSin = new float[quarter];
+            for (int i = 0; i < quarter; i++) {
+                double angle = Math.PI * (i + 0.25) / m;
+                twiddleCos[i] = (float) Math.cos(angle);
+                twiddleSin[i] = (float) Math.sin(angle);
+            }
+            fftCos = new float[quarter / 2];
+            fftSin = new float[quarter / 2];
+            for (int i = 0; i < quarter / 2; i++) {
+                fftCos[i] = (float) Math.cos(2 * Math.PI * i / quarter);
+                fftSin[i] = (float) Math.sin(2 * Math.PI * i / quarter);
+            }
+            bitReverse = new int[quarter];
+            int bits = Integer.numberOfTrailingZeros(quarter);
+            for (int i = 0; i < quarter; i++) {
+                bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+            }
+            scale = 2f / m;
+        }
+
+        void forward(float[] x, float[] out, Workspace ws) {
+            int m = n / 2;
+            int half = m / 2;
+            float[] u = ws.fold;
+            for (int i = 0; i < half; i++) {
+                u[i] = -x[3 * half - 1 - i] - x[3 * half + i];
+                u[half + i] = x[i] - x[m - 1 - i];
+            }
+
+            int quarter = half;
+            float[] re = ws.re;
+            float[] im = ws.im;
+            for (int i = 0; i < quarter; i++) {
+                float a = u[2 * i];
+                float b = u[m - 1 - 2 * i];
+                int j = bitReverse[i];
+                re[j] = a * twiddleCos[i] + b * twiddleSin[i];
+                im[j] = b * twiddleCos[i] - a * twiddleSin[i];
+            }
+            fft(re, im);
+            for (int k = 0; k < quarter; k++) {
+                float a = re[k];
+                float b = im[k];
+                float yr = a * twiddleCos[k] + b * twiddleSin[k];
+                float yi = b * twiddleCos[k] - a * twiddleSin[k];
+                out[2 * k] = yr * scale;
+                out[m - 1 - 2 * k] = -yi * scale;
+            }
+        }
+
+        /**
+         * In place radix 2 FFT of bit reversed input
+         */
+        private void fft(float[] re, float[] im) {
+            int size = re.length;
+            for (int span = 1; span < size; span <<= 1) {
+                int stride = size / (2 * span);
+                for (int start = 0; start < size; start += 2 * span) {
+                    for (int i = 0; i < span; i++) {
+                        float wr = fftCos[i * stride];
+                        float wi = -fftSin[i * stride];
+                        int a = start + i;
+                        int b = a + span;
+                        float tr = re[b] * wr - im[b] * wi;
+                        float ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -1,18 +1,28 @@
 package org.vaadin.addon.audio.server.encoders;
 
 import org.vaadin.addon.audio.server.Encoder;
+import org.vaadin.addon.audio.server.PcmSource;
 import org.vaadin.addon.audio.server.util.WaveUtil;
 import org.vaadin.addon.audio.shared.PCMFormat;
 import org.vaadin.addon.audio.shared.util.Log;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * PCM-to-MSWave encoder.
+ *
+ * The output format may differ from the input format in sample rate, bit depth
+ * and channel count, in which case the samples are converted by a
+ * {@link PcmConverter}. Without conversion the input PCM is streamed as is.
  */
 public class WaveEncoder extends Encoder {
 
     private PCMFormat outputFormat;
+    private PcmConverter converter;
 
     public WaveEncoder() {
         this(null);
@@ -22,35 +32,122 @@ public class WaveEncoder extends Encoder {
         this.outputFormat = outputFormat;
     }
 
+    @Override
+    public String getCacheKey() {
+        if (outputFormat == null) {
+            return super.getCacheKey();
+        }
+        return super.getCacheKey() + ":" + outputFormat.getNumChannels() + "ch," + outputFormat.getSampleRate()
+                + "Hz," + outputFormat.getBitsPerSample() + "bit";
+    }
+
     @Override
     public byte[] encode(int from_offset, int length) {
 
         Log.message(this, "writing samples from offset " + from_offset + " to " + (from_offset + length));
 
+        if (isConverting()) {
+            PcmConverter conv = getConverter();
+            int outLength = conv.getOutputLength(from_offset, length);
+            byte[] out = new byte[WaveUtil.HEADER_LENGTH + conv.getOutputFormat().getSampleSize() * outLength];
+            System.arraycopy(WaveUtil.generateHeader(conv.getOutputFormat(), outLength), 0, out, 0,
+                    WaveUtil.HEADER_LENGTH);
+            conv.convert(getInput(), from_offset, length, out, WaveUtil.HEADER_LENGTH);
+            return out;
+        }
+
         PCMFormat infmt = getInputFormat();
+        int dataLength = infmt.getSampleSize() * length;
+
+        Log.message(this, "data length is " + dataLength);
+
+        ByteBuffer out = ByteBuffer.allocate(dataLength + WaveUtil.HEADER_LENGTH);
+
+        out.put(WaveUtil.generateHeader(infmt, length));
+        out.put(getInputSlice(from_offset, length));
+
+        return out.array();
+
+    }
+
+    /**
+     * Writes the WAVE header followed by the PCM data straight from the input
+     * buffer, without copying the samples into an intermediate array.
+     */
+    @Override
+    public void encodeTo(int from_offset, int length, OutputStream out) throws IOException {
 
-        // TODO: allow different input and output formats - we currently do no conversion
-        // PCMFormat outfmt = outputFormat == null ? infmt : outputFormat;
-        PCMFormat outfmt = infmt;
+        if (isConverting()) {
+            out.write(encode(from_offset, length));
+            return;
+        }
+
+        Log.message(this, "streaming samples from offset " + from_offset + " to " + (from_offset + length));
 
-        int byteOffset = infmt.getSampleSize() * from_offset;
+        PCMFormat infmt = getInputFormat();
         int dataLength = infmt.getSampleSize() * length;
 
-        Log.message(this, "data length is " + dataLength);
+        out.write(WaveUtil.generateHeader(infmt, length));
+
+        ByteBuffer pcm = getInputSlice(from_offset, length);
+        int written = pcm.remaining();
+        if (pcm.hasArray()) {
+            out.write(pcm.array(), pcm.arrayOffset() + pcm.position(), written);
+        } else {
+            // Direct or mapped buffer, let the channel transfer it
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (pcm.hasRemaining()) {
+                channel.write(pcm);
+            }
+        }
 
-        ByteBuffer in = getInputBuffer();
-        int dataStartOffset = 44; // this is NOT WaveUtil.getDataStartOffset(getInputBuffer());
-        ByteBuffer out = ByteBuffer.allocate(dataLength + dataStartOffset);
+        // Pad a short final chunk to the length announced in the header
+        for (int i = written; i < dataLength; ++i) {
+            out.write(0);
+        }
+    }
 
-        out.position(0);
-        out.put(WaveUtil.generateHeader(outfmt, length));
-        if (byteOffset < in.limit()) {
-            in.position(byteOffset);
-            in.get(out.array(), out.position(), Math.min(in.remaining(), dataLength));
+    @Override
+    public long getEncodedLength(int from_offset, int length) {
+        if (isConverting()) {
+            PcmConverter conv = getConverter();
+            return WaveUtil.HEADER_LENGTH
+                    + (long) conv.getOutputFormat().getSampleSize() * conv.getOutputLength(from_offset, length);
         }
+        return WaveUtil.HEADER_LENGTH + (long) getInputFormat().getSampleSize() * length;
+    }
 
-        return out.array();
+    /**
+     * Conversion needs the whole chunk in memory, so only unconverted output
+     * is streamed.
+     */
+    @Override
+    public boolean isStreaming() {
+        return !isConverting();
+    }
+
+    /**
+     * Tells whether the output format differs from the input format.
+     *
+     * @return true if samples are converted
+     */
+    public boolean isConverting() {
+        PCMFormat in = getInputFormat();
+        return outputFormat != null && in != null
+                && (outputFormat.getNumChannels() != in.getNumChannels()
+                        || outputFormat.getSampleRate() != in.getSampleRate()
+                        || outputFormat.getBitsPerSample() != in.getBitsPerSample());
+    }
+
+    @Override
+    protected void setInput(PcmSource source) {
+        super.setInput(source);
+        // Created up front so unsupported conversions fail before any chunk is requested
+        converter = isConverting() ? new PcmConverter(source.getFormat(), outputFormat) : null;
+    }
 
+    private PcmConverter getConverter() {
+        return converter;
     }
 
 }
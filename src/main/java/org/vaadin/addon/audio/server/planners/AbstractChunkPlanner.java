@@ -0,0 +1,117 @@
+package org.vaadin.addon.audio.server.planners;
+
+import org.vaadin.addon.audio.server.ChunkPlanner;
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.shared.ChunkDescriptor;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Base class for plans that only decide where chunk boundaries go. Chunk
+ * descriptors are built from the boundaries, with each chunk extended by the
+ * overlap into the next one.
+ */
+public abstract class AbstractChunkPlanner implements ChunkPlanner {
+
+    // A shorter last chunk is joined to the previous one
+    private static final int MIN_LAST_CHUNK_MILLIS = 250;
+
+    private final int overlapMillis;
+
+    /**
+     * @param overlapMillis
+     *            milliseconds each chunk extends into the next one
+     */
+    protected AbstractChunkPlanner(int overlapMillis) {
+        if (overlapMillis < 0) {
+            throw new IllegalArgumentException("overlap must not be negative");
+        }
+        this.overlapMillis = overlapMillis;
+    }
+
+    public int getOverlapMillis() {
+        return overlapMillis;
+    }
+
+    /**
+     * Plan chunk boundaries.
+     * 
+     * @param pcmBuffer
+     *            PCM data of the stream; read through a duplicate
+     * @param format
+     *            format of the PCM data
+     * @param sampleCount
+     *            number of samples in the stream
+     * @return strictly ascending sample offsets, starting with 0 and ending
+     *         with sampleCount
+     */
+    protected abstract int[] planBoundaries(ByteBuffer pcmBuffer, PCMFormat format, int sampleCount);
+
+    /**
+     * Tells whether {@link #planBoundaries} looks at the samples. Plans that
+     * don't are given no PCM data, so sources that decode their samples
+     * aren't read in full when the stream is created.
+     * 
+     * @return true if the PCM data is needed
+     */
+    protected boolean readsSamples() {
+        return true;
+    }
+
+    @Override
+    public List<ChunkDescriptor> planChunks(PcmSource source) {
+        int sampleCount = source.getSampleCount();
+        ByteBuffer pcm = readsSamples() ? source.read(0, sampleCount) : null;
+        return planChunks(pcm, source.getFormat(), sampleCount);
+    }
+
+    @Override
+    public List<ChunkDescriptor> planChunks(ByteBuffer pcmBuffer, PCMFormat format, int sampleCount) {
+        if (sampleCount == 0) {
+            // A single empty chunk
+            return createChunks(new int[] { 0, 0 }, format, 0);
+        }
+        int[] boundaries = planBoundaries(pcmBuffer, format, sampleCount);
+        int last = boundaries.length - 1;
+        if (last > 1 && boundaries[last] - boundaries[last - 1] < toSamples(MIN_LAST_CHUNK_MILLIS, format)) {
+            boundaries = Arrays.copyOf(boundaries, last);
+            boundaries[last - 1] = sampleCount;
+        }
+        return createChunks(boundaries, format, sampleCount);
+    }
+
+    private List<ChunkDescriptor> createChunks(int[] boundaries, PCMFormat format, int sampleCount) {
+        int overlapSamples = toSamples(overlapMillis, format);
+        List<ChunkDescriptor> chunks = new ArrayList<>(boundaries.length - 1);
+        for (int i = 0; i + 1 < boundaries.length; i++) {
+            int fromSample = boundaries[i];
+            int toSample = boundaries[i + 1];
+            int endSample = Math.min(sampleCount, toSample + overlapSamples);
+
+            ChunkDescriptor cd = new ChunkDescriptor();
+            cd.setId(i);
+            cd.setStartSampleOffset(fromSample);
+            cd.setEndSampleOffset(endSample);
+            cd.setLeadInDuration(0);
+            cd.setLeadOutDuration(toMillis(endSample, format) - toMillis(toSample, format));
+            cd.setStartTimeOffset(toMillis(fromSample, format));
+            cd.setEndTimeOffset(toMillis(toSample, format));
+            cd.setOverlapTime(overlapMillis);
+            chunks.add(cd);
+        }
+        return chunks;
+    }
+
+    protected static int toSamples(int millis, PCMFormat format) {
+        return (int) ((long) millis * format.getSampleRate() / 1000);
+    }
+
+    protected static int toMillis(int samples, PCMFormat format) {
+        return (int) ((long) samples * 1000 / format.getSampleRate());
+    }
+
+}
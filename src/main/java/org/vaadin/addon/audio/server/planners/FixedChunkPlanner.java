@@ -0,0 +1,63 @@
+package org.vaadin.addon.audio.server.planners;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream into chunks of equal length. Only the last chunk may be
+ * shorter.
+ */
+public class FixedChunkPlanner extends AbstractChunkPlanner {
+
+    private final int millisPerChunk;
+
+    /**
+     * @param millisPerChunk
+     *            milliseconds per audio chunk
+     */
+    public FixedChunkPlanner(int millisPerChunk) {
+        this(millisPerChunk, 0);
+    }
+
+    /**
+     * @param millisPerChunk
+     *            milliseconds per audio chunk
+     * @param overlapMillis
+     *            milliseconds each chunk extends into the next one
+     */
+    public FixedChunkPlanner(int millisPerChunk, int overlapMillis) {
+        super(overlapMillis);
+        if (millisPerChunk <= 0) {
+            throw new IllegalArgumentException("chunk length must be positive");
+        }
+        this.millisPerChunk = millisPerChunk;
+    }
+
+    public int getMillisPerChunk() {
+        return millisPerChunk;
+    }
+
+    @Override
+    protected boolean readsSamples() {
+        return false;
+    }
+
+    @Override
+    protected int[] planBoundaries(ByteBuffer pcmBuffer, PCMFormat format, int sampleCount) {
+        int chunkSamples = Math.max(1, toSamples(millisPerChunk, format));
+        int count = (int) (((long) sampleCount + chunkSamples - 1) / chunkSamples);
+        int[] boundaries = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            boundaries[i] = i * chunkSamples;
+        }
+        boundaries[count] = sampleCount;
+        return boundaries;
+    }
+
+    @Override
+    public String toString() {
+        return "fixed:" + millisPerChunk + "+" + getOverlapMillis();
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.vaadin.addon.audio.server.planners;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Starts with a short chunk and grows the following chunks up to a maximum
+ * length. The short first chunk is fetched and decoded quickly, so playback
+ * starts sooner, while the long chunks keep the number of requests for the
+ * rest of the stream low.
+ */
+public class GrowingChunkPlanner extends AbstractChunkPlanner {
+
+    private final int firstChunkMillis;
+    private final int maxChunkMillis;
+    private final double growthFactor;
+
+    /**
+     * Create a plan whose chunks double in length.
+     * 
+     * @param firstChunkMillis
+     *            length of the first chunk in milliseconds, e.g. 500
+     * @param maxChunkMillis
+     *            maximum chunk length in milliseconds, e.g. 10000
+     */
+    public GrowingChunkPlanner(int firstChunkMillis, int maxChunkMillis) {
+        this(firstChunkMillis, maxChunkMillis, 2, 0);
+    }
+
+    /**
+     * @param firstChunkMillis
+     *            length of the first chunk in milliseconds
+     * @param maxChunkMillis
+     *            maximum chunk length in milliseconds
+     * @param growthFactor
+     *            ratio between the lengths of consecutive chunks, greater
+     *            than 1
+     * @param overlapMillis
+     *            milliseconds each chunk extends into the next one
+     */
+    public GrowingChunkPlanner(int firstChunkMillis, int maxChunkMillis, double growthFactor, int overlapMillis) {
+        super(overlapMillis);
+        if (firstChunkMillis <= 0 || maxChunkMillis < firstChunkMillis) {
+            throw new IllegalArgumentException("chunk lengths must be positive and first <= max");
+        }
+        if (growthFactor <= 1) {
+            throw new IllegalArgumentException("growth factor must be greater than 1");
+        }
+        this.firstChunkMillis = firstChunkMillis;
+        this.maxChunkMillis = maxChunkMillis;
+        this.growthFactor = growthFactor;
+    }
+
+    public int getFirstChunkMillis() {
+        return firstChunkMillis;
+    }
+
+    public int getMaxChunkMillis() {
+        return maxChunkMillis;
+    }
+
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    @Override
+    protected boolean readsSamples() {
+        return false;
+    }
+
+    @Override
+    protected int[] planBoundaries(ByteBuffer pcmBuffer, PCMFormat format, int sampleCount) {
+        int maxSamples = Math.max(1, toSamples(maxChunkMillis, format));
+        int[] boundaries = new int[16];
+        int count = 0;
+        int position = 0;
+        double length = Math.max(1, toSamples(firstChunkMillis, format));
+        while (position < sampleCount) {
+            if (count + 1 >= boundaries.length) {
+                boundaries = Arrays.copyOf(boundaries, boundaries.length * 2);
+            }
+            boundaries[count++] = position;
+            position = (int) Math.min(sampleCount, (long) position + (long) length);
+            length = Math.min(maxSamples, length * growthFactor);
+        }
+        boundaries[count++] = sampleCount;
+        return Arrays.copyOf(boundaries, count);
+    }
+
+    @Override
+    public String toString() {
+        return "growing:" + firstChunkMillis + "-" + maxChunkMillis + "x" + growthFactor + "+" + getOverlapMillis();
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.vaadin.addon.audio.server.planners;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Moves the chunk boundaries of another plan to the quietest point near
+ * them, so that chunks are joined where a glitch at the transition is least
+ * audible.
+ */
+public class SilenceAlignedChunkPlanner extends AbstractChunkPlanner {
+
+    private static final int BLOCK_MILLIS = 10;
+
+    private final AbstractChunkPlanner plan;
+    private final int searchMillis;
+
+    /**
+     * @param plan
+     *            plan whose boundaries are moved; its overlap is kept
+     * @param searchMillis
+     *            maximum distance in milliseconds a boundary may move in
+     *            either direction
+     */
+    public SilenceAlignedChunkPlanner(AbstractChunkPlanner plan, int searchMillis) {
+        super(plan.getOverlapMillis());
+        if (searchMillis < 0) {
+            throw new IllegalArgumentException("search distance must not be negative");
+        }
+        this.plan = plan;
+        this.searchMillis = searchMillis;
+    }
+
+    public int getSearchMillis() {
+        return searchMillis;
+    }
+
+    @Override
+    protected int[] planBoundaries(ByteBuffer pcmBuffer, PCMFormat format, int sampleCount) {
+        int[] boundaries = plan.planBoundaries(pcmBuffer, format, sampleCount);
+        int search = toSamples(searchMillis, format);
+        int block = Math.max(1, toSamples(BLOCK_MILLIS, format));
+        ByteBuffer pcm = pcmBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int i = 1; i + 1 < boundaries.length; i++) {
+            // Stay between the previous boundary and the next one
+            int from = Math.max(boundaries[i - 1] + 1, boundaries[i] - search);
+            int to = Math.min(boundaries[i + 1] - 1, boundaries[i] + search);
+            int best = boundaries[i];
+            long bestLevel = Long.MAX_VALUE;
+            for (int start = from; start + block <= to; start += block) {
+                long level = getLevel(pcm, format, start, block);
+                if (level < bestLevel) {
+                    bestLevel = level;
+                    best = start + block / 2;
+                }
+            }
+            boundaries[i] = best;
+        }
+        return boundaries;
+    }
+
+    /**
+     * Sum of absolute sample values over all channels of a block
+     */
+    private static long getLevel(ByteBuffer pcm, PCMFormat format, int fromSample, int sampleCount) {
+        int bytes = format.getBitsPerSample() / 8;
+        int values = sampleCount * format.getNumChannels();
+        int offset = fromSample * format.getSampleSize();
+        long level = 0;
+        for (int i = 0; i < values; i++, offset += bytes) {
+            int value;
+            switch (bytes) {
+            case 1:
+                // 8 bit data is unsigned
+                value = (pcm.get(offset) & 0xff) - 128;
+                break;
+            case 2:
+                value = pcm.getShort(offset);
+                break;
+            case 3:
+                value = (pcm.get(offset) & 0xff) | (pcm.get(offset + 1) & 0xff) << 8 | pcm.get(offset + 2) << 16;
+                break;
+            default:
+                value = pcm.getInt(offset) >> 8;
+                break;
+            }
+            level += Math.abs(value);
+        }
+        return level;
+    }
+
+    @Override
+    public String toString() {
+        return "silence:" + searchMillis + ":" + plan;
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.vaadin.addon.audio.server.sources;
+
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PCM data held in a heap, direct or mapped buffer. Reads return views of the
+ * buffer without copying it.
+ */
+public final class BufferPcmSource implements PcmSource {
+
+    private final ByteBuffer buffer;
+    private final PCMFormat format;
+    private final int sampleCount;
+
+    /**
+     * @param pcmBuffer
+     *            buffer containing PCM data from index 0; it is read through
+     *            duplicates
+     * @param format
+     *            format of the PCM data
+     */
+    public BufferPcmSource(ByteBuffer pcmBuffer, PCMFormat format) {
+        this.buffer = pcmBuffer;
+        this.format = format;
+        this.sampleCount = pcmBuffer.capacity() / format.getSampleSize();
+    }
+
+    /**
+     * Get the buffer holding the PCM data
+     * 
+     * @return the shared buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public PCMFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public ByteBuffer read(int fromSample, int length) {
+        int sampleSize = format.getSampleSize();
+        ByteBuffer in = buffer.duplicate();
+        in.clear();
+        int byteOffset = (int) Math.min((long) sampleSize * fromSample, in.capacity());
+        int byteEnd = (int) Math.min((long) byteOffset + (long) sampleSize * length, in.capacity());
+        in.limit(byteEnd);
+        in.position(byteOffset);
+        return in;
+    }
+
+}
@@ -0,0 +1,209 @@
+package org.vaadin.addon.audio.server.sources;
+
+import org.vaadin.addon.audio.server.Effect;
+import org.vaadin.addon.audio.server.EffectProcessor;
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Another source's audio with a chain of {@link Effect effects} rendered
+ * into it. The effects are captured with their parameters at construction.
+ *
+ * Each read processes the requested samples, preceded by enough samples for
+ * the effects to settle, so that any range reads the same as it would as
+ * part of the whole stream. Samples are processed as floats a block at a
+ * time, in buffers reused by each thread.
+ */
+public final class EffectPcmSource implements PcmSource {
+
+    // Samples processed at a time
+    private static final int BLOCK_SIZE = 2048;
+
+    private final PcmSource input;
+    private final EffectProcessor[] processors;
+    private final String effectKey;
+    private final int settlingTime;
+    private final ThreadLocal<Workspace> workspaces;
+
+    /**
+     * @param input
+     *            source of the audio to process
+     * @param effects
+     *            effects to apply, in order
+     */
+    public EffectPcmSource(PcmSource input, List<? extends Effect> effects) {
+        this.input = input;
+        PCMFormat format = input.getFormat();
+        List<EffectProcessor> chain = new ArrayList<>(effects.size());
+        StringBuilder key = new StringBuilder("fx[");
+        int settling = 0;
+        for (Effect effect : effects) {
+            EffectProcessor processor = effect.createProcessor(format);
+            if (processor != null) {
+                key.append(chain.isEmpty() ? "" : ",").append(processor.getKey());
+                settling += processor.getSettlingTime();
+                chain.add(processor);
+            }
+        }
+        this.processors = chain.toArray(new EffectProcessor[chain.size()]);
+        this.effectKey = key.append(']').toString();
+        this.settlingTime = settling;
+        this.workspaces = ThreadLocal.withInitial(() -> new Workspace(processors, format.getNumChannels()));
+    }
+
+    /**
+     * Get the source of the unprocessed audio
+     *
+     * @return input source
+     */
+    public PcmSource getInput() {
+        return input;
+    }
+
+    /**
+     * Tells whether any of the effects changes the audio
+     *
+     * @return false if reads return the input unchanged
+     */
+    public boolean hasEffects() {
+        return processors.length > 0;
+    }
+
+    /**
+     * Get a key identifying the effect chain and its parameters
+     *
+     * @return effect chain key
+     */
+    public String getEffectKey() {
+        return effectKey;
+    }
+
+    @Override
+    public PCMFormat getFormat() {
+        return input.getFormat();
+    }
+
+    @Override
+    public int getSampleCount() {
+        return input.getSampleCount();
+    }
+
+    @Override
+    public ByteBuffer read(int fromSample, int length) {
+        if (processors.length == 0) {
+            return input.read(fromSample, length);
+        }
+        int sampleCount = input.getSampleCount();
+        int from = Math.max(0, Math.min(fromSample, sampleCount));
+        int to = (int) Math.min((long) from + Math.max(0, length), sampleCount);
+        int first = Math.max(0, from - settlingTime);
+
+        PCMFormat format = input.getFormat();
+        int bits = format.getBitsPerSample();
+        int channels = format.getNumChannels();
+        ByteBuffer in = input.read(first, to - first);
+        byte[] out = new byte[(to - from) * format.getSampleSize()];
+
+        Workspace ws = workspaces.get();
+        for (EffectProcessor processor : ws.processors) {
+            processor.reset();
+        }
+        int outOffset = 0;
+        for (int position = first; position < to; position += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, to - position);
+            readBlock(in, ws.samples, channels, bits, n);
+            for (EffectProcessor processor : ws.processors) {
+                processor.process(ws.samples, n, position);
+            }
+            if (position + n > from) {
+                int skip = Math.max(0, from - position);
+                outOffset = writeBlock(ws.samples, channels, bits, skip, n, out, outOffset);
+            }
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * Identifies the processed audio by the input's id and the effect chain
+     *
+     * @return id, or null if the input has none
+     */
+    @Override
+    public String getId() {
+        String id = input.getId();
+        return id == null || processors.length == 0 ? id : id + "+" + effectKey;
+    }
+
+    /**
+     * Read little endian PCM samples as floats in [-1, 1)
+     */
+    private static void readBlock(ByteBuffer pcm, float[][] samples, int channels, int bits, int n) {
+        int width = bits / 8;
+        float scale = 1f / (1L << (bits - 1));
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < channels; c++) {
+                int value = 0;
+                if (pcm.remaining() >= width) {
+                    for (int b = 0; b < width; b++) {
+                        value |= (pcm.get() & 0xff) << (8 * b);
+                    }
+                    if (width == 1) {
+                        // 8 bit PCM is unsigned
+                        value -= 128;
+                    } else {
+                        int shift = 32 - bits;
+                        value = (value << shift) >> shift;
+                    }
+                }
+                samples[c][i] = value * scale;
+            }
+        }
+    }
+
+    /**
+     * Write samples skip to n of a block as little endian PCM, rounded and
+     * clipped to the sample range
+     */
+    private static int writeBlock(float[][] samples, int channels, int bits, int skip, int n, byte[] out,
+            int offset) {
+        int width = bits / 8;
+        double scale = 1L << (bits - 1);
+        long max = (1L << (bits - 1)) - 1;
+        long min = -max - 1;
+        for (int i = skip; i < n; i++) {
+            for (int c = 0; c < channels; c++) {
+                long value = Math.max(min, Math.min(max, Math.round(samples[c][i] * scale)));
+                if (width == 1) {
+                    out[offset++] = (byte) (value + 128);
+                } else {
+                    for (int b = 0; b < width; b++) {
+                        out[offset++] = (byte) (value >> (8 * b));
+                    }
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Processors and sample buffers of one thread
+     */
+    private static final class Workspace {
+
+        final EffectProcessor[] processors;
+        final float[][] samples;
+
+        Workspace(EffectProcessor[] chain, int channels) {
+            processors = new EffectProcessor[chain.length];
+            for (int i = 0; i < chain.length; i++) {
+                processors[i] = chain[i].copy();
+            }
+            samples = new float[channels][BLOCK_SIZE];
+        }
+    }
+
+}
@@ -0,0 +1,397 @@
+package org.vaadin.addon.audio.server.sources;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder of single FLAC frames, for streams of a fixed channel count and
+ * sample size. Decoders keep their sample buffers between frames and are not
+ * thread safe.
+ */
+final class FlacDecoder {
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int b = 0; b < 8; b++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int channels;
+    private final int bitsPerSample;
+
+    private int[][] samples = new int[0][];
+    private final int[] coefficients = new int[32];
+    private int blockSize;
+
+    // Bit reader state
+    private ByteBuffer data;
+    private int position;
+    private int limit;
+    private long cache;
+    private int cached;
+
+    FlacDecoder(int channels, int bitsPerSample) {
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+    }
+
+    /**
+     * Tells whether a FLAC frame sync code starts at an offset
+     */
+    static boolean isFrameStart(ByteBuffer data, int offset, int limit) {
+        return offset + 1 < limit && (data.get(offset) & 0xff) == 0xff && (data.get(offset + 1) & 0xfe) == 0xf8;
+    }
+
+    /**
+     * Decode the frame starting at an offset
+     *
+     * @param data
+     *            buffer holding the frame, read with absolute gets
+     * @param offset
+     *            index of the frame's first byte
+     * @param limit
+     *            index past the last byte the frame may use
+     * @return index of the byte following the frame
+     * @throws IOException
+     *             if the frame is malformed or doesn't match the stream
+     */
+    int decodeFrame(ByteBuffer data, int offset, int limit) throws IOException {
+        this.data = data;
+        this.position = offset;
+        this.limit = limit;
+        this.cached = 0;
+
+        if (readBits(15) != 0x7ffc) {
+            throw new IOException("no FLAC frame at offset " + offset);
+        }
+        readBits(1); // Blocking strategy, frames are indexed by their sizes
+        int blockSizeCode = readBits(4);
+        int rateCode = readBits(4);
+        int assignment = readBits(4);
+        int sizeCode = readBits(3);
+        readBits(1);
+        readUtf8();
+
+        if (blockSizeCode == 0) {
+            throw new IOException("reserved FLAC block size");
+        } else if (blockSizeCode == 1) {
+            blockSize = 192;
+        } else if (blockSizeCode <= 5) {
+            blockSize = 576 << (blockSizeCode - 2);
+        } else if (blockSizeCode == 6) {
+            blockSize = readBits(8) + 1;
+        } else if (blockSizeCode == 7) {
+            blockSize = readBits(16) + 1;
+        } else {
+            blockSize = 256 << (blockSizeCode - 8);
+        }
+
+        // The sample rate is the stream's, only its bits are skipped
+        if (rateCode == 12) {
+            readBits(8);
+        } else if (rateCode == 13 || rateCode == 14) {
+            readBits(16);
+        } else if (rateCode == 15) {
+            throw new IOException("invalid FLAC sample rate");
+        }
+
+        int[] sizes = { bitsPerSample, 8, 12, -1, 16, 20, 24, 32 };
+        if (sizes[sizeCode] != bitsPerSample) {
+            throw new IOException("FLAC frame sample size differs from the stream's");
+        }
+        int frameChannels = assignment < 8 ? assignment + 1 : assignment <= 10 ? 2 : -1;
+        if (frameChannels != channels) {
+            throw new IOException("FLAC frame channel count differs from the stream's");
+        }
+
+        int headerCrc = crc8(offset, position);
+        if (readBits(8) != headerCrc) {
+            throw new IOException("FLAC frame header CRC mismatch at offset " + offset);
+        }
+
+        if (samples.length < channels || samples[0].length < blockSize) {
+            samples = new int[channels][blockSize];
+        }
+        for (int c = 0; c < channels; c++) {
+            // The side channel has one extra bit
+            boolean side = (assignment == 8 || assignment == 10) && c == 1 || assignment == 9 && c == 0;
+            readSubframe(samples[c], side ? bitsPerSample + 1 : bitsPerSample);
+        }
+        decorrelate(assignment);
+
+        // Padding to a byte boundary, then the CRC-16 of the frame
+        cached = 0;
+        int frameCrc = crc16(offset, position);
+        if (readBits(16) != frameCrc) {
+            throw new IOException("FLAC frame CRC mismatch at offset " + offset);
+        }
+        return position;
+    }
+
+    /**
+     * Get the number of samples in the frame last decoded
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get the samples of the frame last decoded, one array per channel
+     */
+    int[][] getSamples() {
+        return samples;
+    }
+
+    private void readSubframe(int[] s, int bps) throws IOException {
+        if (readBits(1) != 0) {
+            throw new IOException("invalid FLAC subframe");
+        }
+        int type = readBits(6);
+        int wasted = 0;
+        if (readBits(1) != 0) {
+            wasted = readUnary() + 1;
+            bps -= wasted;
+        }
+        int n = blockSize;
+
+        if (type == 0) {
+            int value = readSigned(bps);
+            for (int i = 0; i < n; i++) {
+                s[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < n; i++) {
+                s[i] = readSigned(bps);
+            }
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            readWarmup(s, order, bps);
+            readResidual(s, order);
+            restoreFixed(s, order);
+        } else if (type >= 32) {
+            int order = type - 31;
+            readWarmup(s, order, bps);
+            int precision = readBits(4) + 1;
+            if (precision == 16) {
+                throw new IOException("invalid FLAC coefficient precision");
+            }
+            int shift = readSigned(5);
+            if (shift < 0) {
+                throw new IOException("negative FLAC prediction shift");
+            }
+            for (int j = 0; j < order; j++) {
+                coefficients[j] = readSigned(precision);
+            }
+            readResidual(s, order);
+            restoreLpc(s, order, shift);
+        } else {
+            throw new IOException("reserved FLAC subframe type " + type);
+        }
+
+        if (wasted > 0) {
+            for (int i = 0; i < n; i++) {
+                s[i] <<= wasted;
+            }
+        }
+    }
+
+    private void readWarmup(int[] s, int order, int bps) throws IOException {
+        if (order > blockSize) {
+            throw new IOException("FLAC predictor order exceeds the block size");
+        }
+        for (int i = 0; i < order; i++) {
+            s[i] = readSigned(bps);
+        }
+    }
+
+    /**
+     * Read the Rice coded residual following the warm-up samples
+     */
+    private void readResidual(int[] s, int order) throws IOException {
+        int method = readBits(2);
+        if (method > 1) {
+            throw new IOException("reserved FLAC residual coding");
+        }
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = readBits(4);
+        int partitionSize = blockSize >> partitionOrder;
+        if (partitionSize << partitionOrder != blockSize || partitionSize < order) {
+            throw new IOException("invalid FLAC partition order");
+        }
+
+        int i = order;
+        for (int p = 0; p < 1 << partitionOrder; p++) {
+            int end = (p + 1) * partitionSize;
+            int k = readBits(parameterBits);
+            if (k == escape) {
+                int bits = readBits(5);
+                for (; i < end; i++) {
+                    s[i] = readSigned(bits);
+                }
+            } else {
+                for (; i < end; i++) {
+                    int folded = (readUnary() << k) | readBits(k);
+                    s[i] = (folded >>> 1) ^ -(folded & 1);
+                }
+            }
+        }
+    }
+
+    private void restoreFixed(int[] s, int order) {
+        int n = blockSize;
+        switch (order) {
+        case 1:
+            for (int i = 1; i < n; i++) {
+                s[i] += s[i - 1];
+            }
+            break;
+        case 2:
+            for (int i = 2; i < n; i++) {
+                s[i] += 2 * s[i - 1] - s[i - 2];
+            }
+            break;
+        case 3:
+            for (int i = 3; i < n; i++) {
+                s[i] += 3 * (s[i - 1] - s[i - 2]) + s[i - 3];
+            }
+            break;
+        case 4:
+            for (int i = 4; i < n; i++) {
+                s[i] += 4 * (s[i - 1] + s[i - 3]) - 6 * s[i - 2] - s[i - 4];
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void restoreLpc(int[] s, int order, int shift) {
+        int[] q = coefficients;
+        for (int i = order; i < blockSize; i++) {
+            long prediction = 0;
+            for (int j = 0; j < order; j++) {
+                prediction += (long) q[j] * s[i - 1 - j];
+            }
+            s[i] += (int) (prediction >> shift);
+        }
+    }
+
+    private void decorrelate(int assignment) {
+        if (assignment < 8) {
+            return;
+        }
+        int[] a = samples[0];
+        int[] b = samples[1];
+        for (int i = 0; i < blockSize; i++) {
+            if (assignment == 8) {
+                // Left and side
+                b[i] = a[i] - b[i];
+            } else if (assignment == 9) {
+                // Side and right
+                a[i] += b[i];
+            } else {
+                // Mid and side
+                int side = b[i];
+                int mid = (a[i] << 1) | (side & 1);
+                a[i] = (mid + side) >> 1;
+                b[i] = (mid - side) >> 1;
+            }
+        }
+    }
+
+    private void readUtf8() throws IOException {
+        int first = readBits(8);
+        int extra = 0;
+        while (extra < 7 && (first & (0x80 >> extra)) != 0) {
+            extra++;
+        }
+        if (extra == 1 || extra == 7) {
+            throw new IOException("invalid FLAC frame number");
+        }
+        for (int i = 1; i < extra; i++) {
+            if ((readBits(8) & 0xc0) != 0x80) {
+                throw new IOException("invalid FLAC frame number");
+            }
+        }
+    }
+
+    /**
+     * Read n bits as an unsigned value, n at most 32
+     */
+    private int readBits(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        while (cached < n) {
+            cache = (cache << 8) | nextByte();
+            cached += 8;
+        }
+        cached -= n;
+        return (int) ((cache >>> cached) & ((1L << n) - 1));
+    }
+
+    private int readSigned(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        int shift = 32 - n;
+        return (readBits(n) << shift) >> shift;
+    }
+
+    /**
+     * Count the zero bits up to the next one bit, and skip them all
+     */
+    private int readUnary() throws IOException {
+        int zeros = 0;
+        while (true) {
+            if (cached == 0) {
+                cache = nextByte();
+                cached = 8;
+            }
+            int bits = (int) cache & ((1 << cached) - 1);
+            if (bits == 0) {
+                zeros += cached;
+                cached = 0;
+            } else {
+                int leading = Integer.numberOfLeadingZeros(bits) - (32 - cached);
+                cached -= leading + 1;
+                return zeros + leading;
+            }
+        }
+    }
+
+    private int nextByte() throws IOException {
+        if (position >= limit) {
+            throw new IOException("truncated FLAC frame");
+        }
+        return data.get(position++) & 0xff;
+    }
+
+    private int crc8(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[(crc ^ data.get(i)) & 0xff];
+        }
+        return crc;
+    }
+
+    private int crc16(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ data.get(i)) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+}
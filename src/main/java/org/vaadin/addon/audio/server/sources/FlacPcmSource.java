@@ -0,0 +1,380 @@
+package org.vaadin.addon.audio.server.sources;
+
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.server.encoders.FLACEncoder;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Audio kept FLAC compressed in memory, typically at half the size of its PCM
+ * form or less. An index of the frames is built when the source is created,
+ * so a read decodes only the frames covering the requested samples. Recently
+ * decoded frames are kept in a small cache, as adjacent chunks and the
+ * encoder variants of a stream read overlapping ranges.
+ *
+ * Sources are created from a FLAC file held in a buffer, or by compressing
+ * another source.
+ */
+public final class FlacPcmSource implements PcmSource {
+
+    /** Default size of the decoded frame cache, in bytes */
+    public static final int DEFAULT_CACHE_SIZE = 2 * 1024 * 1024;
+
+    // Frames compressed at a time by compress(); the encoder's output buffer
+    // grows to the size of a segment
+    private static final int SEGMENT_FRAMES = 64;
+
+    private final ByteBuffer data;
+    private final PCMFormat format;
+    private final int bitsPerSample;
+    private final int sampleCount;
+    // Offset of each frame in data, and its first sample, with one more
+    // entry marking the end
+    private final int[] frameOffsets;
+    private final int[] frameSamples;
+
+    private final ThreadLocal<FlacDecoder> decoders;
+    private final Map<Integer, byte[]> decodedFrames = new LinkedHashMap<>(16, 0.75f, true);
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private int cachedBytes = 0;
+    private volatile String id;
+
+    private FlacPcmSource(ByteBuffer data, int firstFrame, int channels, int sampleRate, int bitsPerSample,
+            long totalSamples) throws IOException {
+        if (channels < 1 || channels > 8) {
+            throw new IOException("FLAC streams of " + channels + " channels are not supported");
+        }
+        if (bitsPerSample < 4 || bitsPerSample > 24) {
+            throw new IOException("FLAC streams of " + bitsPerSample + " bits per sample are not supported");
+        }
+        this.data = data;
+        this.bitsPerSample = bitsPerSample;
+        this.format = new PCMFormat(channels, sampleRate, (bitsPerSample + 7) / 8 * 8);
+        this.decoders = ThreadLocal.withInitial(() -> new FlacDecoder(channels, bitsPerSample));
+
+        // Index the frames; they carry no lengths, so each one is decoded,
+        // which also verifies its checksums
+        FlacDecoder decoder = decoders.get();
+        int limit = data.limit();
+        int[] offsets = new int[64];
+        int[] starts = new int[64];
+        int count = 0;
+        long sample = 0;
+        int offset = firstFrame;
+        // Trailing tags such as ID3v1 end the frames
+        while (FlacDecoder.isFrameStart(data, offset, limit)) {
+            if (count + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            offsets[count] = offset;
+            starts[count] = (int) sample;
+            count++;
+            offset = decoder.decodeFrame(data, offset, limit);
+            sample += decoder.getBlockSize();
+            if (sample > Integer.MAX_VALUE) {
+                throw new IOException("FLAC stream is too long");
+            }
+        }
+        offsets[count] = offset;
+        starts[count] = (int) sample;
+        this.frameOffsets = Arrays.copyOf(offsets, count + 1);
+        this.frameSamples = Arrays.copyOf(starts, count + 1);
+        // The last frame may be padded past the declared length
+        this.sampleCount = totalSamples > 0 ? (int) Math.min(totalSamples, sample) : (int) sample;
+    }
+
+    /**
+     * Create a source reading a FLAC file held in a buffer, without copying
+     * it
+     *
+     * @param flacFile
+     *            buffer containing a FLAC file from index 0 up to its limit;
+     *            it is read with absolute gets
+     * @return source decoding the file's samples
+     * @throws IOException
+     *             if the buffer doesn't hold a valid FLAC file
+     */
+    public static FlacPcmSource fromFlacBuffer(ByteBuffer flacFile) throws IOException {
+        int limit = flacFile.limit();
+        int offset = 0;
+        // Skip an ID3v2 tag
+        if (limit >= 10 && flacFile.get(0) == 'I' && flacFile.get(1) == 'D' && flacFile.get(2) == '3') {
+            int size = 0;
+            for (int i = 6; i < 10; i++) {
+                size = (size << 7) | (flacFile.get(i) & 0x7f);
+            }
+            offset = 10 + size;
+        }
+        if (offset + 4 > limit || flacFile.get(offset) != 'f' || flacFile.get(offset + 1) != 'L'
+                || flacFile.get(offset + 2) != 'a' || flacFile.get(offset + 3) != 'C') {
+            throw new IOException("not a FLAC file");
+        }
+        offset += 4;
+
+        boolean streamInfo = false;
+        int channels = 0;
+        int sampleRate = 0;
+        int bitsPerSample = 0;
+        long totalSamples = 0;
+        boolean last = false;
+        while (!last) {
+            if (offset + 4 > limit) {
+                throw new IOException("truncated FLAC metadata");
+            }
+            int type = flacFile.get(offset) & 0xff;
+            last = (type & 0x80) != 0;
+            type &= 0x7f;
+            int length = (flacFile.get(offset + 1) & 0xff) << 16 | (flacFile.get(offset + 2) & 0xff) << 8
+                    | flacFile.get(offset + 3) & 0xff;
+            offset += 4;
+            if (offset + length > limit) {
+                throw new IOException("truncated FLAC metadata");
+            }
+            if (type == 0 && length >= 34) {
+                // STREAMINFO: rate, channels and sample size follow the block
+                // and frame sizes
+                long info = 0;
+                for (int i = 10; i < 18; i++) {
+                    info = (info << 8) | (flacFile.get(offset + i) & 0xff);
+                }
+                sampleRate = (int) (info >>> 44);
+                channels = (int) ((info >>> 41) & 0x7) + 1;
+                bitsPerSample = (int) ((info >>> 36) & 0x1f) + 1;
+                totalSamples = info & 0xfffffffffL;
+                streamInfo = true;
+            }
+            offset += length;
+        }
+        if (!streamInfo) {
+            throw new IOException("FLAC file has no STREAMINFO block");
+        }
+        return new FlacPcmSource(flacFile, offset, channels, sampleRate, bitsPerSample, totalSamples);
+    }
+
+    /**
+     * Compress the samples of another source. The other source is read a
+     * segment at a time and can be discarded afterwards.
+     *
+     * @param source
+     *            source of 8, 16 or 24 bit PCM
+     * @return source decoding the compressed samples
+     */
+    public static FlacPcmSource compress(PcmSource source) {
+        FLACEncoder encoder = new SegmentEncoder(source);
+        int blockSize = encoder.getOutputFormat().getBlockSize();
+        int segment = blockSize * SEGMENT_FRAMES;
+        int sampleCount = source.getSampleCount();
+        PCMFormat format = source.getFormat();
+
+        // Frames of the segments are joined into one stream. Their frame
+        // numbers restart in each segment, which the index doesn't use.
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int from = 0; from < sampleCount; from += segment) {
+            byte[] flac = encoder.encode(from, Math.min(segment, sampleCount - from));
+            int headerLength = 4 + 4 + 34;
+            frames.write(flac, headerLength, flac.length - headerLength);
+        }
+        try {
+            return new FlacPcmSource(ByteBuffer.wrap(frames.toByteArray()), 0, format.getNumChannels(),
+                    format.getSampleRate(), format.getBitsPerSample(), sampleCount);
+        } catch (IOException e) {
+            // Only unsupported formats make the encoder's output unreadable
+            throw new IllegalStateException("could not index compressed audio", e);
+        }
+    }
+
+    /**
+     * Get the size of the compressed audio
+     *
+     * @return number of bytes held by the source, excluding the frame cache
+     */
+    public int getCompressedSize() {
+        return frameOffsets[frameOffsets.length - 1] - frameOffsets[0];
+    }
+
+    /**
+     * Get the number of FLAC frames in the source
+     *
+     * @return frame count
+     */
+    public int getFrameCount() {
+        return frameOffsets.length - 1;
+    }
+
+    /**
+     * Get the size of the decoded frame cache
+     *
+     * @return maximum number of bytes of decoded frames kept
+     */
+    public synchronized int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set the size of the decoded frame cache. Default is
+     * {@link #DEFAULT_CACHE_SIZE}.
+     *
+     * @param cacheSize
+     *            maximum number of bytes of decoded frames kept, 0 to decode
+     *            every read
+     */
+    public synchronized void setCacheSize(int cacheSize) {
+        this.cacheSize = Math.max(0, cacheSize);
+        trimCache();
+    }
+
+    @Override
+    public PCMFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public ByteBuffer read(int fromSample, int length) {
+        int sampleSize = format.getSampleSize();
+        int from = Math.max(0, Math.min(fromSample, sampleCount));
+        int to = (int) Math.min((long) from + Math.max(0, length), sampleCount);
+        if (from == to) {
+            return ByteBuffer.allocate(0);
+        }
+
+        int frame = Arrays.binarySearch(frameSamples, from);
+        if (frame < 0) {
+            frame = -frame - 2;
+        }
+        if (to <= frameSamples[frame + 1]) {
+            // Within one frame, the decoded frame is shared
+            byte[] pcm = getFrame(frame);
+            return ByteBuffer.wrap(pcm, (from - frameSamples[frame]) * sampleSize, (to - from) * sampleSize);
+        }
+
+        byte[] pcm = new byte[(to - from) * sampleSize];
+        int position = from;
+        for (; position < to; frame++) {
+            int start = frameSamples[frame];
+            int end = Math.min(frameSamples[frame + 1], to);
+            System.arraycopy(getFrame(frame), (position - start) * sampleSize, pcm, (position - from) * sampleSize,
+                    (end - position) * sampleSize);
+            position = end;
+        }
+        return ByteBuffer.wrap(pcm);
+    }
+
+    /**
+     * Identifies the source by a digest of its compressed frames
+     */
+    @Override
+    public String getId() {
+        String digest = id;
+        if (digest == null) {
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer frames = data.duplicate();
+            frames.limit(frameOffsets[frameOffsets.length - 1]);
+            frames.position(frameOffsets[0]);
+            sha.update(frames);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : sha.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            sb.append(":flac:").append(format.getNumChannels()).append('x').append(format.getSampleRate())
+                    .append('x').append(bitsPerSample).append(':').append(sampleCount);
+            digest = sb.toString();
+            id = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * Get the little endian PCM bytes of a frame, from the cache or decoded
+     */
+    private byte[] getFrame(int frame) {
+        synchronized (this) {
+            byte[] pcm = decodedFrames.get(frame);
+            if (pcm != null) {
+                return pcm;
+            }
+        }
+
+        // Decoded outside the lock, other frames are read meanwhile
+        FlacDecoder decoder = decoders.get();
+        try {
+            decoder.decodeFrame(data, frameOffsets[frame], frameOffsets[frame + 1]);
+        } catch (IOException e) {
+            // The frame was decoded once when indexed
+            throw new IllegalStateException("could not decode FLAC frame " + frame, e);
+        }
+        byte[] pcm = toPcm(decoder.getSamples(), frameSamples[frame + 1] - frameSamples[frame]);
+
+        synchronized (this) {
+            if (pcm.length <= cacheSize && decodedFrames.put(frame, pcm) == null) {
+                cachedBytes += pcm.length;
+                trimCache();
+            }
+        }
+        return pcm;
+    }
+
+    private void trimCache() {
+        Iterator<byte[]> eldest = decodedFrames.values().iterator();
+        while (cachedBytes > cacheSize && eldest.hasNext()) {
+            cachedBytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Interleave the decoded samples into the PCM format of the source
+     */
+    private byte[] toPcm(int[][] samples, int n) {
+        int channels = format.getNumChannels();
+        int width = format.getBitsPerSample() / 8;
+        // Samples are left aligned in their container, as in WAVE files
+        int shift = width * 8 - bitsPerSample;
+        byte[] pcm = new byte[n * channels * width];
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < channels; c++) {
+                int value = samples[c][i] << shift;
+                if (width == 1) {
+                    // 8 bit PCM is unsigned
+                    pcm[p++] = (byte) (value + 128);
+                } else {
+                    for (int b = 0; b < width; b++) {
+                        pcm[p++] = (byte) (value >> (8 * b));
+                    }
+                }
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * FLAC encoder reading a source outside of a stream
+     */
+    private static final class SegmentEncoder extends FLACEncoder {
+
+        SegmentEncoder(PcmSource source) {
+            setInput(source);
+        }
+    }
+
+}
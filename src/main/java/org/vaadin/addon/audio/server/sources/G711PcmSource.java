@@ -0,0 +1,130 @@
+package org.vaadin.addon.audio.server.sources;
+
+import org.vaadin.addon.audio.server.PcmSource;
+import org.vaadin.addon.audio.server.util.ULawUtil;
+import org.vaadin.addon.audio.server.util.ULawUtil.Law;
+import org.vaadin.addon.audio.server.util.WaveHeader;
+import org.vaadin.addon.audio.server.util.WaveUtil;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * G.711 u-law or A-law audio, kept in its 8 bit form and decoded to 16 bit
+ * PCM only for the samples being read. Telephony recordings thus take half
+ * the memory of their PCM form, and only the chunks being encoded are ever
+ * expanded.
+ */
+public final class G711PcmSource implements PcmSource {
+
+    private final ByteBuffer codes;
+    private final Law law;
+    private final PCMFormat format;
+    private final int sampleCount;
+    private volatile String id;
+
+    /**
+     * @param codes
+     *            buffer containing the G.711 codes from index 0, one byte per
+     *            channel and sample; it is read through duplicates
+     * @param law
+     *            companding law of the codes
+     * @param numChannels
+     *            number of interleaved channels
+     * @param sampleRate
+     *            samples per second
+     */
+    public G711PcmSource(ByteBuffer codes, Law law, int numChannels, int sampleRate) {
+        this.codes = codes;
+        this.law = law;
+        this.format = new PCMFormat(numChannels, sampleRate, 16);
+        this.sampleCount = codes.capacity() / numChannels;
+    }
+
+    /**
+     * Create a source reading the data chunk of a u-law or A-law WAVE file
+     * held in a buffer, without copying it
+     * 
+     * @param waveFile
+     *            buffer containing a WAVE file from index 0
+     * @return source decoding the file's samples
+     * @throws IOException
+     *             if the buffer doesn't hold a G.711 WAVE file
+     */
+    public static G711PcmSource fromWaveBuffer(ByteBuffer waveFile) throws IOException {
+        WaveHeader header = WaveUtil.readHeader(waveFile);
+        Law law;
+        if (header.getFormatTag() == WaveHeader.FORMAT_MULAW) {
+            law = Law.ULAW;
+        } else if (header.getFormatTag() == WaveHeader.FORMAT_ALAW) {
+            law = Law.ALAW;
+        } else {
+            throw new IOException("WAVE data is not u-law or A-law");
+        }
+        PCMFormat coded = header.getFormat();
+        return new G711PcmSource(WaveUtil.getDataRegion(waveFile), law, coded.getNumChannels(),
+                coded.getSampleRate());
+    }
+
+    public Law getLaw() {
+        return law;
+    }
+
+    @Override
+    public PCMFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public ByteBuffer read(int fromSample, int length) {
+        int channels = format.getNumChannels();
+        int from = Math.max(0, Math.min(fromSample, sampleCount));
+        int to = (int) Math.min((long) from + Math.max(0, length), sampleCount);
+        ByteBuffer in = codes.duplicate();
+        in.clear();
+        in.limit(to * channels);
+        in.position(from * channels);
+
+        byte[] pcm = new byte[in.remaining() * 2];
+        ULawUtil.decode(in, law, pcm, 0);
+        return ByteBuffer.wrap(pcm);
+    }
+
+    /**
+     * Identifies the source by a digest of its codes, which is half the size
+     * of the PCM data
+     */
+    @Override
+    public String getId() {
+        String digest = id;
+        if (digest == null) {
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer data = codes.duplicate();
+            data.clear();
+            sha.update(data);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : sha.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            sb.append(':').append(law).append(':').append(format.getNumChannels()).append('x')
+                    .append(format.getSampleRate());
+            digest = sb.toString();
+            id = digest;
+        }
+        return digest;
+    }
+
+}
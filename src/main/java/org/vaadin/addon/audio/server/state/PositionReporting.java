@@ -0,0 +1,17 @@
+package org.vaadin.addon.audio.server.state;
+
+/**
+ * How the client of an AudioPlayer reports the playback position.
+ */
+public enum PositionReporting {
+    /**
+     * Report the position at a fixed interval while playing
+     */
+    INTERVAL,
+    /**
+     * Report only on playback state changes, and when the position drifts
+     * from where the server extrapolates it. Position listeners are updated
+     * from a shared server-side scheduler.
+     */
+    ADAPTIVE
+}
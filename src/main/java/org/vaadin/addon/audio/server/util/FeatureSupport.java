@@ -59,6 +59,31 @@ public class FeatureSupport {
         return isAudioElementSupported() && !browser.isSafari() && !browser.isIE();
     }
 
+    public static boolean isFlacSupported() {
+        browser = getBrowser();
+        if (browser.isChrome()) {
+            // 56+
+            return browser.getBrowserMajorVersion() >= 56;
+        }
+        if (browser.isEdge()) {
+            // 16+
+            return browser.getBrowserMajorVersion() >= 16;
+        }
+        if (browser.isFirefox()) {
+            // 51+
+            return browser.getBrowserMajorVersion() >= 51;
+        }
+        if (browser.isSafari()) {
+            // 11+
+            return browser.getBrowserMajorVersion() >= 11;
+        }
+        if (browser.isOpera()) {
+            // 43+
+            return browser.getBrowserMajorVersion() >= 43;
+        }
+        return false;
+    }
+
     private static WebBrowser getBrowser() {
         if (browser == null) {
             browser = UI.getCurrent().getSession().getBrowser();
@@ -0,0 +1,129 @@
+package org.vaadin.addon.audio.server.util;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A WAVE file whose PCM data chunk is memory-mapped instead of read onto the
+ * heap.
+ *
+ * Opening the same unchanged file again returns the mapping that is already
+ * in use, so any number of streams playing one file share a single mapping.
+ * The mapping is released once no buffer obtained from {@link #getData()} is
+ * referenced anymore.
+ */
+public final class MappedWaveFile {
+
+    private static final class Mapping {
+        final WeakReference<ByteBuffer> data;
+        final PCMFormat format;
+
+        Mapping(ByteBuffer data, PCMFormat format) {
+            this.data = new WeakReference<>(data);
+            this.format = format;
+        }
+    }
+
+    private static final Map<String, Mapping> mappings = new ConcurrentHashMap<>();
+
+    private final String id;
+    private final PCMFormat format;
+    private final ByteBuffer data;
+
+    private MappedWaveFile(String id, PCMFormat format, ByteBuffer data) {
+        this.id = id;
+        this.format = format;
+        this.data = data;
+    }
+
+    /**
+     * Open a WAVE file, mapping its data chunk or reusing an existing mapping
+     * of the same file.
+     *
+     * @param path
+     *            path to a PCM WAVE file
+     * @return the mapped file
+     * @throws IOException
+     *             if the file can't be read, isn't a WAVE file or its data
+     *             chunk is too large to map
+     */
+    public static MappedWaveFile open(Path path) throws IOException {
+        Path file = path.toRealPath();
+        String id = file + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+
+        synchronized (mappings) {
+            Mapping mapping = mappings.get(id);
+            ByteBuffer data = mapping != null ? mapping.data.get() : null;
+            if (data != null) {
+                return new MappedWaveFile(id, mapping.format, data);
+            }
+
+            // Drop mappings that have been released
+            mappings.values().removeIf(m -> m.data.get() == null);
+
+            MappedWaveFile mapped = map(id, file);
+            mappings.put(id, new Mapping(mapped.data, mapped.format));
+            return mapped;
+        }
+    }
+
+    private static MappedWaveFile map(String id, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WaveHeader header;
+            try {
+                header = WaveUtil.readHeader(channel);
+            } catch (IOException e) {
+                throw new IOException(file + ": " + e.getMessage(), e);
+            }
+
+            // audio format 1 is linear PCM, anything else must be decoded first
+            if (!header.isPcm()) {
+                throw new IOException(file + " does not contain PCM data");
+            }
+
+            // The size field may be a placeholder, never map past the end of
+            // the file
+            long dataLength = header.getDataLength(channel.size());
+            if (dataLength > Integer.MAX_VALUE) {
+                throw new IOException("data chunk of " + file + " is too large to be mapped");
+            }
+
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, header.getDataOffset(), dataLength);
+            return new MappedWaveFile(id, header.getFormat(), data);
+        }
+    }
+
+    /**
+     * Get an identity for the file contents, made of the real path, size and
+     * modification time.
+     *
+     * @return file identity
+     */
+    public String getId() {
+        return id;
+    }
+
+    public PCMFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the mapped PCM data. The buffer is shared; read it through
+     * {@link ByteBuffer#duplicate()} instead of changing its position.
+     *
+     * @return read-only buffer containing the PCM data chunk
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.vaadin.addon.audio.server.util;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lossless pre-filter that makes WAVE chunks compress better. The client
+ * reverses it with {@code VaadinAudioPlayer.PcmPredictionFilter}.
+ *
+ * Each channel is replaced by the residual of a fixed linear predictor of
+ * order 0-3, as in FLAC, chosen per chunk and channel. The residual bytes are
+ * then split into byte planes, so the mostly constant high bytes end up next
+ * to each other. Residuals are computed modulo the sample width, so the
+ * filter is exact for any sample values.
+ *
+ * Filtered layout: the 44 byte WAVE header unchanged, one predictor order
+ * byte per channel, then the byte planes from least to most significant.
+ */
+public final class PcmPredictionFilter {
+
+    /** Highest predictor order used */
+    public static final int MAX_ORDER = 3;
+
+    private PcmPredictionFilter() {
+    }
+
+    /**
+     * Filter a WAVE chunk with a {@link WaveUtil#HEADER_LENGTH} byte header.
+     *
+     * @param wave
+     *            WAVE chunk
+     * @return filtered chunk
+     */
+    public static byte[] apply(byte[] wave) {
+        PCMFormat format = WaveUtil.getDataFormat(ByteBuffer.wrap(wave));
+        int channels = format.getNumChannels();
+        int width = format.getBitsPerSample() / 8;
+        int header = WaveUtil.HEADER_LENGTH;
+        int frames = (wave.length - header) / (width * channels);
+        int dataLength = frames * width * channels;
+        int planeLength = frames * channels;
+
+        byte[] out = new byte[header + channels + dataLength];
+        System.arraycopy(wave, 0, out, 0, header);
+
+        int[] samples = new int[frames];
+        for (int c = 0; c < channels; c++) {
+            for (int i = 0; i < frames; i++) {
+                samples[i] = readSample(wave, header + (i * channels + c) * width, width);
+            }
+            int order = chooseOrder(samples);
+            out[header + c] = (byte) order;
+
+            int planes = header + channels;
+            for (int i = 0; i < frames; i++) {
+                int residual = samples[i] - predict(samples, i, order);
+                int index = i * channels + c;
+                for (int b = 0; b < width; b++) {
+                    out[planes + b * planeLength + index] = (byte) (residual >> (8 * b));
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Pick the predictor order with the smallest total residual
+     */
+    private static int chooseOrder(int[] samples) {
+        long[] error = new long[MAX_ORDER + 1];
+        for (int i = MAX_ORDER; i < samples.length; i++) {
+            for (int order = 0; order <= MAX_ORDER; order++) {
+                error[order] += Math.abs((long) samples[i] - predict(samples, i, order));
+            }
+        }
+        int best = 0;
+        for (int order = 1; order <= MAX_ORDER; order++) {
+            if (error[order] < error[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fixed predictor; samples before the chunk count as 0
+     */
+    private static int predict(int[] s, int i, int order) {
+        int x1 = i > 0 ? s[i - 1] : 0;
+        int x2 = i > 1 ? s[i - 2] : 0;
+        int x3 = i > 2 ? s[i - 3] : 0;
+        switch (order) {
+        case 1:
+            return x1;
+        case 2:
+            return 2 * x1 - x2;
+        case 3:
+            return 3 * x1 - 3 * x2 + x3;
+        default:
+            return 0;
+        }
+    }
+
+    private static int readSample(byte[] data, int offset, int width) {
+        int value = 0;
+        for (int b = 0; b < width; b++) {
+            value |= (data[offset + b] & 0xFF) << (8 * b);
+        }
+        // Sign extend; 8 bit WAVE data is unsigned, but the residuals are
+        // exact modulo the sample width either way
+        int shift = 32 - 8 * width;
+        return (value << shift) >> shift;
+    }
+
+}
@@ -1,57 +1,140 @@
 package org.vaadin.addon.audio.server.util;
 
-import com.sun.media.sound.UlawCodec;
+import org.vaadin.addon.audio.shared.PCMFormat;
 
-import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-
-// TODO: create a ULawEncoder class and include the decode method there?
 
 /**
- * Classed used to manipulate U-Law encoded audio files.
+ * Table driven G.711 decoding of u-law and A-law audio to 16 bit PCM.
  */
 public class ULawUtil {
 
     /**
-     * Takes AudioInputStream with U-Law encoded data, converts it to PCM Signed data and
-     * wraps it in a ByteBuffer.
+     * G.711 companding laws
+     */
+    public enum Law {
+        /** u-law, used in North America and Japan */
+        ULAW,
+        /** A-law, used in Europe */
+        ALAW
+    }
+
+    // 16 bit PCM value of every 8 bit code
+    private static final short[] ULAW_TABLE = new short[256];
+    private static final short[] ALAW_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            ULAW_TABLE[i] = decodeULaw(i);
+            ALAW_TABLE[i] = decodeALaw(i);
+        }
+    }
+
+    private static short decodeULaw(int code) {
+        int u = ~code & 0xff;
+        int exponent = (u >> 4) & 0x07;
+        int magnitude = ((((u & 0x0f) << 3) + 0x84) << exponent) - 0x84;
+        return (short) ((u & 0x80) != 0 ? -magnitude : magnitude);
+    }
+
+    private static short decodeALaw(int code) {
+        int a = code ^ 0x55;
+        int segment = (a >> 4) & 0x07;
+        int magnitude = (a & 0x0f) << 4;
+        if (segment == 0) {
+            magnitude += 8;
+        } else {
+            magnitude = (magnitude + 0x108) << (segment - 1);
+        }
+        return (short) ((a & 0x80) != 0 ? magnitude : -magnitude);
+    }
+
+    /**
+     * Get the 16 bit PCM value of a G.711 code
+     * 
+     * @param code
+     *            8 bit code
+     * @param law
+     *            companding law of the code
+     * @return linear sample value
+     */
+    public static short decode(int code, Law law) {
+        return (law == Law.ALAW ? ALAW_TABLE : ULAW_TABLE)[code & 0xff];
+    }
+
+    /**
+     * Decode G.711 codes to little endian 16 bit PCM.
+     * 
+     * @param codes
+     *            buffer to read the codes from, from its position to its limit;
+     *            only absolute reads are used
+     * @param law
+     *            companding law of the codes
+     * @param out
+     *            array to write the PCM data to, two bytes per code
+     * @param offset
+     *            offset in out to write to
+     */
+    public static void decode(ByteBuffer codes, Law law, byte[] out, int offset) {
+        short[] table = law == Law.ALAW ? ALAW_TABLE : ULAW_TABLE;
+        int end = codes.limit();
+        int o = offset;
+        if (codes.hasArray()) {
+            byte[] in = codes.array();
+            int base = codes.arrayOffset();
+            for (int i = codes.position(); i < end; i++) {
+                short value = table[in[base + i] & 0xff];
+                out[o++] = (byte) value;
+                out[o++] = (byte) (value >> 8);
+            }
+        } else {
+            for (int i = codes.position(); i < end; i++) {
+                short value = table[codes.get(i) & 0xff];
+                out[o++] = (byte) value;
+                out[o++] = (byte) (value >> 8);
+            }
+        }
+    }
+
+    /**
+     * Decode the u-law or A-law data of an audio stream into a 16 bit PCM
+     * WAVE file held in memory.
      * 
      * @param uLawInputStream
-     *            AudioInputStream containing U-Law encoded data.
-     * @return ByteBuffer containing PCM Signed data.
+     *            AudioInputStream containing U-Law or A-Law encoded data.
+     * @return ByteBuffer containing a WAVE file of PCM Signed data.
      * @throws IOException
+     *             if reading fails or the stream isn't G.711 encoded
      */
     public static ByteBuffer decodeULawToPcm(AudioInputStream uLawInputStream) throws IOException {
-        System.out.println("Decoding u-law to signed pcm data");
-        ByteBuffer buffer;
-        UlawCodec codec = new UlawCodec();
-        // decode u-law audio to pcm
-        AudioInputStream convertedStream = codec.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, uLawInputStream);
-        // save the decoded file to a temp file just until we can read into a byte buffer
-        File tmp = File.createTempFile("tempAudioFile", ".wav");
-        AudioSystem.write(convertedStream, AudioFileFormat.Type.WAVE, tmp);
-        // wrap byte[] in ByteBuffer
-        byte[] bytes = Files.readAllBytes(Paths.get(tmp.getPath()));
-        buffer = ByteBuffer.wrap(bytes);
-        // delete temp file
-        tmp.delete();
-
-        // TODO: get decoding directly to byte[] working
-        // this is writing the correct number of bytes into the byte[], but
-        // non of the audio format info is being read later
-        // ByteArrayOutputStream output = new ByteArrayOutputStream();
-        // AudioSystem.write(convertedStream, AudioFileFormat.Type.WAVE, output);
-        // byte[] convertedBytes = new byte[output.size()];
-        // output.write(convertedBytes);
-        // fileBytes.clear();
-        // fileBytes = ByteBuffer.wrap(convertedBytes);
-        return buffer;
+        AudioFormat format = uLawInputStream.getFormat();
+        Law law;
+        if (format.getEncoding().equals(AudioFormat.Encoding.ULAW)) {
+            law = Law.ULAW;
+        } else if (format.getEncoding().equals(AudioFormat.Encoding.ALAW)) {
+            law = Law.ALAW;
+        } else {
+            throw new IOException("not G.711 audio: " + format.getEncoding());
+        }
+
+        ByteArrayOutputStream codes = new ByteArrayOutputStream();
+        byte[] block = new byte[16 * 1024];
+        int n;
+        while ((n = uLawInputStream.read(block)) > 0) {
+            codes.write(block, 0, n);
+        }
+
+        int channels = format.getChannels();
+        int frames = codes.size() / channels;
+        PCMFormat pcmFormat = new PCMFormat(channels, (int) format.getSampleRate(), 16);
+        byte[] wave = new byte[WaveUtil.HEADER_LENGTH + frames * pcmFormat.getSampleSize()];
+        System.arraycopy(WaveUtil.generateHeader(pcmFormat, frames), 0, wave, 0, WaveUtil.HEADER_LENGTH);
+        ByteBuffer in = ByteBuffer.wrap(codes.toByteArray(), 0, frames * channels);
+        decode(in, law, wave, WaveUtil.HEADER_LENGTH);
+        return ByteBuffer.wrap(wave);
     }
 }
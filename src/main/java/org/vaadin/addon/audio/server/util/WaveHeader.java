@@ -0,0 +1,159 @@
+package org.vaadin.addon.audio.server.util;
+
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+/**
+ * Layout of a WAVE file, as found by {@link WaveUtil#readHeader}: the sample
+ * format and where the sample data lies in the file.
+ */
+public final class WaveHeader {
+
+    /** Integer PCM samples */
+    public static final int FORMAT_PCM = 1;
+    /** IEEE floating point samples */
+    public static final int FORMAT_IEEE_FLOAT = 3;
+    /** G.711 A-law samples */
+    public static final int FORMAT_ALAW = 6;
+    /** G.711 u-law samples */
+    public static final int FORMAT_MULAW = 7;
+    /** Format tag of WAVE_FORMAT_EXTENSIBLE, resolved to its sub format */
+    public static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    /** Data length of files whose data chunk size was never filled in */
+    public static final long UNKNOWN_LENGTH = -1;
+
+    int formatTag;
+    int numChannels;
+    int sampleRate;
+    int bitsPerSample;
+    int validBitsPerSample;
+    int channelMask;
+    boolean rf64;
+    long fmtChunkOffset = -1;
+    long fmtChunkSize;
+    long dataChunkOffset = -1;
+    long dataLength;
+
+    WaveHeader() {
+    }
+
+    /**
+     * Get the sample format. Samples are stored in whole bytes, so the bit
+     * depth is that of the sample container, e.g. 24 for 20 bit samples.
+     *
+     * @return PCM format of the data chunk
+     */
+    public PCMFormat getFormat() {
+        return new PCMFormat(numChannels, sampleRate, (bitsPerSample + 7) / 8 * 8);
+    }
+
+    /**
+     * Get the format tag, with the sub format in place of
+     * {@link #FORMAT_EXTENSIBLE}
+     *
+     * @return format tag, such as {@link #FORMAT_PCM}
+     */
+    public int getFormatTag() {
+        return formatTag;
+    }
+
+    /**
+     * Tells whether the data is integer PCM, which the encoders read
+     *
+     * @return true for integer PCM samples
+     */
+    public boolean isPcm() {
+        return formatTag == FORMAT_PCM;
+    }
+
+    /**
+     * Get the number of significant bits in each sample
+     *
+     * @return valid bits, at most the container size
+     */
+    public int getValidBitsPerSample() {
+        return validBitsPerSample;
+    }
+
+    /**
+     * Get the speaker positions of the channels, from WAVE_FORMAT_EXTENSIBLE
+     *
+     * @return channel mask, 0 if not given
+     */
+    public int getChannelMask() {
+        return channelMask;
+    }
+
+    /**
+     * Tells whether the file is an RF64 or BW64 file, whose sizes are held in
+     * a ds64 chunk so it can exceed 4 GB
+     *
+     * @return true for RF64 files
+     */
+    public boolean isRF64() {
+        return rf64;
+    }
+
+    /**
+     * Get the offset of the fmt chunk
+     *
+     * @return byte offset of the chunk id
+     */
+    public long getFmtChunkOffset() {
+        return fmtChunkOffset;
+    }
+
+    /**
+     * Get the size of the fmt chunk body
+     *
+     * @return number of bytes following the chunk size field
+     */
+    public long getFmtChunkSize() {
+        return fmtChunkSize;
+    }
+
+    /**
+     * Get the offset of the data chunk
+     *
+     * @return byte offset of the chunk id
+     */
+    public long getDataChunkOffset() {
+        return dataChunkOffset;
+    }
+
+    /**
+     * Get the offset of the first sample
+     *
+     * @return byte offset of the sample data
+     */
+    public long getDataOffset() {
+        return dataChunkOffset + 8;
+    }
+
+    /**
+     * Get the length of the sample data as declared in the file
+     *
+     * @return number of bytes, or {@link #UNKNOWN_LENGTH} if the data runs to
+     *         the end of the file
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Get the length of the sample data in a file of a given size, rounded
+     * down to whole samples. The declared length is not trusted beyond the
+     * end of the file.
+     *
+     * @param fileLength
+     *            number of bytes available
+     * @return number of bytes of sample data
+     */
+    public long getDataLength(long fileLength) {
+        long available = Math.max(0, fileLength - getDataOffset());
+        long length = dataLength == UNKNOWN_LENGTH ? available : Math.min(dataLength, available);
+        int sampleSize = getFormat().getSampleSize();
+        return sampleSize > 0 ? length - length % sampleSize : length;
+    }
+
+}
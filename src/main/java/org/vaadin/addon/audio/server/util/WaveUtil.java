@@ -2,13 +2,80 @@ package org.vaadin.addon.audio.server.util;
 
 import org.vaadin.addon.audio.shared.PCMFormat;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 
 /**
  * Utilities for working with WAVE files
  */
 public final class WaveUtil {
 
+    /**
+     * Length of the header written by {@link #generateHeader(PCMFormat, int)}
+     */
+    public static final int HEADER_LENGTH = 44;
+
+    // Bytes of the fmt and ds64 chunks that are parsed
+    private static final int FMT_PARSED_LENGTH = 40;
+    private static final int DS64_PARSED_LENGTH = 24;
+    private static final long SIZE_PLACEHOLDER = 0xFFFFFFFFL;
+
+    /**
+     * Read the layout of a WAVE file by walking its RIFF chunks. Only chunk
+     * headers and the fmt and ds64 chunks are read; other chunks, such as
+     * LIST, fact or bext, are skipped, and reading stops at the data chunk
+     * once the format is known. RIFF, RF64 and BW64 files are supported.
+     *
+     * @param channel
+     *            channel positioned at the start of the file; seekable
+     *            channels skip chunks without reading them
+     * @return the file layout, with offsets relative to the channel's
+     *         starting position
+     * @throws IOException
+     *             if reading fails or the file isn't a WAVE file
+     */
+    public static WaveHeader readHeader(ReadableByteChannel channel) throws IOException {
+        return readHeader(new ChannelSource(channel));
+    }
+
+    /**
+     * Read the layout of a WAVE file held in a buffer. The buffer's position
+     * and limit are not changed.
+     *
+     * @param waveFileBytes
+     *            buffer containing a wave file from index 0
+     * @return the file layout
+     * @throws IOException
+     *             if the buffer doesn't hold a WAVE file
+     * @see #readHeader(ReadableByteChannel)
+     */
+    public static WaveHeader readHeader(ByteBuffer waveFileBytes) throws IOException {
+        return readHeader(new BufferSource(waveFileBytes));
+    }
+
+    /**
+     * Get a view of the sample data of a WAVE file held in a buffer, without
+     * copying it
+     *
+     * @param waveFileBytes
+     *            buffer containing a wave file from index 0
+     * @return buffer holding the whole samples of the data chunk
+     * @throws IOException
+     *             if the buffer doesn't hold a WAVE file
+     */
+    public static ByteBuffer getDataRegion(ByteBuffer waveFileBytes) throws IOException {
+        WaveHeader header = readHeader(waveFileBytes);
+        ByteBuffer data = waveFileBytes.duplicate();
+        data.clear();
+        int offset = (int) Math.min(header.getDataOffset(), data.capacity());
+        data.position(offset);
+        data.limit(offset + (int) header.getDataLength(data.capacity()));
+        return data.slice();
+    }
+
     /**
      * Read Wave header to get data format
      * 
@@ -17,23 +84,18 @@ public final class WaveUtil {
      * @return a PCMFormat object
      */
     public static PCMFormat getDataFormat(ByteBuffer buf) {
-
-        // number of channels
-        int channels = Endian.readLE(buf, 22, 2);
-
-        // sample rate
-        int sampleRate = Endian.readLE(buf, 24, 4);
-
-        // bits per sample
-        int bitsPerSample = Endian.readLE(buf, 34, 2);
-
-        // Enough info gathered
-        return new PCMFormat(channels, sampleRate, bitsPerSample);
+        return readHeaderOrFail(buf).getFormat();
     }
 
+    /**
+     * Get the offset of the fmt chunk
+     * 
+     * @param waveFileBytes
+     *            bytebuffer containing a wave file
+     * @return byte offset of the fmt chunk id
+     */
     public static int getFmtChunkStart(ByteBuffer waveFileBytes) {
-        // seems to always be 12
-        return 12;
+        return (int) readHeaderOrFail(waveFileBytes).getFmtChunkOffset();
     }
 
     /**
@@ -44,39 +106,236 @@ public final class WaveUtil {
      * @return number of bytes in the fmt header
      */
     public static int getFmtChunkSize(ByteBuffer waveFileBytes) {
-        // seems like byte 16 is always the fmt chunk size
-        return Endian.readLE(waveFileBytes, 16, 4);
+        return (int) readHeaderOrFail(waveFileBytes).getFmtChunkSize();
     }
 
+    /**
+     * Get the offset of the data chunk
+     * 
+     * @param waveFileBytes
+     *            bytebuffer containing a wave file
+     * @return byte offset of the data chunk id
+     */
     public static int getDataChunkStart(ByteBuffer waveFileBytes) {
-        // add 4 bytes for fmt ID block and 4 for fmt size block
-        return getFmtChunkStart(waveFileBytes) + getFmtChunkSize(waveFileBytes) + 8;
+        return (int) readHeaderOrFail(waveFileBytes).getDataChunkOffset();
     }
 
     /**
-     * Get the length of the PCM data block
+     * Get the length of the PCM data block, limited to the data in the
+     * buffer
      *
      * @param waveFileBytes
-     *            bytebuffer containing a wave file or chunk
+     *            bytebuffer containing a wave file
      * @return number of bytes in PCM data block
      */
     public static int getDataLength(ByteBuffer waveFileBytes) {
-        // add 4 bytes to get past the ID block
-        int dataLengthByte = getDataChunkStart(waveFileBytes) + 4;
-        return Endian.readLE(waveFileBytes, dataLengthByte, 4);
+        return (int) readHeaderOrFail(waveFileBytes).getDataLength(waveFileBytes.capacity());
     }
 
     /**
-     * Get byte offset of the data start. For now we assume there's always a 44
-     * byte wave header...
+     * Get byte offset of the data start
      * 
      * @param waveFileBytes
-     *            bytebuffer containing a wave file or chunk
+     *            bytebuffer containing a wave file
      * @return number of bytes until start of PCM data block
      */
     public static int getDataStartOffset(ByteBuffer waveFileBytes) {
-        // add 4 bytes for data chunk ID and 4 bytes for data chunk size
-        return getDataChunkStart(waveFileBytes) + 8;
+        return (int) readHeaderOrFail(waveFileBytes).getDataOffset();
+    }
+
+    private static WaveHeader readHeaderOrFail(ByteBuffer waveFileBytes) {
+        try {
+            return readHeader(waveFileBytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private static WaveHeader readHeader(Source in) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(FMT_PARSED_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (!in.read(buf, 12)) {
+            throw new IOException("not a WAVE file: empty");
+        }
+        String riff = fourCC(buf, 0);
+        WaveHeader header = new WaveHeader();
+        header.rf64 = riff.equals("RF64") || riff.equals("BW64");
+        if (!(riff.equals("RIFF") || header.rf64) || !fourCC(buf, 8).equals("WAVE")) {
+            throw new IOException("not a WAVE file");
+        }
+
+        long ds64DataLength = WaveHeader.UNKNOWN_LENGTH;
+        long position = 12;
+        while (in.read(buf, 8)) {
+            String id = fourCC(buf, 0);
+            long size = buf.getInt(4) & 0xFFFFFFFFL;
+            long body = position + 8;
+            long read = 0;
+
+            if (id.equals("ds64")) {
+                read = Math.min(size, DS64_PARSED_LENGTH);
+                if (read < 16 || !in.read(buf, (int) read)) {
+                    throw new IOException("truncated ds64 chunk");
+                }
+                ds64DataLength = buf.getLong(8);
+            } else if (id.equals("fmt ")) {
+                read = Math.min(size, FMT_PARSED_LENGTH);
+                if (read < 16 || !in.read(buf, (int) read)) {
+                    throw new IOException("truncated fmt chunk");
+                }
+                parseFormat(buf, (int) read, header);
+                header.fmtChunkOffset = position;
+                header.fmtChunkSize = size;
+            } else if (id.equals("data")) {
+                if (size == SIZE_PLACEHOLDER) {
+                    size = header.rf64 ? ds64DataLength : WaveHeader.UNKNOWN_LENGTH;
+                }
+                header.dataChunkOffset = position;
+                header.dataLength = size;
+                if (header.fmtChunkOffset >= 0) {
+                    break;
+                }
+                if (size == WaveHeader.UNKNOWN_LENGTH) {
+                    throw new IOException("data chunk of unknown length precedes the fmt chunk");
+                }
+            }
+            // Chunks are padded to an even size
+            long next = body + size + (size & 1);
+            in.skip(next - body - read);
+            position = next;
+        }
+
+        if (header.fmtChunkOffset < 0) {
+            throw new IOException("no fmt chunk in WAVE file");
+        }
+        if (header.dataChunkOffset < 0) {
+            throw new IOException("no data chunk in WAVE file");
+        }
+        return header;
+    }
+
+    private static void parseFormat(ByteBuffer fmt, int length, WaveHeader header) throws IOException {
+        header.formatTag = fmt.getShort(0) & 0xFFFF;
+        header.numChannels = fmt.getShort(2) & 0xFFFF;
+        header.sampleRate = fmt.getInt(4);
+        header.bitsPerSample = fmt.getShort(14) & 0xFFFF;
+        header.validBitsPerSample = header.bitsPerSample;
+        if (header.formatTag == WaveHeader.FORMAT_EXTENSIBLE) {
+            if (length < 40) {
+                throw new IOException("truncated WAVE_FORMAT_EXTENSIBLE fmt chunk");
+            }
+            int valid = fmt.getShort(18) & 0xFFFF;
+            if (valid > 0) {
+                header.validBitsPerSample = valid;
+            }
+            header.channelMask = fmt.getInt(20);
+            // The sub format GUID starts with the format tag
+            header.formatTag = fmt.getShort(24) & 0xFFFF;
+        }
+        if (header.numChannels == 0 || header.sampleRate <= 0 || header.bitsPerSample == 0) {
+            throw new IOException("invalid WAVE format");
+        }
+    }
+
+    private static String fourCC(ByteBuffer buf, int offset) {
+        char[] id = new char[4];
+        for (int i = 0; i < 4; i++) {
+            id[i] = (char) (buf.get(offset + i) & 0xFF);
+        }
+        return new String(id);
+    }
+
+    /**
+     * Sequential reader of a WAVE file
+     */
+    private interface Source {
+
+        /**
+         * Read the next bytes into the start of a buffer
+         *
+         * @return false at the end of the file
+         * @throws IOException
+         *             if the file ends within the bytes
+         */
+        boolean read(ByteBuffer buf, int length) throws IOException;
+
+        void skip(long length) throws IOException;
+    }
+
+    private static final class BufferSource implements Source {
+
+        private final ByteBuffer buffer;
+        private long position = 0;
+
+        BufferSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean read(ByteBuffer buf, int length) throws IOException {
+            if (position >= buffer.capacity()) {
+                return false;
+            }
+            if (position + length > buffer.capacity()) {
+                throw new IOException("unexpected end of WAVE file");
+            }
+            for (int i = 0; i < length; i++) {
+                buf.put(i, buffer.get((int) position + i));
+            }
+            position += length;
+            return true;
+        }
+
+        @Override
+        public void skip(long length) {
+            position += length;
+        }
+    }
+
+    private static final class ChannelSource implements Source {
+
+        private final ReadableByteChannel channel;
+
+        ChannelSource(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean read(ByteBuffer buf, int length) throws IOException {
+            buf.clear();
+            buf.limit(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    if (buf.position() == 0) {
+                        return false;
+                    }
+                    throw new IOException("unexpected end of WAVE file");
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void skip(long length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            if (channel instanceof SeekableByteChannel) {
+                SeekableByteChannel seekable = (SeekableByteChannel) channel;
+                seekable.position(seekable.position() + length);
+                return;
+            }
+            ByteBuffer discard = ByteBuffer.allocate((int) Math.min(length, 8192));
+            while (length > 0) {
+                discard.clear();
+                discard.limit((int) Math.min(length, discard.capacity()));
+                int n = channel.read(discard);
+                if (n < 0) {
+                    return;
+                }
+                length -= n;
+            }
+        }
     }
 
     /**
@@ -92,7 +351,7 @@ public final class WaveUtil {
 
         // Refer to http://soundfile.sapp.org/doc/WaveFormat/
 
-        byte[] header = new byte[44]; // MS Wave header is exactly 44 bytes long
+        byte[] header = new byte[HEADER_LENGTH]; // MS Wave header is exactly 44 bytes long
         ByteBuffer buf = ByteBuffer.wrap(header);
 
         // RIFF header bytes
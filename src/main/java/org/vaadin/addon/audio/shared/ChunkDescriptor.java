@@ -20,6 +20,8 @@ public class ChunkDescriptor implements Serializable {
     private int startSampleOffset;
     private int endSampleOffset;
 
+    // Not set by AudioPlayer, which keeps its own per-session chunk URLs
+    // since descriptors are shared by every player of a stream
     private URI url;
 
     public void setId(int id) {
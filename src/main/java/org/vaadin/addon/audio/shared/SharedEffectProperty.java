@@ -9,7 +9,9 @@ public class SharedEffectProperty implements Serializable {
         // Balance Effect props
         Balance,
         // Filter Effect props
-        FilterType, Q, Frequency, Gain
+        FilterType, Q, Frequency, Gain,
+        // Pitch Effect props
+        Pitch
     }
 
     private PropertyName property;
@@ -1,7 +1,7 @@
 package org.vaadin.addon.audio.shared.util;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,7 +12,7 @@ import java.util.logging.Logger;
  * TODO: improve logging further.
  */
 public class Log {
-    private static final Map<String, Logger> loggers = new HashMap<String, Logger>();
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<String, Logger>();
 
     private static <T> String getInstanceName(T instance) {
         String name = instance.getClass().getSimpleName();
@@ -22,12 +22,7 @@ public class Log {
     }
 
     private static Logger getLogger(String cls) {
-        if (loggers.containsKey(cls)) {
-            return loggers.get(cls);
-        }
-        Logger logger = Logger.getLogger(cls);
-        loggers.put(cls, logger);
-        return logger;
+        return loggers.computeIfAbsent(cls, Logger::getLogger);
     }
 
     private static void logMessage(String owner, String message, Level logLevel) {
@@ -43,6 +38,14 @@ public class Log {
         logMessage(getInstanceName(instance), message, Level.INFO);
     }
 
+    public static <T> void debug(Class<T> cls, String message) {
+        logMessage(cls.getSimpleName(), message, Level.FINE);
+    }
+
+    public static <T> void debug(T instance, String message) {
+        logMessage(getInstanceName(instance), message, Level.FINE);
+    }
+
     public static <T> void warning(Class<T> cls, String message) {
         logMessage(cls.getSimpleName(), message, Level.WARNING);
     }
@@ -8,14 +8,13 @@ import com.vaadin.flow.router.Route;
 import org.vaadin.addon.audio.server.AudioPlayer;
 import org.vaadin.addon.audio.server.Encoder;
 import org.vaadin.addon.audio.server.Stream;
+import org.vaadin.addon.audio.server.StreamRegistry;
 import org.vaadin.addon.audio.server.encoders.MP3Encoder;
 import org.vaadin.addon.audio.server.encoders.OGGEncoder;
 import org.vaadin.addon.audio.server.encoders.WaveEncoder;
 import org.vaadin.addon.audio.server.util.FeatureSupport;
 import org.vaadin.addon.audio.server.util.ULawUtil;
-import org.vaadin.addon.audio.server.util.WaveUtil;
 import org.vaadin.addon.audio.shared.ChunkDescriptor;
-import org.vaadin.addon.audio.shared.PCMFormat;
 import org.vaadin.addon.audio.shared.util.Log;
 
 import javax.sound.sampled.AudioFormat;
@@ -24,6 +23,7 @@ import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -67,7 +67,7 @@ public class DemoUIFlow extends VerticalLayout {
             AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(new ByteArrayInputStream(bytes));
             AudioFormat.Encoding encoding = audioInputStream.getFormat().getEncoding();
             // handle current encoding
-            if (encoding.equals(AudioFormat.Encoding.ULAW)) {
+            if (encoding.equals(AudioFormat.Encoding.ULAW) || encoding.equals(AudioFormat.Encoding.ALAW)) {
                 buffer = ULawUtil.decodeULawToPcm(audioInputStream);
             } else {
                 // for now assume it is PCM data and load it straight into byte buffer
@@ -84,16 +84,33 @@ public class DemoUIFlow extends VerticalLayout {
     }
 
     private static Stream createWaveStream(ByteBuffer waveFile, Encoder outputEncoder) {
-        int startOffset = WaveUtil.getDataStartOffset(waveFile);
-        int dataLength = WaveUtil.getDataLength(waveFile);
         int chunkLength = 5000;
-        PCMFormat dataFormat = WaveUtil.getDataFormat(waveFile);
-        System.out.println(dataFormat.toString());
-        System.out.println("arrayLength: " + waveFile.array().length + "\n\rstartOffset: " + startOffset
-                + "\n\rdataLength: " + dataLength + "\r\nsampleRate: " + dataFormat.getSampleRate());
-        ByteBuffer dataBuffer = ByteBuffer.wrap(waveFile.array(), startOffset, dataLength);
-        Stream stream = new Stream(dataBuffer.slice(), dataFormat, outputEncoder, chunkLength);
-        return stream;
+        try {
+            Stream stream = Stream.fromWaveBuffer(waveFile, outputEncoder, chunkLength);
+            System.out.println(stream.getInputFormat().toString());
+            return stream;
+        } catch (IOException e) {
+            Log.error(DemoUIFlow.class, "not a PCM wave file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates a stream for a file in the test directory. PCM wave files are
+     * memory-mapped and shared by all players, other encodings are decoded
+     * into PCM on the heap first.
+     */
+    private static Stream createStream(String fname, Encoder outputEncoder) {
+        try {
+            return StreamRegistry.getInstance().getWaveFileStream(Paths.get(TEST_FILE_PATH, fname), outputEncoder,
+                    5000);
+        } catch (IOException e) {
+            Log.message(DemoUIFlow.class, "not mapping " + fname + ": " + e.getMessage());
+        }
+        // we decode any other formats to PCM Signed data to make encoding to
+        // other formats easier
+        ByteBuffer fileBytes = decodeToPcm(fname, TEST_FILE_PATH);
+        return fileBytes == null ? null : createWaveStream(fileBytes, outputEncoder);
     }
 
     public static final List<String> listFileNames(String dir) {
@@ -120,7 +137,7 @@ public class DemoUIFlow extends VerticalLayout {
         Encoder encoder = null;
 
         // Prefer OGG support
-        if (FeatureSupport.isOggSupported()) {
+        if (FeatureSupport.isOggSupported() && OGGEncoder.isSupported()) {
             encoder = new OGGEncoder();
         } else if (FeatureSupport.isMp3Supported() && MP3Encoder.isSupported()) {
             // Try MP3 support (it's patent-encumbered)
@@ -130,15 +147,9 @@ public class DemoUIFlow extends VerticalLayout {
             encoder = new WaveEncoder();
         }
 
-        // we decode any other formats to PCM Signed data to make encoding to
-        // other formats easier
-        ByteBuffer fileBytes = decodeToPcm(itemName, TEST_FILE_PATH);
-
-        if (fileBytes != null) {
+        Stream stream = createStream(itemName, encoder);
 
-            // TODO: use the following line when OGG and/or MP3 encoders have been implemented
-            // Stream stream = createWaveStream(fileBytes, encoder);
-            Stream stream = createWaveStream(fileBytes, new WaveEncoder());
+        if (stream != null) {
 
             // debugging
             for (ChunkDescriptor d : stream.getChunks()) {
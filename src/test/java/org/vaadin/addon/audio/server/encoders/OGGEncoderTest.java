@@ -0,0 +1,189 @@
+package org.vaadin.addon.audio.server.encoders;
+
+import com.jcraft.jogg.Packet;
+import com.jcraft.jogg.Page;
+import com.jcraft.jogg.StreamState;
+import com.jcraft.jogg.SyncState;
+import com.jcraft.jorbis.Block;
+import com.jcraft.jorbis.Comment;
+import com.jcraft.jorbis.DspState;
+import com.jcraft.jorbis.Info;
+import org.junit.Test;
+import org.vaadin.addon.audio.server.sources.BufferPcmSource;
+import org.vaadin.addon.audio.shared.PCMFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes audio chunk by chunk and decodes every chunk back with jorbis
+ */
+public class OGGEncoderTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    // Not a multiple of the block hop, so chunk edges fall inside blocks
+    private static final int CHUNK_LENGTH = 20000;
+
+    @Test
+    public void testDecodedChunksKeepTheirLength() throws Exception {
+        short[] pcm = createTone(440, 3 * SAMPLE_RATE + 123);
+        OGGEncoder encoder = createEncoder(pcm, new OGGEncoder.OGGFormat());
+        int samples = pcm.length / CHANNELS;
+        for (int from = 0; from < samples; from += CHUNK_LENGTH) {
+            float[][] decoded = decode(encoder.encode(from, CHUNK_LENGTH));
+            assertEquals(CHANNELS, decoded.length);
+            assertEquals(Math.min(CHUNK_LENGTH, samples - from), decoded[0].length);
+        }
+    }
+
+    @Test
+    public void testDecodedChunksJoinWithoutGaps() throws Exception {
+        short[] pcm = createTone(440, 3 * SAMPLE_RATE);
+        OGGEncoder encoder = createEncoder(pcm, new OGGEncoder.OGGFormat());
+        int samples = pcm.length / CHANNELS;
+        float[][] joined = new float[CHANNELS][samples];
+        for (int from = 0; from < samples; from += CHUNK_LENGTH) {
+            float[][] decoded = decode(encoder.encode(from, CHUNK_LENGTH));
+            for (int c = 0; c < CHANNELS; c++) {
+                System.arraycopy(decoded[c], 0, joined[c], from, decoded[c].length);
+            }
+        }
+
+        assertTrue(getSignalToNoise(pcm, joined, 0, samples) > 30);
+        // A chunk shifted by a single sample would only reach about 24 dB
+        for (int edge = CHUNK_LENGTH; edge < samples; edge += CHUNK_LENGTH) {
+            assertTrue("chunk edge at " + edge, getSignalToNoise(pcm, joined, edge - 1024, edge + 1024) > 30);
+        }
+    }
+
+    @Test
+    public void testFinerQualityKeepsTonesCleaner() throws Exception {
+        short[] pcm = createTone(440, SAMPLE_RATE);
+        OGGEncoder.OGGFormat format = new OGGEncoder.OGGFormat();
+        format.setQuality(1.0f);
+        float[][] decoded = decode(createEncoder(pcm, format).encode(0, SAMPLE_RATE));
+        assertTrue(getSignalToNoise(pcm, decoded, 0, SAMPLE_RATE) > 40);
+    }
+
+    @Test
+    public void testChunksPastTheEndAreEmpty() {
+        short[] pcm = createTone(440, 1000);
+        OGGEncoder encoder = createEncoder(pcm, new OGGEncoder.OGGFormat());
+        assertArrayEquals(new byte[0], encoder.encode(1000, CHUNK_LENGTH));
+    }
+
+    private static short[] createTone(double frequency, int samples) {
+        short[] pcm = new short[samples * CHANNELS];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) Math.round(8000 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            Arrays.fill(pcm, i * CHANNELS, (i + 1) * CHANNELS, value);
+        }
+        return pcm;
+    }
+
+    private static OGGEncoder createEncoder(short[] pcm, OGGEncoder.OGGFormat format) {
+        ByteBuffer buffer = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(pcm);
+        OGGEncoder encoder = new OGGEncoder(format);
+        encoder.setInput(new BufferPcmSource(buffer, new PCMFormat(CHANNELS, SAMPLE_RATE, 16)));
+        return encoder;
+    }
+
+    /**
+     * Get the ratio of signal to coding noise over a sample range, in dB
+     */
+    private static double getSignalToNoise(short[] pcm, float[][] decoded, int from, int to) {
+        double signal = 0;
+        double noise = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int i = from; i < to; i++) {
+                double value = pcm[i * CHANNELS + c] / 32768.0;
+                double error = decoded[c][i] - value;
+                signal += value * value;
+                noise += error * error;
+            }
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    /**
+     * Decode an Ogg Vorbis stream, trimmed to its final granule position.
+     *
+     * jorbis returns the samples of the first audio packet, which libvorbis
+     * and browsers drop as they only prime the overlap, so they are skipped
+     * here too.
+     */
+    private static float[][] decode(byte[] ogg) throws Exception {
+        SyncState sync = new SyncState();
+        sync.init();
+        int offset = sync.buffer(ogg.length);
+        System.arraycopy(ogg, 0, sync.data, offset, ogg.length);
+        sync.wrote(ogg.length);
+
+        StreamState stream = new StreamState();
+        Page page = new Page();
+        Packet packet = new Packet();
+        Info info = new Info();
+        Comment comment = new Comment();
+        info.init();
+        comment.init();
+        DspState dsp = new DspState();
+        Block block = new Block(dsp);
+
+        float[][] pcm = new float[0][];
+        int length = 0;
+        int headers = 0;
+        int audioPackets = 0;
+        long granule = -1;
+        while (sync.pageout(page) == 1) {
+            if (headers == 0) {
+                stream.init(page.serialno());
+            }
+            assertEquals(0, stream.pagein(page));
+            granule = page.granulepos();
+            while (stream.packetout(packet) == 1) {
+                if (headers < 3) {
+                    assertEquals(0, info.synthesis_headerin(comment, packet));
+                    if (++headers == 3) {
+                        dsp.synthesis_init(info);
+                        block.init(dsp);
+                        pcm = new float[info.channels][SAMPLE_RATE];
+                    }
+                    continue;
+                }
+                assertEquals(0, block.synthesis(packet));
+                dsp.synthesis_blockin(block);
+                audioPackets++;
+                float[][][] output = new float[1][][];
+                int[] index = new int[info.channels];
+                int n;
+                while ((n = dsp.synthesis_pcmout(output, index)) > 0) {
+                    if (audioPackets > 1) {
+                        if (length + n > pcm[0].length) {
+                            for (int c = 0; c < pcm.length; c++) {
+                                pcm[c] = Arrays.copyOf(pcm[c], Math.max(2 * pcm[c].length, length + n));
+                            }
+                        }
+                        for (int c = 0; c < pcm.length; c++) {
+                            System.arraycopy(output[0][c], index[c], pcm[c], length, n);
+                        }
+                        length += n;
+                    }
+                    dsp.synthesis_read(n);
+                }
+            }
+        }
+        assertEquals(3, headers);
+        assertTrue(granule >= 0 && granule <= length);
+        for (int c = 0; c < pcm.length; c++) {
+            pcm[c] = Arrays.copyOf(pcm[c], (int) granule);
+        }
+        return pcm;
+    }
+}